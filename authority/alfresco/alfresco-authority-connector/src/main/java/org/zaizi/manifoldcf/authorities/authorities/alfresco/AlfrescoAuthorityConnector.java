@@ -18,17 +18,31 @@ import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.apache.manifoldcf.authorities.interfaces.AuthorizationResponse;
+import org.apache.manifoldcf.authorities.system.Logging;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is the null authority implementation, which simply returns the user name as the single access token. This is
@@ -45,6 +59,16 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
 
     private static final String AUTHORITIES_JSON = "authorities";
 
+    private static final String USERNAMES_JSON = "userNames";
+
+    private static final String USERS_JSON = "users";
+
+    /** Users asked for per bulk request, the webscript accepting up to 1000 */
+    private static final int PREFETCH_BATCH_SIZE = 500;
+
+    /** The single authority answered by the webscript for the users it does not know */
+    private static final String GUEST_AUTHORITY = "guest";
+
     /** This is the active directory global deny token. This should be ingested with all documents. */
     private static final String globalDenyToken = "DEAD_AUTHORITY";
 
@@ -81,7 +105,67 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
      */
     protected String path = null;
 
-    private DefaultHttpClient httpClient;
+    private volatile DefaultHttpClient httpClient;
+
+    private PoolingClientConnectionManager connectionManager;
+
+    /**
+     * Time after which idle connections are closed, in milliseconds
+     */
+    private long connectionIdleTimeout;
+
+    /**
+     * Number of requests which could not get a connection from the pool in time
+     */
+    private final AtomicLong poolTimeoutCount = new AtomicLong();
+
+    /**
+     * Authority tokens cached for the connection
+     */
+    private AuthorityTokenCache tokenCache;
+
+    /**
+     * Fails the requests to Alfresco fast when too many of them failed
+     */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * Loads the responses for the cache. As the background refreshes of the cache may run after this instance is
+     * disconnected, the loader answers the default response once the instance is disconnected, and an unreachable
+     * response rather than failing.
+     */
+    private final AuthorityTokenCache.Loader tokenLoader = new AuthorityTokenCache.Loader()
+    {
+        @Override
+        public AuthorizationResponse load(String userName)
+        {
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker == null || httpClient == null)
+            {
+                return getDefaultAuthorizationResponse(userName);
+            }
+            long ticket = breaker.allowRequest();
+            if (ticket == CircuitBreaker.REJECTED)
+            {
+                return getDefaultAuthorizationResponse(userName);
+            }
+            try
+            {
+                AuthorizationResponse response = loadAuthorizationResponse(userName);
+                breaker.recordResult(ticket,
+                        response.getResponseStatus() != AuthorizationResponse.RESPONSE_UNREACHABLE);
+                return response;
+            }
+            catch (RuntimeException e)
+            {
+                // a trial request must record its result, or the breaker would stay open
+                breaker.recordResult(ticket, false);
+                Logging.authorityConnectors.warn("Alfresco authority: error loading the authorities of " + userName,
+                        e);
+                return new AuthorizationResponse(null, AuthorizationResponse.RESPONSE_UNREACHABLE);
+            }
+        }
+    };
 
     /**
      * Alfresco Server configuration tab name
@@ -135,10 +219,62 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
         port = params.getParameter(AlfrescoConfig.PORT_PARAM);
         path = params.getParameter(AlfrescoConfig.PATH_PARAM);
 
-        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager = new PoolingClientConnectionManager();
+        int maxConnections = getIntParameter(AlfrescoConfig.MAX_CONNECTIONS_PARAM,
+                AlfrescoConfig.MAX_CONNECTIONS_DEFAULT_VALUE);
+        int maxConnectionsPerRoute = getIntParameter(AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_PARAM,
+                AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_DEFAULT_VALUE);
+        connectionManager.setMaxTotal(Math.max(1, maxConnections));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerRoute));
+        connectionIdleTimeout = getIntParameter(AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_PARAM,
+                AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE) * 1000L;
+        poolTimeoutCount.set(0L);
+
         httpClient = new DefaultHttpClient(connectionManager);
         UsernamePasswordCredentials creds = new UsernamePasswordCredentials(username, password);
         httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY, creds);
+
+        int connectionTimeout = getIntParameter(AlfrescoConfig.CONNECTION_TIMEOUT_PARAM,
+                AlfrescoConfig.CONNECTION_TIMEOUT_DEFAULT_VALUE);
+        HttpParams httpParams = httpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(httpParams, getIntParameter(AlfrescoConfig.SOCKET_TIMEOUT_PARAM,
+                AlfrescoConfig.SOCKET_TIMEOUT_DEFAULT_VALUE));
+        httpParams.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectionTimeout);
+
+        final long connectionKeepAlive = getIntParameter(AlfrescoConfig.CONNECTION_KEEP_ALIVE_PARAM,
+                AlfrescoConfig.CONNECTION_KEEP_ALIVE_DEFAULT_VALUE) * 1000L;
+        httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy()
+        {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+            {
+                // the keep alive asked by Alfresco, capped to the configured one
+                long keepAlive = super.getKeepAliveDuration(response, context);
+                return keepAlive < 0 || keepAlive > connectionKeepAlive ? connectionKeepAlive : keepAlive;
+            }
+        });
+
+        String connectionKey = protocol + "://" + server + ":" + port + path;
+        long cacheLifetime = getIntParameter(AlfrescoConfig.CACHE_LIFETIME_PARAM,
+                AlfrescoConfig.CACHE_LIFETIME_DEFAULT_VALUE) * 1000L;
+        int cacheMaxEntries = getIntParameter(AlfrescoConfig.CACHE_MAX_ENTRIES_PARAM,
+                AlfrescoConfig.CACHE_MAX_ENTRIES_DEFAULT_VALUE);
+        long cacheNotFoundLifetime = getIntParameter(AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_PARAM,
+                AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_DEFAULT_VALUE) * 1000L;
+        String cacheServeStale = params.getParameter(AlfrescoConfig.CACHE_SERVE_STALE_PARAM);
+        if (cacheServeStale == null)
+            cacheServeStale = AlfrescoConfig.CACHE_SERVE_STALE_DEFAULT_VALUE;
+        long cacheStaleLifetime = getIntParameter(AlfrescoConfig.CACHE_STALE_LIFETIME_PARAM,
+                AlfrescoConfig.CACHE_STALE_LIFETIME_DEFAULT_VALUE) * 1000L;
+        tokenCache = AuthorityTokenCache.getCache(connectionKey, cacheLifetime, cacheMaxEntries,
+                cacheNotFoundLifetime, Boolean.parseBoolean(cacheServeStale), cacheStaleLifetime);
+
+        int breakerErrorThreshold = getIntParameter(AlfrescoConfig.BREAKER_ERROR_THRESHOLD_PARAM,
+                AlfrescoConfig.BREAKER_ERROR_THRESHOLD_DEFAULT_VALUE);
+        long breakerOpenTime = getIntParameter(AlfrescoConfig.BREAKER_OPEN_TIME_PARAM,
+                AlfrescoConfig.BREAKER_OPEN_TIME_DEFAULT_VALUE) * 1000L;
+        circuitBreaker = CircuitBreaker.getBreaker(connectionKey, breakerErrorThreshold, breakerOpenTime);
     }
 
     /**
@@ -153,6 +289,49 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
         server = null;
         port = null;
         path = null;
+        tokenCache = null;
+        if (connectionManager != null)
+        {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        httpClient = null;
+        circuitBreaker = null;
+    }
+
+    /**
+     * Close the expired and idle connections of the pool, and report its saturation.
+     */
+    @Override
+    public void poll() throws ManifoldCFException
+    {
+        if (connectionManager == null)
+        {
+            return;
+        }
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(connectionIdleTimeout, TimeUnit.MILLISECONDS);
+
+        PoolStats stats = connectionManager.getTotalStats();
+        if (stats.getPending() > 0)
+        {
+            Logging.authorityConnectors.warn("Alfresco authority connection pool saturated: " + getPoolStatistics());
+        }
+        else if (Logging.authorityConnectors.isDebugEnabled())
+        {
+            Logging.authorityConnectors.debug("Alfresco authority connection pool: " + getPoolStatistics());
+        }
+    }
+
+    /**
+     * @return the usage of the connection pool: leased, available and maximum connections, requests waiting for a
+     *         connection, and requests which could not get one in time.
+     */
+    public String getPoolStatistics()
+    {
+        PoolStats stats = connectionManager.getTotalStats();
+        return "leased=" + stats.getLeased() + ", available=" + stats.getAvailable() + ", max=" + stats.getMax()
+                + ", pending=" + stats.getPending() + ", poolTimeouts=" + poolTimeoutCount.get();
     }
 
     /**
@@ -193,11 +372,22 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
      */
     @Override
     public AuthorizationResponse getAuthorizationResponse(String userName) throws ManifoldCFException
+    {
+        return tokenCache.get(userName, tokenLoader);
+    }
+
+    /**
+     * Ask Alfresco for the access tokens of a user
+     * 
+     * @param userName is the user name or identifier.
+     * @return the response tokens, user not found with the guest token if Alfresco does not know the user, unreachable
+     *         if Alfresco could not answer.
+     */
+    private AuthorizationResponse loadAuthorizationResponse(String userName)
     {
         // String[] tokens = new String[] { userName };
         // return new AuthorizationResponse(tokens, AuthorizationResponse.RESPONSE_OK);
 
-        List<String> tokens = new ArrayList<String>();
         try
         {
             URIBuilder uri = new URIBuilder();
@@ -213,24 +403,129 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
 
             JSONObject json = new JSONObject(EntityUtils.toString(response.getEntity(), UTF8));
 
-            JSONArray auths = (JSONArray) json.get(AUTHORITIES_JSON);
-            if (auths != null)
+            EntityUtils.consume(response.getEntity());
+
+            return toAuthorizationResponse((JSONArray) json.get(AUTHORITIES_JSON));
+        }
+        catch (ConnectionPoolTimeoutException e)
+        {
+            poolTimeoutCount.incrementAndGet();
+            return new AuthorizationResponse(null, AuthorizationResponse.RESPONSE_UNREACHABLE);
+        }
+        catch (Exception e)
+        {
+            return new AuthorizationResponse(null, AuthorizationResponse.RESPONSE_UNREACHABLE);
+        }
+    }
+
+    /**
+     * Load the access tokens of many users into the cache. The users missing from the cache are asked to Alfresco in
+     * bulk requests.
+     * 
+     * @param userNames are the user names or identifiers.
+     * @return the number of users loaded, less than the missing ones if Alfresco could not answer.
+     */
+    public int prefetchAuthorizationResponses(Collection<String> userNames) throws ManifoldCFException
+    {
+        List<String> missing = tokenCache.getMissing(userNames);
+        int loaded = 0;
+        for (int start = 0; start < missing.size(); start += PREFETCH_BATCH_SIZE)
+        {
+            long ticket = circuitBreaker.allowRequest();
+            if (ticket == CircuitBreaker.REJECTED)
             {
-                int len = auths.length();
-                for (int i = 0; i < len; i++)
-                {
-                    tokens.add(auths.get(i).toString());
-                }
+                break;
+            }
+            List<String> batch = missing.subList(start, Math.min(start + PREFETCH_BATCH_SIZE, missing.size()));
+            Map<String, AuthorizationResponse> responses = loadAuthorizationResponses(batch);
+            circuitBreaker.recordResult(ticket, responses != null);
+            if (responses == null)
+            {
+                break;
             }
+            for (Map.Entry<String, AuthorizationResponse> response : responses.entrySet())
+            {
+                tokenCache.store(response.getKey(), response.getValue());
+            }
+            loaded += responses.size();
+        }
+        return loaded;
+    }
 
-            EntityUtils.consume(response.getEntity());
+    /**
+     * Ask Alfresco for the access tokens of many users in a single request
+     * 
+     * @param userNames are the user names or identifiers.
+     * @return the response tokens of the users, null if Alfresco could not answer.
+     */
+    private Map<String, AuthorizationResponse> loadAuthorizationResponses(List<String> userNames)
+    {
+        try
+        {
+            URIBuilder uri = new URIBuilder();
+            uri.setScheme(protocol);
+            uri.setHost(server);
+            uri.setPort(Integer.parseInt(port));
+            uri.setPath(path + USER_AUTHORITIES_URI);
+
+            JSONObject request = new JSONObject();
+            request.put(USERNAMES_JSON, new JSONArray(userNames));
 
+            HttpPost post = new HttpPost(uri.build());
+            post.setEntity(new StringEntity(request.toString(), ContentType.APPLICATION_JSON));
+
+            HttpResponse response = httpClient.execute(post);
+
+            String body = EntityUtils.toString(response.getEntity(), UTF8);
+            if (response.getStatusLine().getStatusCode() != 200)
+            {
+                return null;
+            }
+
+            JSONObject users = new JSONObject(body).getJSONObject(USERS_JSON);
+            Map<String, AuthorizationResponse> responses = new HashMap<String, AuthorizationResponse>();
+            for (String userName : userNames)
+            {
+                JSONArray auths = users.optJSONArray(userName);
+                if (auths != null)
+                {
+                    responses.put(userName, toAuthorizationResponse(auths));
+                }
+            }
+            return responses;
+        }
+        catch (ConnectionPoolTimeoutException e)
+        {
+            poolTimeoutCount.incrementAndGet();
+            return null;
         }
         catch (Exception e)
         {
-            return new AuthorizationResponse(null, AuthorizationResponse.RESPONSE_UNREACHABLE);
+            return null;
+        }
+    }
+
+    /**
+     * Turn the authorities answered by Alfresco into a response, the guest authority alone meaning the user is not
+     * known
+     */
+    private static AuthorizationResponse toAuthorizationResponse(JSONArray auths) throws JSONException
+    {
+        List<String> tokens = new ArrayList<String>();
+        if (auths != null)
+        {
+            int len = auths.length();
+            for (int i = 0; i < len; i++)
+            {
+                tokens.add(auths.get(i).toString());
+            }
         }
 
+        if (tokens.size() == 1 && GUEST_AUTHORITY.equals(tokens.get(0)))
+        {
+            return new AuthorizationResponse(tokens.toArray(new String[] {}),
+                    AuthorizationResponse.RESPONSE_USERNOTFOUND);
+        }
         return new AuthorizationResponse(tokens.toArray(new String[] {}), AuthorizationResponse.RESPONSE_OK);
     }
 
@@ -354,6 +649,84 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
             parameters.setParameter(AlfrescoConfig.PATH_PARAM, path);
         }
 
+        String cacheLifetime = variableContext.getParameter(AlfrescoConfig.CACHE_LIFETIME_PARAM);
+        if (cacheLifetime != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CACHE_LIFETIME_PARAM, cacheLifetime);
+        }
+
+        String cacheMaxEntries = variableContext.getParameter(AlfrescoConfig.CACHE_MAX_ENTRIES_PARAM);
+        if (cacheMaxEntries != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CACHE_MAX_ENTRIES_PARAM, cacheMaxEntries);
+        }
+
+        String cacheNotFoundLifetime = variableContext.getParameter(AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_PARAM);
+        if (cacheNotFoundLifetime != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_PARAM, cacheNotFoundLifetime);
+        }
+
+        String cacheServeStale = variableContext.getParameter(AlfrescoConfig.CACHE_SERVE_STALE_PARAM);
+        if (cacheServeStale != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CACHE_SERVE_STALE_PARAM, cacheServeStale);
+        }
+
+        String cacheStaleLifetime = variableContext.getParameter(AlfrescoConfig.CACHE_STALE_LIFETIME_PARAM);
+        if (cacheStaleLifetime != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CACHE_STALE_LIFETIME_PARAM, cacheStaleLifetime);
+        }
+
+        String breakerErrorThreshold = variableContext.getParameter(AlfrescoConfig.BREAKER_ERROR_THRESHOLD_PARAM);
+        if (breakerErrorThreshold != null)
+        {
+            parameters.setParameter(AlfrescoConfig.BREAKER_ERROR_THRESHOLD_PARAM, breakerErrorThreshold);
+        }
+
+        String breakerOpenTime = variableContext.getParameter(AlfrescoConfig.BREAKER_OPEN_TIME_PARAM);
+        if (breakerOpenTime != null)
+        {
+            parameters.setParameter(AlfrescoConfig.BREAKER_OPEN_TIME_PARAM, breakerOpenTime);
+        }
+
+        String maxConnections = variableContext.getParameter(AlfrescoConfig.MAX_CONNECTIONS_PARAM);
+        if (maxConnections != null)
+        {
+            parameters.setParameter(AlfrescoConfig.MAX_CONNECTIONS_PARAM, maxConnections);
+        }
+
+        String maxConnectionsPerRoute = variableContext.getParameter(AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_PARAM);
+        if (maxConnectionsPerRoute != null)
+        {
+            parameters.setParameter(AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_PARAM, maxConnectionsPerRoute);
+        }
+
+        String connectionTimeout = variableContext.getParameter(AlfrescoConfig.CONNECTION_TIMEOUT_PARAM);
+        if (connectionTimeout != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CONNECTION_TIMEOUT_PARAM, connectionTimeout);
+        }
+
+        String socketTimeout = variableContext.getParameter(AlfrescoConfig.SOCKET_TIMEOUT_PARAM);
+        if (socketTimeout != null)
+        {
+            parameters.setParameter(AlfrescoConfig.SOCKET_TIMEOUT_PARAM, socketTimeout);
+        }
+
+        String connectionKeepAlive = variableContext.getParameter(AlfrescoConfig.CONNECTION_KEEP_ALIVE_PARAM);
+        if (connectionKeepAlive != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CONNECTION_KEEP_ALIVE_PARAM, connectionKeepAlive);
+        }
+
+        String connectionIdleTimeout = variableContext.getParameter(AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_PARAM);
+        if (connectionIdleTimeout != null)
+        {
+            parameters.setParameter(AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_PARAM, connectionIdleTimeout);
+        }
+
         return null;
     }
 
@@ -414,6 +787,96 @@ public class AlfrescoAuthorityConnector extends org.apache.manifoldcf.authoritie
             path = AlfrescoConfig.PATH_DEFAULT_VALUE;
         paramMap.put(AlfrescoConfig.PATH_PARAM, path);
 
+        String cacheLifetime = parameters.getParameter(AlfrescoConfig.CACHE_LIFETIME_PARAM);
+        if (cacheLifetime == null)
+            cacheLifetime = AlfrescoConfig.CACHE_LIFETIME_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CACHE_LIFETIME_PARAM, cacheLifetime);
+
+        String cacheMaxEntries = parameters.getParameter(AlfrescoConfig.CACHE_MAX_ENTRIES_PARAM);
+        if (cacheMaxEntries == null)
+            cacheMaxEntries = AlfrescoConfig.CACHE_MAX_ENTRIES_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CACHE_MAX_ENTRIES_PARAM, cacheMaxEntries);
+
+        String cacheNotFoundLifetime = parameters.getParameter(AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_PARAM);
+        if (cacheNotFoundLifetime == null)
+            cacheNotFoundLifetime = AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CACHE_NOT_FOUND_LIFETIME_PARAM, cacheNotFoundLifetime);
+
+        String cacheServeStale = parameters.getParameter(AlfrescoConfig.CACHE_SERVE_STALE_PARAM);
+        if (cacheServeStale == null)
+            cacheServeStale = AlfrescoConfig.CACHE_SERVE_STALE_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CACHE_SERVE_STALE_PARAM, cacheServeStale);
+
+        String cacheStaleLifetime = parameters.getParameter(AlfrescoConfig.CACHE_STALE_LIFETIME_PARAM);
+        if (cacheStaleLifetime == null)
+            cacheStaleLifetime = AlfrescoConfig.CACHE_STALE_LIFETIME_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CACHE_STALE_LIFETIME_PARAM, cacheStaleLifetime);
+
+        String breakerErrorThreshold = parameters.getParameter(AlfrescoConfig.BREAKER_ERROR_THRESHOLD_PARAM);
+        if (breakerErrorThreshold == null)
+            breakerErrorThreshold = AlfrescoConfig.BREAKER_ERROR_THRESHOLD_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.BREAKER_ERROR_THRESHOLD_PARAM, breakerErrorThreshold);
+
+        String breakerOpenTime = parameters.getParameter(AlfrescoConfig.BREAKER_OPEN_TIME_PARAM);
+        if (breakerOpenTime == null)
+            breakerOpenTime = AlfrescoConfig.BREAKER_OPEN_TIME_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.BREAKER_OPEN_TIME_PARAM, breakerOpenTime);
+
+        String maxConnections = parameters.getParameter(AlfrescoConfig.MAX_CONNECTIONS_PARAM);
+        if (maxConnections == null)
+            maxConnections = AlfrescoConfig.MAX_CONNECTIONS_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.MAX_CONNECTIONS_PARAM, maxConnections);
+
+        String maxConnectionsPerRoute = parameters.getParameter(AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_PARAM);
+        if (maxConnectionsPerRoute == null)
+            maxConnectionsPerRoute = AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.MAX_CONNECTIONS_PER_ROUTE_PARAM, maxConnectionsPerRoute);
+
+        String connectionTimeout = parameters.getParameter(AlfrescoConfig.CONNECTION_TIMEOUT_PARAM);
+        if (connectionTimeout == null)
+            connectionTimeout = AlfrescoConfig.CONNECTION_TIMEOUT_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CONNECTION_TIMEOUT_PARAM, connectionTimeout);
+
+        String socketTimeout = parameters.getParameter(AlfrescoConfig.SOCKET_TIMEOUT_PARAM);
+        if (socketTimeout == null)
+            socketTimeout = AlfrescoConfig.SOCKET_TIMEOUT_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.SOCKET_TIMEOUT_PARAM, socketTimeout);
+
+        String connectionKeepAlive = parameters.getParameter(AlfrescoConfig.CONNECTION_KEEP_ALIVE_PARAM);
+        if (connectionKeepAlive == null)
+            connectionKeepAlive = AlfrescoConfig.CONNECTION_KEEP_ALIVE_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CONNECTION_KEEP_ALIVE_PARAM, connectionKeepAlive);
+
+        String connectionIdleTimeout = parameters.getParameter(AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_PARAM);
+        if (connectionIdleTimeout == null)
+            connectionIdleTimeout = AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE;
+        paramMap.put(AlfrescoConfig.CONNECTION_IDLE_TIMEOUT_PARAM, connectionIdleTimeout);
+
+    }
+
+    /**
+     * Read a non-negative integer configuration parameter, falling back to the default value when it is missing or
+     * invalid.
+     */
+    private int getIntParameter(String name, String defaultValue)
+    {
+        String value = params.getParameter(name);
+        if (value != null)
+        {
+            try
+            {
+                int intValue = Integer.parseInt(value.trim());
+                if (intValue >= 0)
+                {
+                    return intValue;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // use the default value
+            }
+        }
+        return Integer.parseInt(defaultValue);
     }
 
     /**
@@ -54,6 +54,71 @@ public class AlfrescoConfig
      */
     public static final String PATH_PARAM = "path";
 
+    /**
+     * Parameter for how long the authority tokens of a user are cached, in seconds. 0 disables the cache
+     */
+    public static final String CACHE_LIFETIME_PARAM = "cacheLifetime";
+
+    /**
+     * Parameter for the maximum number of users whose authority tokens are cached
+     */
+    public static final String CACHE_MAX_ENTRIES_PARAM = "cacheMaxEntries";
+
+    /**
+     * Parameter for how long the user not found answers are cached, in seconds. 0 disables their caching
+     */
+    public static final String CACHE_NOT_FOUND_LIFETIME_PARAM = "cacheNotFoundLifetime";
+
+    /**
+     * Parameter enabling the expired authority tokens to be served while they are refreshed in the background
+     */
+    public static final String CACHE_SERVE_STALE_PARAM = "cacheServeStale";
+
+    /**
+     * Parameter for how long after expiring the authority tokens can be served, in seconds
+     */
+    public static final String CACHE_STALE_LIFETIME_PARAM = "cacheStaleLifetime";
+
+    /**
+     * Parameter for the percentage of failed requests failing the next ones fast. 0 disables the circuit breaker
+     */
+    public static final String BREAKER_ERROR_THRESHOLD_PARAM = "breakerErrorThreshold";
+
+    /**
+     * Parameter for how long the requests fail fast once the error threshold is reached, in seconds
+     */
+    public static final String BREAKER_OPEN_TIME_PARAM = "breakerOpenTime";
+
+    /**
+     * Parameter for the maximum number of connections to Alfresco
+     */
+    public static final String MAX_CONNECTIONS_PARAM = "maxConnections";
+
+    /**
+     * Parameter for the maximum number of connections to a single Alfresco host
+     */
+    public static final String MAX_CONNECTIONS_PER_ROUTE_PARAM = "maxConnectionsPerRoute";
+
+    /**
+     * Parameter for the timeout of opening a connection, or of waiting for one from the pool, in milliseconds
+     */
+    public static final String CONNECTION_TIMEOUT_PARAM = "connectionTimeout";
+
+    /**
+     * Parameter for the timeout of waiting for data from Alfresco, in milliseconds
+     */
+    public static final String SOCKET_TIMEOUT_PARAM = "socketTimeout";
+
+    /**
+     * Parameter for the maximum time a connection is kept alive for reuse, in seconds
+     */
+    public static final String CONNECTION_KEEP_ALIVE_PARAM = "connectionKeepAlive";
+
+    /**
+     * Parameter for the time after which an idle connection is closed, in seconds
+     */
+    public static final String CONNECTION_IDLE_TIMEOUT_PARAM = "connectionIdleTimeout";
+
     // default values
     public static final String USERNAME_DEFAULT_VALUE = "admin";
     public static final String PASSWORD_DEFAULT_VALUE = "admin";
@@ -61,5 +126,18 @@ public class AlfrescoConfig
     public static final String SERVER_DEFAULT_VALUE = "localhost";
     public static final String PORT_DEFAULT_VALUE = "8080";
     public static final String PATH_DEFAULT_VALUE = "/alfresco-instance";
+    public static final String CACHE_LIFETIME_DEFAULT_VALUE = "300";
+    public static final String CACHE_MAX_ENTRIES_DEFAULT_VALUE = "10000";
+    public static final String CACHE_NOT_FOUND_LIFETIME_DEFAULT_VALUE = "60";
+    public static final String CACHE_SERVE_STALE_DEFAULT_VALUE = "false";
+    public static final String CACHE_STALE_LIFETIME_DEFAULT_VALUE = "3600";
+    public static final String BREAKER_ERROR_THRESHOLD_DEFAULT_VALUE = "50";
+    public static final String BREAKER_OPEN_TIME_DEFAULT_VALUE = "30";
+    public static final String MAX_CONNECTIONS_DEFAULT_VALUE = "50";
+    public static final String MAX_CONNECTIONS_PER_ROUTE_DEFAULT_VALUE = "20";
+    public static final String CONNECTION_TIMEOUT_DEFAULT_VALUE = "5000";
+    public static final String SOCKET_TIMEOUT_DEFAULT_VALUE = "30000";
+    public static final String CONNECTION_KEEP_ALIVE_DEFAULT_VALUE = "60";
+    public static final String CONNECTION_IDLE_TIMEOUT_DEFAULT_VALUE = "30";
 
 }
@@ -0,0 +1,373 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.authorities.authorities.alfresco;
+
+import org.apache.manifoldcf.authorities.interfaces.AuthorizationResponse;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the authorization responses of the users, shared by all the connector instances of a connection. The
+ * successful responses are kept for a limited time, the user not found ones for a shorter time, up to a maximum number
+ * of users, the least recently used being evicted first. The unreachable responses are never kept.
+ *
+ * Concurrent lookups of a user missing from the cache share a single load. When serving stale responses is enabled,
+ * an expired response is still returned for a while, and refreshed in the background.
+ */
+public class AuthorityTokenCache
+{
+    /**
+     * Loads the authorization response of a user from Alfresco
+     */
+    public interface Loader
+    {
+        AuthorizationResponse load(String userName) throws ManifoldCFException;
+    }
+
+    private static final int REFRESH_THREADS = 4;
+
+    private static final int MAX_PENDING_REFRESHES = 1000;
+
+    private static final Map<String, AuthorityTokenCache> caches = new HashMap<String, AuthorityTokenCache>();
+
+    /**
+     * Runs the background refreshes of the stale responses of all the caches
+     */
+    private static final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,
+            REFRESH_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_REFRESHES),
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Alfresco authority token refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static
+    {
+        refreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Map<String, CachedResponse> responses;
+
+    private final ConcurrentMap<String, FutureTask<AuthorizationResponse>> loading =
+            new ConcurrentHashMap<String, FutureTask<AuthorizationResponse>>();
+
+    private volatile long lifetime;
+
+    private volatile int maxEntries;
+
+    private volatile long notFoundLifetime;
+
+    private volatile boolean serveStale;
+
+    private volatile long staleLifetime;
+
+    private AuthorityTokenCache()
+    {
+        responses = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the cache of a connection, creating it the first time
+     *
+     * @param connectionKey identifies the Alfresco endpoint of the connection
+     * @param lifetime how long the responses are kept, in milliseconds. 0 disables the cache
+     * @param maxEntries the maximum number of users kept
+     * @param notFoundLifetime how long the user not found responses are kept, in milliseconds
+     * @param serveStale whether expired responses are served while they are refreshed in the background
+     * @param staleLifetime how long after expiring the responses can be served, in milliseconds
+     * @return
+     */
+    public static synchronized AuthorityTokenCache getCache(String connectionKey, long lifetime, int maxEntries,
+            long notFoundLifetime, boolean serveStale, long staleLifetime)
+    {
+        AuthorityTokenCache cache = caches.get(connectionKey);
+        if (cache == null)
+        {
+            cache = new AuthorityTokenCache();
+            caches.put(connectionKey, cache);
+        }
+        cache.configure(lifetime, maxEntries, notFoundLifetime, serveStale, staleLifetime);
+        return cache;
+    }
+
+    /**
+     * Return the cached response of a user, or load it. A load already running for the user is waited for instead of
+     * starting another one. A stale response is returned at once, a refresh being started if none is running.
+     *
+     * @param userName
+     * @param loader
+     * @return
+     * @throws ManifoldCFException
+     */
+    public AuthorizationResponse get(final String userName, final Loader loader) throws ManifoldCFException
+    {
+        if (lifetime <= 0)
+        {
+            return loader.load(userName);
+        }
+
+        CachedResponse cached = getCached(userName);
+        if (cached != null)
+        {
+            if (cached.expiryTime > System.currentTimeMillis())
+            {
+                return cached.response;
+            }
+            refresh(userName, loader);
+            return cached.response;
+        }
+
+        FutureTask<AuthorizationResponse> task = newLoad(userName, loader);
+        FutureTask<AuthorizationResponse> running = loading.putIfAbsent(userName, task);
+        if (running == null)
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                loading.remove(userName, task);
+            }
+            running = task;
+        }
+        return waitFor(running);
+    }
+
+    /**
+     * Start a background load of a user, unless one is already running
+     */
+    private void refresh(final String userName, Loader loader)
+    {
+        final FutureTask<AuthorizationResponse> task = newLoad(userName, loader);
+        if (loading.putIfAbsent(userName, task) != null)
+        {
+            return;
+        }
+        try
+        {
+            refreshExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        loading.remove(userName, task);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // too many refreshes pending, the stale response is served until a later lookup refreshes it
+            loading.remove(userName, task);
+        }
+    }
+
+    /**
+     * @return a load of the user response, keeping it if it is worth caching
+     */
+    private FutureTask<AuthorizationResponse> newLoad(final String userName, final Loader loader)
+    {
+        return new FutureTask<AuthorizationResponse>(new Callable<AuthorizationResponse>()
+        {
+            @Override
+            public AuthorizationResponse call() throws Exception
+            {
+                AuthorizationResponse loaded = loader.load(userName);
+                store(userName, loaded);
+                return loaded;
+            }
+        });
+    }
+
+    /**
+     * @param userNames
+     * @return the user names without a fresh response in the cache, none if the cache is disabled
+     */
+    public List<String> getMissing(Collection<String> userNames)
+    {
+        List<String> missing = new ArrayList<String>();
+        if (lifetime <= 0)
+        {
+            return missing;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (responses)
+        {
+            for (String userName : new LinkedHashSet<String>(userNames))
+            {
+                CachedResponse cached = responses.get(userName);
+                if (cached == null || cached.expiryTime <= now)
+                {
+                    missing.add(userName);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Keep a response loaded for a user, if it is worth caching
+     *
+     * @param userName
+     * @param response
+     */
+    public void store(String userName, AuthorizationResponse response)
+    {
+        if (lifetime <= 0)
+        {
+            return;
+        }
+        if (response.getResponseStatus() == AuthorizationResponse.RESPONSE_OK)
+        {
+            put(userName, response, lifetime);
+        }
+        else if (response.getResponseStatus() == AuthorizationResponse.RESPONSE_USERNOTFOUND && notFoundLifetime > 0)
+        {
+            put(userName, response, notFoundLifetime);
+        }
+    }
+
+    private void configure(long lifetime, int maxEntries, long notFoundLifetime, boolean serveStale,
+            long staleLifetime)
+    {
+        this.lifetime = lifetime;
+        this.maxEntries = maxEntries;
+        this.notFoundLifetime = notFoundLifetime;
+        this.serveStale = serveStale;
+        this.staleLifetime = staleLifetime;
+        synchronized (responses)
+        {
+            if (lifetime <= 0)
+            {
+                responses.clear();
+            }
+            while (responses.size() > maxEntries)
+            {
+                responses.remove(responses.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @return the response of the user, fresh or still allowed to be served stale, null if there is none
+     */
+    private CachedResponse getCached(String userName)
+    {
+        synchronized (responses)
+        {
+            CachedResponse cached = responses.get(userName);
+            if (cached == null)
+            {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (cached.expiryTime > now || (serveStale && cached.expiryTime + staleLifetime > now))
+            {
+                return cached;
+            }
+            responses.remove(userName);
+            return null;
+        }
+    }
+
+    private void put(String userName, AuthorizationResponse response, long responseLifetime)
+    {
+        synchronized (responses)
+        {
+            responses.put(userName, new CachedResponse(response, System.currentTimeMillis() + responseLifetime));
+        }
+    }
+
+    private static AuthorizationResponse waitFor(FutureTask<AuthorizationResponse> task) throws ManifoldCFException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof ManifoldCFException)
+            {
+                throw (ManifoldCFException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new ManifoldCFException(cause.getMessage(), cause);
+        }
+    }
+
+    private static class CachedResponse
+    {
+        private final AuthorizationResponse response;
+
+        private final long expiryTime;
+
+        private CachedResponse(AuthorizationResponse response, long expiryTime)
+        {
+            this.response = response;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+}
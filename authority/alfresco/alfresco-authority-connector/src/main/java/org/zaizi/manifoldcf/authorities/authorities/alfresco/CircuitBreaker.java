@@ -0,0 +1,198 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.authorities.authorities.alfresco;
+
+import org.apache.manifoldcf.authorities.system.Logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Circuit breaker of the requests to the Alfresco endpoint of a connection, shared by all its connector instances.
+ *
+ * The breaker opens once the error rate of the last requests reaches a threshold, and rejects the requests for a
+ * while. Then a single trial request is let through: the breaker closes if it succeeds and opens again otherwise.
+ *
+ * Each allowed request gets a ticket holding the generation of the breaker, which changes whenever the breaker opens,
+ * starts a trial or closes. The results of the requests started in an older generation are ignored, so that only the
+ * trial request decides whether an open breaker closes.
+ */
+public class CircuitBreaker
+{
+    /**
+     * Number of the last requests the error rate is computed on
+     */
+    private static final int WINDOW_SIZE = 20;
+
+    /**
+     * Number of requests needed before the error rate is considered
+     */
+    private static final int MINIMUM_REQUESTS = 10;
+
+    /**
+     * Ticket of a request the breaker rejects
+     */
+    public static final long REJECTED = -1L;
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+    private final String connectionKey;
+
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+
+    private int nextResult = 0;
+
+    private int resultCount = 0;
+
+    private int failureCount = 0;
+
+    /**
+     * Time the breaker is open until, 0 when closed
+     */
+    private long openUntil = 0L;
+
+    private boolean trialRunning = false;
+
+    private long generation = 0L;
+
+    private int errorThreshold;
+
+    private long openTime;
+
+    private CircuitBreaker(String connectionKey)
+    {
+        this.connectionKey = connectionKey;
+    }
+
+    /**
+     * Return the breaker of a connection, creating it the first time
+     *
+     * @param connectionKey identifies the Alfresco endpoint of the connection
+     * @param errorThreshold the percentage of failed requests opening the breaker. 0 disables the breaker
+     * @param openTime how long the breaker stays open, in milliseconds
+     * @return
+     */
+    public static synchronized CircuitBreaker getBreaker(String connectionKey, int errorThreshold, long openTime)
+    {
+        CircuitBreaker breaker = breakers.get(connectionKey);
+        if (breaker == null)
+        {
+            breaker = new CircuitBreaker(connectionKey);
+            breakers.put(connectionKey, breaker);
+        }
+        breaker.configure(errorThreshold, openTime);
+        return breaker;
+    }
+
+    /**
+     * @return the ticket of a request that can be sent to Alfresco, to record its result with, or {@link #REJECTED}
+     */
+    public synchronized long allowRequest()
+    {
+        if (openUntil == 0L)
+        {
+            return generation;
+        }
+        if (trialRunning || System.currentTimeMillis() < openUntil)
+        {
+            return REJECTED;
+        }
+        trialRunning = true;
+        return ++generation;
+    }
+
+    /**
+     * Record the result of an allowed request
+     *
+     * @param ticket the ticket the request was allowed with
+     * @param success false if Alfresco could not answer
+     */
+    public synchronized void recordResult(long ticket, boolean success)
+    {
+        if (ticket != generation)
+        {
+            // sent before the breaker last opened, started a trial or closed
+            return;
+        }
+        if (openUntil != 0L)
+        {
+            // the trial request
+            trialRunning = false;
+            if (success)
+            {
+                close();
+            }
+            else
+            {
+                open();
+            }
+            return;
+        }
+
+        if (failures[nextResult])
+        {
+            failureCount--;
+        }
+        failures[nextResult] = !success;
+        if (!success)
+        {
+            failureCount++;
+        }
+        nextResult = (nextResult + 1) % WINDOW_SIZE;
+        if (resultCount < WINDOW_SIZE)
+        {
+            resultCount++;
+        }
+
+        if (errorThreshold > 0 && resultCount >= MINIMUM_REQUESTS
+                && failureCount * 100 >= errorThreshold * resultCount)
+        {
+            open();
+            Logging.authorityConnectors.warn("Alfresco authority: " + failureCount + " of the last " + resultCount
+                    + " requests to " + connectionKey + " failed, failing fast for " + openTime + "ms");
+        }
+    }
+
+    private synchronized void configure(int errorThreshold, long openTime)
+    {
+        this.errorThreshold = errorThreshold;
+        this.openTime = openTime;
+        if (errorThreshold <= 0 && openUntil != 0L)
+        {
+            close();
+        }
+    }
+
+    private void open()
+    {
+        openUntil = System.currentTimeMillis() + openTime;
+        generation++;
+    }
+
+    private void close()
+    {
+        openUntil = 0L;
+        generation++;
+        trialRunning = false;
+        nextResult = 0;
+        resultCount = 0;
+        failureCount = 0;
+        for (int i = 0; i < WINDOW_SIZE; i++)
+        {
+            failures[i] = false;
+        }
+    }
+
+}
@@ -63,6 +63,90 @@ function checkConfigForSave()
     editconnection.path.focus();
     return false;
   }
+  if (editconnection.cacheLifetime.value != "" && !isInteger(editconnection.cacheLifetime.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.CacheLifetimeMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.cacheLifetime.focus();
+    return false;
+  }
+  if (editconnection.cacheMaxEntries.value != "" && !isInteger(editconnection.cacheMaxEntries.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.CacheMaxEntriesMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.cacheMaxEntries.focus();
+    return false;
+  }
+  if (editconnection.cacheNotFoundLifetime.value != "" && !isInteger(editconnection.cacheNotFoundLifetime.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.CacheNotFoundLifetimeMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.cacheNotFoundLifetime.focus();
+    return false;
+  }
+  if (editconnection.cacheStaleLifetime.value != "" && !isInteger(editconnection.cacheStaleLifetime.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.CacheStaleLifetimeMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.cacheStaleLifetime.focus();
+    return false;
+  }
+  if (editconnection.breakerErrorThreshold.value != "" && !isInteger(editconnection.breakerErrorThreshold.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.BreakerErrorThresholdMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.breakerErrorThreshold.focus();
+    return false;
+  }
+  if (editconnection.breakerOpenTime.value != "" && !isInteger(editconnection.breakerOpenTime.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.BreakerOpenTimeMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.breakerOpenTime.focus();
+    return false;
+  }
+  if (editconnection.maxConnections.value != "" && !isInteger(editconnection.maxConnections.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.MaxConnectionsMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.maxConnections.focus();
+    return false;
+  }
+  if (editconnection.maxConnectionsPerRoute.value != "" && !isInteger(editconnection.maxConnectionsPerRoute.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.MaxConnectionsPerRouteMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.maxConnectionsPerRoute.focus();
+    return false;
+  }
+  if (editconnection.connectionTimeout.value != "" && !isInteger(editconnection.connectionTimeout.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.ConnectionTimeoutMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.connectionTimeout.focus();
+    return false;
+  }
+  if (editconnection.socketTimeout.value != "" && !isInteger(editconnection.socketTimeout.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.SocketTimeoutMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.socketTimeout.focus();
+    return false;
+  }
+  if (editconnection.connectionKeepAlive.value != "" && !isInteger(editconnection.connectionKeepAlive.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.ConnectionKeepAliveMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.connectionKeepAlive.focus();
+    return false;
+  }
+  if (editconnection.connectionIdleTimeout.value != "" && !isInteger(editconnection.connectionIdleTimeout.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.ConnectionIdleTimeoutMustBeAValidInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('AlfrescoAuthorityConnector.Server'))");
+    editconnection.connectionIdleTimeout.focus();
+    return false;
+  }
   return true;
 }
 // -->
@@ -0,0 +1 @@
+<#escape x as jsonUtils.encodeJSONString(x)>${results}</#escape>
\ No newline at end of file
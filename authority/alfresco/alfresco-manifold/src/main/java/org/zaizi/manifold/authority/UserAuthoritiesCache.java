@@ -0,0 +1,273 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifold.authority;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListener;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of the authorities of the users, as resolved by {@link AuthorityService#getAuthoritiesForUser(String)}.
+ *
+ * The cache keeps a bounded number of users, the least recently used being evicted first, for a limited time. The
+ * users are evicted once a transaction changing their group membership commits: a change to the membership of a user
+ * evicts that user, a change to the membership of a group or the deletion of a group evicts all the users.
+ *
+ * The cache is local to the node: in a cluster, the changes made through another node do not evict the users here,
+ * whose authorities are then served until they expire. The time to live bounds how stale they can be.
+ */
+public class UserAuthoritiesCache implements NodeServicePolicies.OnCreateChildAssociationPolicy,
+        NodeServicePolicies.OnDeleteChildAssociationPolicy, NodeServicePolicies.BeforeDeleteNodePolicy
+{
+    // Logger
+    private static final Log logger = LogFactory.getLog(UserAuthoritiesCache.class);
+
+    /**
+     * Transaction resource holding the users to evict once the transaction commits
+     */
+    private static final String PENDING_EVICTIONS = UserAuthoritiesCache.class.getName() + ".pendingEvictions";
+
+    private PolicyComponent policyComponent;
+    private NodeService nodeService;
+    private AuthorityService authorityService;
+
+    private int maxEntries = 10000;
+    private long timeToLive = 3600000L;
+
+    private Map<String, CachedAuthorities> authorities;
+
+    /**
+     * Incremented by every eviction, so that authorities resolved before an eviction are not cached after it
+     */
+    private long generation = 0L;
+
+    private final TransactionListener evictionListener = new TransactionListenerAdapter()
+    {
+        @Override
+        public void afterCommit()
+        {
+            PendingEvictions pending = AlfrescoTransactionSupport.getResource(PENDING_EVICTIONS);
+            if (pending != null)
+            {
+                evict(pending);
+            }
+        }
+    };
+
+    /**
+     * Create the cache and bind the membership change behaviours
+     */
+    public void init()
+    {
+        authorities = new LinkedHashMap<String, CachedAuthorities>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAuthorities> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+
+        policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnCreateChildAssociationPolicy.QNAME,
+                ContentModel.TYPE_AUTHORITY_CONTAINER, ContentModel.ASSOC_MEMBER, new JavaBehaviour(this,
+                        "onCreateChildAssociation", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnDeleteChildAssociationPolicy.QNAME,
+                ContentModel.TYPE_AUTHORITY_CONTAINER, ContentModel.ASSOC_MEMBER, new JavaBehaviour(this,
+                        "onDeleteChildAssociation", NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+                ContentModel.TYPE_PERSON, new JavaBehaviour(this, "beforeDeleteNode",
+                        NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME,
+                ContentModel.TYPE_AUTHORITY_CONTAINER, new JavaBehaviour(this, "beforeDeleteNode",
+                        NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Get the authorities of a user, from the cache or from the authority service
+     *
+     * @param userName
+     * @return a modifiable copy of the authorities
+     */
+    public Set<String> getAuthoritiesForUser(String userName)
+    {
+        long lookupGeneration;
+        synchronized (authorities)
+        {
+            CachedAuthorities cached = authorities.get(userName);
+            if (cached != null)
+            {
+                if (cached.expiryTime > System.currentTimeMillis())
+                {
+                    return new HashSet<String>(cached.authorities);
+                }
+                authorities.remove(userName);
+            }
+            lookupGeneration = generation;
+        }
+
+        Set<String> userAuthorities = authorityService.getAuthoritiesForUser(userName);
+
+        synchronized (authorities)
+        {
+            if (lookupGeneration == generation)
+            {
+                authorities.put(userName, new CachedAuthorities(
+                        Collections.unmodifiableSet(new HashSet<String>(userAuthorities)),
+                        System.currentTimeMillis() + timeToLive));
+            }
+        }
+        return new HashSet<String>(userAuthorities);
+    }
+
+    @Override
+    public void onCreateChildAssociation(ChildAssociationRef childAssocRef, boolean isNewNode)
+    {
+        membershipChanged(childAssocRef.getChildRef());
+    }
+
+    @Override
+    public void onDeleteChildAssociation(ChildAssociationRef childAssocRef)
+    {
+        membershipChanged(childAssocRef.getChildRef());
+    }
+
+    @Override
+    public void beforeDeleteNode(NodeRef nodeRef)
+    {
+        membershipChanged(nodeRef);
+    }
+
+    /**
+     * Plan the eviction of the users whose membership changes with an authority: the user itself, or all the users
+     * for a group
+     */
+    private void membershipChanged(NodeRef authorityRef)
+    {
+        PendingEvictions pending = AlfrescoTransactionSupport.getResource(PENDING_EVICTIONS);
+        if (pending == null)
+        {
+            pending = new PendingEvictions();
+            AlfrescoTransactionSupport.bindResource(PENDING_EVICTIONS, pending);
+            AlfrescoTransactionSupport.bindListener(evictionListener);
+        }
+        if (pending.all)
+        {
+            return;
+        }
+
+        if (nodeService.exists(authorityRef)
+                && ContentModel.TYPE_PERSON.equals(nodeService.getType(authorityRef)))
+        {
+            pending.userNames.add((String) nodeService.getProperty(authorityRef, ContentModel.PROP_USERNAME));
+        }
+        else
+        {
+            pending.all = true;
+        }
+    }
+
+    private void evict(PendingEvictions pending)
+    {
+        synchronized (authorities)
+        {
+            generation++;
+            if (pending.all)
+            {
+                authorities.clear();
+            }
+            else
+            {
+                for (String userName : pending.userNames)
+                {
+                    authorities.remove(userName);
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Evicted the authorities of " + (pending.all ? "all the users" : pending.userNames));
+        }
+    }
+
+    public void setPolicyComponent(PolicyComponent policyComponent)
+    {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setAuthorityService(AuthorityService authorityService)
+    {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * @param maxEntries the maximum number of users kept
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param timeToLive how long the authorities of a user are kept, in seconds
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        this.timeToLive = timeToLive * 1000L;
+    }
+
+    private static class CachedAuthorities
+    {
+        private final Set<String> authorities;
+        private final long expiryTime;
+
+        private CachedAuthorities(Set<String> authorities, long expiryTime)
+        {
+            this.authorities = authorities;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private static class PendingEvictions
+    {
+        private final Set<String> userNames = new HashSet<String>();
+        private boolean all = false;
+    }
+
+}
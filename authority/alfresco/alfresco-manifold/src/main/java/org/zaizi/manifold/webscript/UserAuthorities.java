@@ -14,17 +14,23 @@
  **/
 package org.zaizi.manifold.webscript;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.zaizi.manifold.authority.UserAuthoritiesCache;
+import org.springframework.extensions.surf.util.Content;
 import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptRequest;
@@ -32,6 +38,9 @@ import org.springframework.extensions.webscripts.WebScriptRequest;
 /**
  * UserAuthorities Webscript for Getting Authorities for an user
  * 
+ * The GET request answers the authorities of the userName parameter. The POST request answers the authorities of many
+ * users at once: its JSON body holds the userNames array, and the response maps every user name to its authorities.
+ * 
  * @author aayala
  * 
  */
@@ -41,13 +50,23 @@ public class UserAuthorities extends DeclarativeWebScript
     private static final Log logger = LogFactory.getLog(UserAuthorities.class);
 
     private static final String USERNAME = "userName";
+    private static final String USERNAMES = "userNames";
+    private static final String USERS = "users";
     private static final String AUTHORITIES = "authorities";
     private static final String RESULTS = "results";
 
+    private static final String BULK_METHOD = "POST";
+
     private static final String DEFAULT_AUTHORITIES = "guest";
 
-    private AuthorityService authorityService;
+    /**
+     * Maximum number of users of a bulk request
+     */
+    private static final int MAX_USERNAMES = 1000;
+
+    private UserAuthoritiesCache userAuthoritiesCache;
     private PersonService personService;
+    private TransactionService transactionService;
 
     @Override
     public Map<String, Object> executeImpl(WebScriptRequest req, Status status)
@@ -61,40 +80,106 @@ public class UserAuthorities extends DeclarativeWebScript
 
         try
         {
+            if (BULK_METHOD.equals(getDescription().getMethod()))
+            {
+                Content content = req.getContent();
+                List<String> userNames = getUserNames(new JSONObject(content.getContent()));
+                if (userNames.size() > MAX_USERNAMES)
+                {
+                    status.setCode(Status.STATUS_BAD_REQUEST);
+                    status.setMessage("At most " + MAX_USERNAMES + " user names can be requested at once");
+                    status.setRedirect(true);
+                    return model;
+                }
+                model.put(RESULTS, getAuthorities(userNames));
+                return model;
+            }
+
             String userName = req.getParameter(USERNAME);
 
             JSONObject json = new JSONObject();
-            JSONArray jsonAuths = new JSONArray();
+            json.put(AUTHORITIES, getAuthorities(userName));
+
+            model.put(RESULTS, json);
+        }
+        catch (Exception e)
+        {
+            logger.error("Error when getting authorities for user: " + e.getMessage(), e);
+            status.setCode(Status.STATUS_INTERNAL_SERVER_ERROR);
+        }
+        return model;
 
-            if (userName != null && userName.length() > 0)
+    }
+
+    /**
+     * Read the user names of a bulk request
+     */
+    private static List<String> getUserNames(JSONObject request) throws Exception
+    {
+        List<String> userNames = new ArrayList<String>();
+        JSONArray jsonUserNames = request.optJSONArray(USERNAMES);
+        if (jsonUserNames != null)
+        {
+            int len = jsonUserNames.length();
+            for (int i = 0; i < len; i++)
             {
-                if (personService.personExists(userName))
-                {
-                    Set<String> setAuths = authorityService.getAuthoritiesForUser(userName);
-                    setAuths.add(userName);
-                    jsonAuths = new JSONArray(setAuths);
-                }
-                else
+                userNames.add(jsonUserNames.getString(i));
+            }
+        }
+        return userNames;
+    }
+
+    /**
+     * Get the authorities of many users within a single read only transaction
+     */
+    private JSONObject getAuthorities(final List<String> userNames) throws Exception
+    {
+        RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+        final JSONObject users = txnHelper.doInTransaction(new RetryingTransactionCallback<JSONObject>()
+        {
+            @Override
+            public JSONObject execute() throws Throwable
+            {
+                JSONObject users = new JSONObject();
+                for (String userName : userNames)
                 {
-                    jsonAuths.put(DEFAULT_AUTHORITIES);
+                    users.put(userName, getAuthorities(userName));
                 }
+                return users;
+            }
+        }, true);
+
+        JSONObject json = new JSONObject();
+        json.put(USERS, users);
+        return json;
+    }
+
+    /**
+     * Get the authorities of a user, the user itself included, or the default authorities for unknown users
+     */
+    private JSONArray getAuthorities(String userName)
+    {
+        JSONArray jsonAuths = new JSONArray();
+
+        if (userName != null && userName.length() > 0)
+        {
+            if (personService.personExists(userName))
+            {
+                Set<String> setAuths = userAuthoritiesCache.getAuthoritiesForUser(userName);
+                setAuths.add(userName);
+                jsonAuths = new JSONArray(setAuths);
             }
             else
             {
                 jsonAuths.put(DEFAULT_AUTHORITIES);
             }
-
-            json.put(AUTHORITIES, jsonAuths);
-
-            model.put(RESULTS, json);
         }
-        catch (Exception e)
+        else
         {
-            logger.error("Error when getting authorities for user: " + e.getMessage(), e);
-            status.setCode(Status.STATUS_INTERNAL_SERVER_ERROR);
+            jsonAuths.put(DEFAULT_AUTHORITIES);
         }
-        return model;
 
+        return jsonAuths;
     }
 
     /**
@@ -104,8 +189,18 @@ public class UserAuthorities extends DeclarativeWebScript
      */
     public void setServiceRegistry(ServiceRegistry serviceRegistry)
     {
-        this.authorityService = serviceRegistry.getAuthorityService();
         this.personService = serviceRegistry.getPersonService();
+        this.transactionService = serviceRegistry.getTransactionService();
+    }
+
+    /**
+     * Set the cache of the user authorities
+     * 
+     * @param userAuthoritiesCache
+     */
+    public void setUserAuthoritiesCache(UserAuthoritiesCache userAuthoritiesCache)
+    {
+        this.userAuthoritiesCache = userAuthoritiesCache;
     }
 
 }
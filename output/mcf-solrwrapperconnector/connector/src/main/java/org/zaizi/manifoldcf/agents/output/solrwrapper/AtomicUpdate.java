@@ -0,0 +1,480 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Solr document update waiting to be sent, into which the later updates of the same document are merged so Solr
+ * receives a single update per id.
+ *
+ * Updates holding an operation map for some field are atomic updates, the others replace the whole document. Merging
+ * two atomic updates sums the increments of a field, gathers the values added to and removed from it, and keeps the
+ * last value set for it. When a later update cannot be merged, for instance an increment of a field holding a text,
+ * both updates are kept and sent in order.
+ */
+public class AtomicUpdate
+{
+    private static final String INC = "inc";
+
+    private static final String ADD = "add";
+
+    private static final String REMOVE = "remove";
+
+    private static final String SET = "set";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String id;
+
+    private boolean atomic;
+
+    /**
+     * The field values, or the {@link Operations} of the fields updated with increments, additions and removals
+     */
+    private final Map<String, Object> fields;
+
+    private AtomicUpdate(Map<String, Object> document)
+    {
+        Object idValue = document.get(SolrWrapperConnector.DOCUMENT_ID_FIELD);
+        this.id = idValue == null || idValue instanceof Map || idValue instanceof List ? null : idValue.toString();
+        this.fields = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> field : document.entrySet())
+        {
+            Object value = field.getValue();
+            if (value instanceof Map)
+            {
+                atomic = true;
+                Operations operations = Operations.from((Map<?, ?>) value);
+                if (operations != null)
+                {
+                    value = operations;
+                }
+            }
+            fields.put(field.getKey(), value);
+        }
+    }
+
+    /**
+     * Read the documents of a JSON update
+     *
+     * @param updateJSON a JSON array of documents, or a single document
+     * @return the updates, in order
+     * @throws IOException if the JSON is not a document or an array of documents
+     */
+    @SuppressWarnings("unchecked")
+    public static List<AtomicUpdate> parse(String updateJSON) throws IOException
+    {
+        JsonParser parser = JSON_FACTORY.createParser(updateJSON);
+        try
+        {
+            Object value = readValue(parser, parser.nextToken());
+            List<AtomicUpdate> updates = new ArrayList<AtomicUpdate>();
+            Collection<?> documents = value instanceof List ? (List<?>) value : Collections.singletonList(value);
+            for (Object document : documents)
+            {
+                if (!(document instanceof Map))
+                {
+                    throw new IOException("Not a JSON document : " + updateJSON);
+                }
+                updates.add(new AtomicUpdate((Map<String, Object>) document));
+            }
+            return updates;
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+
+    /**
+     * @return the id of the document, or null if the update has none
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Merge a later update of the same document into this one
+     *
+     * @param later the later update
+     * @return false if the updates cannot be merged, in which case this update is unchanged
+     */
+    public boolean merge(AtomicUpdate later)
+    {
+        if (!later.atomic)
+        {
+            // the whole document is replaced
+            atomic = false;
+            fields.clear();
+            fields.putAll(later.fields);
+            return true;
+        }
+        if (!atomic)
+        {
+            return false;
+        }
+        for (Map.Entry<String, Object> field : later.fields.entrySet())
+        {
+            Object value = field.getValue();
+            Object earlierValue = fields.get(field.getKey());
+            if (value instanceof Operations && earlierValue != null && !(earlierValue instanceof Operations)
+                    && toSetNumber(earlierValue, (Operations) value) == null)
+            {
+                return false;
+            }
+            if (value instanceof Map && !isSet((Map<?, ?>) value) && fields.containsKey(field.getKey()))
+            {
+                // an operation this class does not know about, which only applies to the earlier value
+                return false;
+            }
+        }
+        for (Map.Entry<String, Object> field : later.fields.entrySet())
+        {
+            Object value = field.getValue();
+            Object earlierValue = fields.get(field.getKey());
+            if (value instanceof Operations && earlierValue instanceof Operations)
+            {
+                ((Operations) earlierValue).merge((Operations) value);
+            }
+            else if (value instanceof Operations && earlierValue != null)
+            {
+                fields.put(field.getKey(), toSetNumber(earlierValue, (Operations) value));
+            }
+            else if (value instanceof Operations)
+            {
+                fields.put(field.getKey(), ((Operations) value).copy());
+            }
+            else
+            {
+                fields.put(field.getKey(), value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the update as a JSON document
+     *
+     * @param generator
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        generator.writeStartObject();
+        for (Map.Entry<String, Object> field : fields.entrySet())
+        {
+            generator.writeFieldName(field.getKey());
+            Object value = field.getValue();
+            if (value instanceof Operations)
+            {
+                ((Operations) value).write(generator);
+            }
+            else if (atomic && !(value instanceof Map) && !SolrWrapperConnector.DOCUMENT_ID_FIELD.equals(field.getKey()))
+            {
+                // plain values are set explicitly, so the update stays atomic whatever fields are left
+                generator.writeStartObject();
+                generator.writeFieldName(SET);
+                writeValue(generator, value);
+                generator.writeEndObject();
+            }
+            else
+            {
+                writeValue(generator, value);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return the value set after incrementing a number, or null if the operations are not a numeric increment
+     */
+    private static Object toSetNumber(Object earlierValue, Operations operations)
+    {
+        Object value = earlierValue instanceof Map && isSet((Map<?, ?>) earlierValue) ? ((Map<?, ?>) earlierValue)
+                .get(SET) : earlierValue;
+        Number number = toNumber(value);
+        if (number == null || operations.inc == null || !operations.add.isEmpty() || !operations.remove.isEmpty())
+        {
+            return null;
+        }
+        return sum(number, operations.inc);
+    }
+
+    private static boolean isSet(Map<?, ?> value)
+    {
+        return value.size() == 1 && value.containsKey(SET);
+    }
+
+    private static Number toNumber(Object value)
+    {
+        if (value instanceof Number)
+        {
+            return (Number) value;
+        }
+        if (value instanceof String)
+        {
+            try
+            {
+                return Long.valueOf((String) value);
+            }
+            catch (NumberFormatException e)
+            {
+                try
+                {
+                    return Double.valueOf((String) value);
+                }
+                catch (NumberFormatException e1)
+                {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Number sum(Number a, Number b)
+    {
+        if (a instanceof Double || a instanceof Float || a instanceof BigDecimal || b instanceof Double
+                || b instanceof Float || b instanceof BigDecimal)
+        {
+            return a.doubleValue() + b.doubleValue();
+        }
+        return a.longValue() + b.longValue();
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException
+    {
+        if (token == null)
+        {
+            throw new IOException("Unexpected end of JSON");
+        }
+        switch (token)
+        {
+        case START_OBJECT:
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String name = parser.getCurrentName();
+                object.put(name, readValue(parser, parser.nextToken()));
+            }
+            return object;
+        case START_ARRAY:
+            List<Object> array = new ArrayList<Object>();
+            JsonToken next;
+            while ((next = parser.nextToken()) != JsonToken.END_ARRAY)
+            {
+                array.add(readValue(parser, next));
+            }
+            return array;
+        case VALUE_STRING:
+            return parser.getText();
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return parser.getNumberValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw new IOException("Unexpected JSON token : " + token);
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            generator.writeNull();
+        }
+        else if (value instanceof String)
+        {
+            generator.writeString((String) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Long)
+        {
+            generator.writeNumber(((Number) value).longValue());
+        }
+        else if (value instanceof BigInteger)
+        {
+            generator.writeNumber((BigInteger) value);
+        }
+        else if (value instanceof BigDecimal)
+        {
+            generator.writeNumber((BigDecimal) value);
+        }
+        else if (value instanceof Number)
+        {
+            generator.writeNumber(((Number) value).doubleValue());
+        }
+        else if (value instanceof Collection)
+        {
+            generator.writeStartArray();
+            for (Object item : (Collection<?>) value)
+            {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Map)
+        {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                generator.writeFieldName(entry.getKey().toString());
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        }
+        else
+        {
+            throw new IOException("Unsupported JSON value type : " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * The increment, additions and removals of a field
+     */
+    private static class Operations
+    {
+        private Number inc;
+
+        private final Set<Object> add = new LinkedHashSet<Object>();
+
+        private final Set<Object> remove = new LinkedHashSet<Object>();
+
+        /**
+         * @return the operations of an operation map, or null if it holds other operations
+         */
+        static Operations from(Map<?, ?> operationMap)
+        {
+            Operations operations = new Operations();
+            for (Map.Entry<?, ?> operation : operationMap.entrySet())
+            {
+                if (INC.equals(operation.getKey()))
+                {
+                    operations.inc = toNumber(operation.getValue());
+                    if (operations.inc == null)
+                    {
+                        return null;
+                    }
+                }
+                else if (ADD.equals(operation.getKey()))
+                {
+                    operations.addValues(operation.getValue(), true);
+                }
+                else if (REMOVE.equals(operation.getKey()))
+                {
+                    operations.addValues(operation.getValue(), false);
+                }
+                else
+                {
+                    return null;
+                }
+            }
+            return operations;
+        }
+
+        Operations copy()
+        {
+            Operations copy = new Operations();
+            copy.merge(this);
+            return copy;
+        }
+
+        /**
+         * Apply later operations. A value removed then added is both removed and added, as the removals are written
+         * first.
+         */
+        void merge(Operations later)
+        {
+            if (later.inc != null)
+            {
+                inc = inc == null ? later.inc : sum(inc, later.inc);
+            }
+            for (Object value : later.remove)
+            {
+                add.remove(value);
+                remove.add(value);
+            }
+            add.addAll(later.add);
+        }
+
+        void write(JsonGenerator generator) throws IOException
+        {
+            generator.writeStartObject();
+            if (!remove.isEmpty())
+            {
+                generator.writeFieldName(REMOVE);
+                writeValue(generator, remove);
+            }
+            if (!add.isEmpty())
+            {
+                generator.writeFieldName(ADD);
+                writeValue(generator, add);
+            }
+            if (inc != null)
+            {
+                generator.writeFieldName(INC);
+                writeValue(generator, inc);
+            }
+            generator.writeEndObject();
+        }
+
+        private void addValues(Object values, boolean added)
+        {
+            Collection<?> valueList = values instanceof Collection ? (Collection<?>) values : Collections
+                    .singletonList(values);
+            for (Object value : valueList)
+            {
+                if (added)
+                {
+                    add.add(value);
+                }
+                else
+                {
+                    add.remove(value);
+                    remove.add(value);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import org.apache.manifoldcf.agents.interfaces.IOutputConnection;
+import org.apache.manifoldcf.agents.interfaces.IOutputConnector;
+import org.apache.manifoldcf.agents.interfaces.IOutputConnectorPool;
+import org.apache.manifoldcf.agents.output.BaseOutputConnector;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output connectors grabbed from the pool, released when the lease is closed. Meant for try-with-resources, so the
+ * connectors go back to the pool whatever happens while they are used.
+ *
+ * The leases keep statistics shared by all the connector instances: the number of leases, how long the connectors
+ * were held, how long grabbing them waited for the pool, and how many grabs waited long enough for the pool to be
+ * considered exhausted.
+ */
+public class ConnectorLease implements AutoCloseable
+{
+    /**
+     * Grabs waiting for longer than this, in milliseconds, are counted as pool exhaustions
+     */
+    private static final long EXHAUSTED_POOL_WAIT = 1000L;
+
+    private static final AtomicLong leaseCount = new AtomicLong();
+
+    private static final AtomicLong totalLeaseTime = new AtomicLong();
+
+    private static final AtomicLong maxLeaseTime = new AtomicLong();
+
+    private static final AtomicLong totalGrabWaitTime = new AtomicLong();
+
+    private static final AtomicLong exhaustedPoolCount = new AtomicLong();
+
+    private static final AtomicLong failedGrabCount = new AtomicLong();
+
+    private final IOutputConnectorPool outputConnectorPool;
+
+    private final IOutputConnection[] connections;
+
+    private final IOutputConnector[] connectors;
+
+    private final long leaseStartTime;
+
+    private boolean closed = false;
+
+    private ConnectorLease(IOutputConnectorPool outputConnectorPool, IOutputConnection[] connections,
+            IOutputConnector[] connectors, long leaseStartTime)
+    {
+        this.outputConnectorPool = outputConnectorPool;
+        this.connections = connections;
+        this.connectors = connectors;
+        this.leaseStartTime = leaseStartTime;
+    }
+
+    /**
+     * Grab the connector of a connection
+     *
+     * @param outputConnectorPool
+     * @param connection
+     * @return
+     * @throws ManifoldCFException
+     */
+    public static ConnectorLease grab(IOutputConnectorPool outputConnectorPool, IOutputConnection connection)
+            throws ManifoldCFException
+    {
+        long startTime = System.currentTimeMillis();
+        IOutputConnector connector;
+        try
+        {
+            connector = outputConnectorPool.grab(connection);
+        }
+        catch (ManifoldCFException e)
+        {
+            failedGrabCount.incrementAndGet();
+            throw e;
+        }
+        return new ConnectorLease(outputConnectorPool, new IOutputConnection[] { connection },
+                new IOutputConnector[] { connector }, noteGrabbed(startTime));
+    }
+
+    /**
+     * Grab the connectors of many connections at once
+     *
+     * @param outputConnectorPool
+     * @param orderingKeys the keys ordering the grabs, see {@link IOutputConnectorPool#grabMultiple}
+     * @param connections
+     * @return
+     * @throws ManifoldCFException
+     */
+    public static ConnectorLease grabMultiple(IOutputConnectorPool outputConnectorPool, String[] orderingKeys,
+            IOutputConnection[] connections) throws ManifoldCFException
+    {
+        long startTime = System.currentTimeMillis();
+        IOutputConnector[] connectors;
+        try
+        {
+            connectors = outputConnectorPool.grabMultiple(orderingKeys, connections);
+        }
+        catch (ManifoldCFException e)
+        {
+            failedGrabCount.incrementAndGet();
+            throw e;
+        }
+        return new ConnectorLease(outputConnectorPool, connections, connectors, noteGrabbed(startTime));
+    }
+
+    /**
+     * @return the connector, or the first one of a multiple lease
+     */
+    public BaseOutputConnector getConnector()
+    {
+        return (BaseOutputConnector) connectors[0];
+    }
+
+    /**
+     * @param i
+     * @return the connector of the i-th connection of the lease
+     */
+    public BaseOutputConnector getConnector(int i)
+    {
+        return (BaseOutputConnector) connectors[i];
+    }
+
+    /**
+     * Release the connectors to the pool
+     */
+    @Override
+    public void close() throws ManifoldCFException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        long leaseTime = System.currentTimeMillis() - leaseStartTime;
+        leaseCount.incrementAndGet();
+        totalLeaseTime.addAndGet(leaseTime);
+        long max = maxLeaseTime.get();
+        while (leaseTime > max && !maxLeaseTime.compareAndSet(max, leaseTime))
+        {
+            max = maxLeaseTime.get();
+        }
+        if (connectors.length == 1)
+        {
+            outputConnectorPool.release(connections[0], connectors[0]);
+        }
+        else
+        {
+            outputConnectorPool.releaseMultiple(connections, connectors);
+        }
+    }
+
+    /**
+     * @return a summary of the lease statistics since the connector was loaded
+     */
+    public static String getStatistics()
+    {
+        long leases = leaseCount.get();
+        return "leases=" + leases + ", averageLeaseTime=" + (leases == 0 ? 0 : totalLeaseTime.get() / leases)
+                + "ms, maxLeaseTime=" + maxLeaseTime.get() + "ms, totalGrabWaitTime=" + totalGrabWaitTime.get()
+                + "ms, exhaustedPool=" + exhaustedPoolCount.get() + ", failedGrabs=" + failedGrabCount.get();
+    }
+
+    /**
+     * Count the time spent waiting for the pool
+     *
+     * @return the time the lease starts at
+     */
+    private static long noteGrabbed(long grabStartTime)
+    {
+        long now = System.currentTimeMillis();
+        long waitTime = now - grabStartTime;
+        totalGrabWaitTime.addAndGet(waitTime);
+        if (waitTime >= EXHAUSTED_POOL_WAIT)
+        {
+            exhaustedPoolCount.incrementAndGet();
+        }
+        return now;
+    }
+
+}
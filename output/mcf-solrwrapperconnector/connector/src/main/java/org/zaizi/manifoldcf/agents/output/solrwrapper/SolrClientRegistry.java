@@ -0,0 +1,211 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares the Solr clients used to query and update the Solr cores directly between all the connector instances. There
+ * is one client per core URL and {@link ClientSettings}. The clients with the same settings use the same pooled
+ * connection manager, which is shut down once the last of them is released, so connections with different pool sizes
+ * or timeouts do not change each other's.
+ *
+ * Every {@link #acquire(String, ClientSettings)} must be followed by a {@link #release(String, ClientSettings)} of the
+ * same URL and settings.
+ */
+public class SolrClientRegistry
+{
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_CORE = 20;
+
+    /**
+     * In milliseconds
+     */
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 60000;
+
+    /**
+     * In milliseconds
+     */
+    public static final int DEFAULT_SOCKET_TIMEOUT = 180000;
+
+    private static final Map<ClientSettings, ClientPool> pools = new HashMap<ClientSettings, ClientPool>();
+
+    private SolrClientRegistry()
+    {
+    }
+
+    /**
+     * Return the client of a core, creating it if no one holds it
+     *
+     * @param coreURL the URL of the Solr core
+     * @param settings the connection pool sizes and timeouts of the client
+     * @return
+     */
+    public static synchronized HttpSolrClient acquire(String coreURL, ClientSettings settings)
+    {
+        ClientPool pool = pools.get(settings);
+        if (pool == null)
+        {
+            pool = new ClientPool(settings);
+            pools.put(settings, pool);
+        }
+        RegisteredClient client = pool.clients.get(coreURL);
+        if (client == null)
+        {
+            RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(settings.connectionTimeout)
+                    .setConnectionRequestTimeout(settings.connectionTimeout).setSocketTimeout(settings.socketTimeout)
+                    .build();
+            // the connection manager is closed by the registry, not by the clients
+            CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(pool.connectionManager)
+                    .setConnectionManagerShared(true).setDefaultRequestConfig(requestConfig).build();
+            client = new RegisteredClient(httpClient, new HttpSolrClient(coreURL, httpClient));
+            pool.clients.put(coreURL, client);
+        }
+        client.references++;
+        return client.solrClient;
+    }
+
+    /**
+     * Release a client returned by {@link #acquire(String, ClientSettings)}, closing it when no one holds it anymore
+     *
+     * @param coreURL the URL of the Solr core
+     * @param settings the settings the client was acquired with
+     */
+    public static synchronized void release(String coreURL, ClientSettings settings)
+    {
+        ClientPool pool = pools.get(settings);
+        RegisteredClient client = pool == null ? null : pool.clients.get(coreURL);
+        if (client == null)
+        {
+            return;
+        }
+        client.references--;
+        if (client.references > 0)
+        {
+            return;
+        }
+        pool.clients.remove(coreURL);
+        try
+        {
+            client.httpClient.close();
+        }
+        catch (IOException e)
+        {
+            Logging.connectors.debug("Error closing the Solr client of " + coreURL, e);
+        }
+        if (pool.clients.isEmpty())
+        {
+            pool.connectionManager.shutdown();
+            pools.remove(settings);
+        }
+    }
+
+    /**
+     * The connection pool sizes and timeouts of the Solr clients
+     */
+    public static final class ClientSettings
+    {
+        private final int maxConnections;
+
+        private final int maxConnectionsPerCore;
+
+        private final int connectionTimeout;
+
+        private final int socketTimeout;
+
+        /**
+         * @param maxConnections the maximum number of connections to all the cores
+         * @param maxConnectionsPerCore the maximum number of connections to a core
+         * @param connectionTimeout the connection timeout in milliseconds
+         * @param socketTimeout the socket timeout in milliseconds
+         */
+        public ClientSettings(int maxConnections, int maxConnectionsPerCore, int connectionTimeout, int socketTimeout)
+        {
+            this.maxConnections = maxConnections;
+            this.maxConnectionsPerCore = maxConnectionsPerCore;
+            this.connectionTimeout = connectionTimeout;
+            this.socketTimeout = socketTimeout;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ClientSettings))
+            {
+                return false;
+            }
+            ClientSettings other = (ClientSettings) o;
+            return maxConnections == other.maxConnections && maxConnectionsPerCore == other.maxConnectionsPerCore
+                    && connectionTimeout == other.connectionTimeout && socketTimeout == other.socketTimeout;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((maxConnections * 31 + maxConnectionsPerCore) * 31 + connectionTimeout) * 31 + socketTimeout;
+        }
+
+        @Override
+        public String toString()
+        {
+            return maxConnections + "/" + maxConnectionsPerCore + "/" + connectionTimeout + "/" + socketTimeout;
+        }
+    }
+
+    /**
+     * The clients sharing a connection manager
+     */
+    private static class ClientPool
+    {
+        private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+
+        private final Map<String, RegisteredClient> clients = new HashMap<String, RegisteredClient>();
+
+        private ClientPool(ClientSettings settings)
+        {
+            connectionManager.setMaxTotal(settings.maxConnections);
+            connectionManager.setDefaultMaxPerRoute(settings.maxConnectionsPerCore);
+        }
+    }
+
+    private static class RegisteredClient
+    {
+        private final CloseableHttpClient httpClient;
+
+        private final HttpSolrClient solrClient;
+
+        private int references = 0;
+
+        private RegisteredClient(CloseableHttpClient httpClient, HttpSolrClient solrClient)
+        {
+            this.httpClient = httpClient;
+            this.solrClient = solrClient;
+        }
+    }
+
+}
@@ -0,0 +1,699 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ContentStreamBase;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects the JSON updates of the child documents sent to a Solr core, from all the documents being indexed, and
+ * sends them as a single update request once enough of them are waiting, they take too much memory or the oldest one
+ * waited long enough. There is one batcher per core, shared by all the connector instances using it.
+ *
+ * The updates of the same document are merged by {@link AtomicUpdate}, so an entity mentioned by many documents gets
+ * one increment of its occurrences and one addition of all their ids, instead of one update per mention contending
+ * for the same document in Solr.
+ *
+ * The batcher also keeps the ids of the documents whose occurrences were decremented, so the documents left without
+ * occurrences can be deleted by id instead of searching the whole core for them. The deletions are conditional on the
+ * occurrences, so a document incremented again since it was checked is kept.
+ *
+ * Each batcher holds the Solr client of its core from {@link SolrClientRegistry} for its whole lifetime, so the client
+ * and its connection pool are not built again for every batch sent. The batchers are shared per core and client
+ * settings, so a connection with other settings gets its own client. A batcher is acquired by each connector instance
+ * using it and released on disconnect; once no instance uses it and its updates are sent, it is dropped and its client
+ * released, so the connection pool of a configuration no longer used is shut down.
+ */
+public class SolrUpdateBatcher
+{
+    public static final String DEFAULT_UPDATE_HANDLER = "/update";
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    /**
+     * Batches are sent once the JSON of their updates reaches this many characters
+     */
+    private static final int MAX_PENDING_CHARS = 4 * 1024 * 1024;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String EMPTY_OCCURRENCES_RANGE = "[* TO 0]";
+
+    /**
+     * Maximum number of documents checked by a single real-time get
+     */
+    private static final int MAX_IDS_PER_GET = 500;
+
+    /**
+     * The first full prune of a core waits for the prune interval after the class is loaded, not after every restart
+     */
+    private static final long LOAD_TIME = System.currentTimeMillis();
+
+    // the time of the last full prune of each core
+    private static final ConcurrentMap<String, Long> lastFullPruneTimes = new ConcurrentHashMap<String, Long>();
+
+    // the shared batchers by core and client settings, guarded by itself
+    private static final Map<String, SolrUpdateBatcher> batchers = new HashMap<String, SolrUpdateBatcher>();
+
+    // the key of a shared batcher, null for the batchers made by create
+    private final String key;
+
+    // the number of connector instances using a shared batcher, guarded by batchers
+    private int users = 0;
+
+    private final String coreURL;
+
+    private final SolrClientRegistry.ClientSettings clientSettings;
+
+    private final HttpSolrClient solrClient;
+
+    /**
+     * Held while a batch is sent, so the batches reach Solr in the order they were filled
+     */
+    private final Object sendLock = new Object();
+
+    // the waiting updates, in order, guarded by this
+    private List<AtomicUpdate> pendingUpdates = new ArrayList<AtomicUpdate>();
+
+    // the last waiting update of each document id, which the later updates are merged into
+    private Map<String, AtomicUpdate> updatesById = new HashMap<String, AtomicUpdate>();
+
+    private int pendingChars = 0;
+
+    private long oldestUpdateTime = 0L;
+
+    private long maxAge = 0L;
+
+    // the commitWithin time in milliseconds of the updates sent to the core, -1 for none
+    private volatile int commitWithin = -1;
+
+    private volatile String updateHandler = DEFAULT_UPDATE_HANDLER;
+
+    // whether some updates reached the core
+    private volatile boolean updated = false;
+
+    // the ids of the documents whose occurrences were decremented
+    private final Set<String> pruneCandidates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SolrUpdateBatcher(String key, String coreURL, SolrClientRegistry.ClientSettings clientSettings)
+    {
+        this.key = key;
+        this.coreURL = coreURL;
+        this.clientSettings = clientSettings;
+        this.solrClient = SolrClientRegistry.acquire(coreURL, clientSettings);
+    }
+
+    /**
+     * Acquire the shared batcher of a core, creating it on first use. It must be released by {@link #release()} once
+     * the caller is done with it.
+     * 
+     * @param coreURL the URL of the Solr core
+     * @param clientSettings the settings of the Solr client of the core
+     * @return
+     */
+    public static SolrUpdateBatcher acquire(String coreURL, SolrClientRegistry.ClientSettings clientSettings)
+    {
+        String key = coreURL + " " + clientSettings;
+        synchronized (batchers)
+        {
+            SolrUpdateBatcher batcher = batchers.get(key);
+            if (batcher == null)
+            {
+                batcher = new SolrUpdateBatcher(key, coreURL, clientSettings);
+                batchers.put(key, batcher);
+            }
+            batcher.users++;
+            return batcher;
+        }
+    }
+
+    /**
+     * Release a batcher acquired by {@link #acquire(String, SolrClientRegistry.ClientSettings)}. The last user drops
+     * the batcher if its updates are all sent, otherwise it is dropped by the flush sending them.
+     */
+    public void release()
+    {
+        synchronized (batchers)
+        {
+            users--;
+            dropIfIdle();
+        }
+    }
+
+    /**
+     * Drop the batcher and release its client if no one uses it and it has no waiting updates. Called holding the lock
+     * of the batchers.
+     */
+    private void dropIfIdle()
+    {
+        if (users <= 0 && isEmpty() && batchers.get(key) == this)
+        {
+            batchers.remove(key);
+            close();
+        }
+    }
+
+    /**
+     * Create a batcher of a core used by a single caller, not shared with the other connector instances. It must be
+     * closed once done with.
+     * 
+     * @param coreURL the URL of the Solr core
+     * @param clientSettings the settings of the Solr client of the core
+     * @return
+     */
+    public static SolrUpdateBatcher create(String coreURL, SolrClientRegistry.ClientSettings clientSettings)
+    {
+        return new SolrUpdateBatcher(null, coreURL, clientSettings);
+    }
+
+    /**
+     * Release the Solr client of a batcher made by {@link #create(String, SolrClientRegistry.ClientSettings)}. Its
+     * waiting updates are not sent.
+     */
+    public void close()
+    {
+        SolrClientRegistry.release(coreURL, clientSettings);
+    }
+
+    /**
+     * Send the batches waiting for longer than their maximum age, or all the waiting batches. Every batch is tried, the
+     * updates of the batches that could not be sent are kept for the next flush. The batchers no longer used are
+     * dropped once their updates are sent.
+     * 
+     * @param expiredOnly true to only send the batches that waited too long
+     * @throws IOException the first error sending a batch
+     * @throws SolrServerException the first error sending a batch
+     */
+    public static void flushAll(boolean expiredOnly) throws IOException, SolrServerException
+    {
+        Exception failure = null;
+        List<SolrUpdateBatcher> sharedBatchers;
+        synchronized (batchers)
+        {
+            sharedBatchers = new ArrayList<SolrUpdateBatcher>(batchers.values());
+        }
+        for (SolrUpdateBatcher batcher : sharedBatchers)
+        {
+            try
+            {
+                if (!expiredOnly || batcher.isExpired())
+                {
+                    batcher.flush();
+                }
+            }
+            catch (IOException | SolrServerException e)
+            {
+                Logging.connectors.error("Error sending the batched updates to Solr core " + batcher.coreURL, e);
+                if (failure == null)
+                {
+                    failure = e;
+                }
+            }
+        }
+        synchronized (batchers)
+        {
+            for (SolrUpdateBatcher batcher : sharedBatchers)
+            {
+                batcher.dropIfIdle();
+            }
+        }
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+        if (failure instanceof SolrServerException)
+        {
+            throw (SolrServerException) failure;
+        }
+    }
+
+    /**
+     * Add a child document update to the batch, merging it into the waiting update of the same document if any, and
+     * send the batch if it is full or too old. An error sending the batch is only logged, its updates being kept for
+     * the next flush.
+     * 
+     * @param updateJSON the update, a JSON array of documents
+     * @param maxDocuments the number of updated documents a batch is sent at
+     * @param maxAge the maximum time in milliseconds an update waits in the batch
+     * @throws IOException if the update is not a JSON array of documents
+     */
+    public void add(String updateJSON, int maxDocuments, long maxAge) throws IOException
+    {
+        add(AtomicUpdate.parse(updateJSON), updateJSON.length(), maxDocuments, maxAge);
+    }
+
+    /**
+     * Move the waiting updates to another batcher of the same core, which sends them with its own batches
+     * 
+     * @param target the batcher the updates are moved to
+     * @param maxDocuments the number of updated documents a batch of the target is sent at
+     * @param maxAge the maximum time in milliseconds an update waits in the target
+     */
+    public void transferTo(SolrUpdateBatcher target, int maxDocuments, long maxAge)
+    {
+        List<AtomicUpdate> updates;
+        int chars;
+        synchronized (this)
+        {
+            updates = pendingUpdates;
+            chars = pendingChars;
+            pendingUpdates = new ArrayList<AtomicUpdate>();
+            updatesById = new HashMap<String, AtomicUpdate>();
+            pendingChars = 0;
+        }
+        target.add(updates, chars, maxDocuments, maxAge);
+    }
+
+    private void add(List<AtomicUpdate> updates, int chars, int maxDocuments, long maxAge)
+    {
+        if (updates.isEmpty())
+        {
+            return;
+        }
+
+        boolean full;
+        synchronized (this)
+        {
+            if (pendingUpdates.isEmpty())
+            {
+                oldestUpdateTime = System.currentTimeMillis();
+            }
+            for (AtomicUpdate update : updates)
+            {
+                String id = update.getId();
+                AtomicUpdate pendingUpdate = id == null ? null : updatesById.get(id);
+                if (pendingUpdate == null || !pendingUpdate.merge(update))
+                {
+                    pendingUpdates.add(update);
+                    if (id != null)
+                    {
+                        updatesById.put(id, update);
+                    }
+                }
+            }
+            pendingChars += chars;
+            this.maxAge = maxAge;
+            full = pendingUpdates.size() >= maxDocuments || pendingChars >= MAX_PENDING_CHARS || isExpired();
+        }
+        if (full)
+        {
+            try
+            {
+                flush();
+            }
+            catch (IOException | SolrServerException e)
+            {
+                Logging.connectors.warn("SolrWrapper - Error sending the batched updates to " + coreURL
+                        + ", they are kept for the next flush", e);
+            }
+        }
+    }
+
+    /**
+     * Send the waiting updates if the batch is full or too old. Called before adding the updates of a document, so an
+     * error can be reported for the document before any of its updates is batched.
+     * 
+     * @param maxDocuments the number of updated documents a batch is sent at
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public void flushIfFull(int maxDocuments) throws IOException, SolrServerException
+    {
+        boolean full;
+        synchronized (this)
+        {
+            full = pendingUpdates.size() >= maxDocuments || pendingChars >= MAX_PENDING_CHARS || isExpired();
+        }
+        if (full)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Send the waiting updates. If Solr rejects the batch, its updates are sent one by one, so only the rejected ones
+     * are dropped. If Solr cannot be reached, the updates not sent are put back in front of the waiting ones, to be
+     * sent by the next flush.
+     * 
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public void flush() throws IOException, SolrServerException
+    {
+        synchronized (sendLock)
+        {
+            List<AtomicUpdate> batch;
+            int batchChars;
+            long batchTime;
+            synchronized (this)
+            {
+                if (pendingUpdates.isEmpty())
+                {
+                    return;
+                }
+                batch = pendingUpdates;
+                batchChars = pendingChars;
+                batchTime = oldestUpdateTime;
+                pendingUpdates = new ArrayList<AtomicUpdate>();
+                updatesById = new HashMap<String, AtomicUpdate>();
+                pendingChars = 0;
+            }
+            int count = batch.size();
+
+            try
+            {
+                send(batch);
+                Logging.connectors.debug("SolrWrapper - Sent " + count + " batched updates to " + coreURL);
+            }
+            catch (IOException | SolrServerException | RuntimeException e)
+            {
+                if (!isRejection(e))
+                {
+                    requeue(batch, batchChars, batchTime);
+                    throw toSolrServerException("Error sending " + count + " batched updates to " + coreURL, e);
+                }
+                Logging.connectors.warn("SolrWrapper - " + coreURL + " rejected a batch of " + count
+                        + " updates, sending them one by one", e);
+                sendOneByOne(batch, batchChars, batchTime);
+            }
+        }
+    }
+
+    /**
+     * Send the updates of a rejected batch one by one, dropping the ones Solr rejects. If Solr cannot be reached, the
+     * updates not sent yet are put back in the batcher.
+     */
+    private void sendOneByOne(List<AtomicUpdate> batch, int batchChars, long batchTime) throws IOException,
+            SolrServerException
+    {
+        for (int i = 0; i < batch.size(); i++)
+        {
+            AtomicUpdate update = batch.get(i);
+            try
+            {
+                send(Collections.singletonList(update));
+            }
+            catch (IOException | SolrServerException | RuntimeException e)
+            {
+                if (!isRejection(e))
+                {
+                    List<AtomicUpdate> unsent = new ArrayList<AtomicUpdate>(batch.subList(i, batch.size()));
+                    requeue(unsent, batchChars * unsent.size() / batch.size(), batchTime);
+                    throw toSolrServerException("Error sending " + unsent.size() + " batched updates to " + coreURL,
+                            e);
+                }
+                Logging.connectors.error("SolrWrapper - " + coreURL + " rejected the update of document "
+                        + update.getId() + ", dropping it", e);
+            }
+        }
+    }
+
+    /**
+     * Put updates that could not be sent back in front of the waiting ones. The waiting updates stay the ones the
+     * later updates are merged into.
+     */
+    private synchronized void requeue(List<AtomicUpdate> updates, int chars, long updateTime)
+    {
+        Map<String, AtomicUpdate> requeuedById = new HashMap<String, AtomicUpdate>();
+        for (AtomicUpdate update : updates)
+        {
+            if (update.getId() != null)
+            {
+                requeuedById.put(update.getId(), update);
+            }
+        }
+        requeuedById.putAll(updatesById);
+        updates.addAll(pendingUpdates);
+        pendingUpdates = updates;
+        updatesById = requeuedById;
+        pendingChars += chars;
+        oldestUpdateTime = updateTime;
+    }
+
+    private void send(List<AtomicUpdate> updates) throws IOException, SolrServerException
+    {
+        ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest(updateHandler);
+        ContentStreamBase.StringStream contentStream = new ContentStreamBase.StringStream(toJSON(updates));
+        contentStream.setContentType(JSON_CONTENT_TYPE);
+        updateRequest.addContentStream(contentStream);
+        if (commitWithin > 0)
+        {
+            updateRequest.setCommitWithin(commitWithin);
+        }
+        updateRequest.process(solrClient);
+        updated = true;
+    }
+
+    /**
+     * @return whether some updates of the batcher reached the core, even if others could not be sent
+     */
+    public boolean hasUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * @return the number of updated documents waiting in the batcher
+     */
+    synchronized int getPendingCount()
+    {
+        return pendingUpdates.size();
+    }
+
+    /**
+     * @return whether Solr answered that the request is invalid, so sending it again would fail the same way
+     */
+    private static boolean isRejection(Exception e)
+    {
+        Throwable cause = e instanceof SolrServerException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof SolrException)
+        {
+            int code = ((SolrException) cause).code();
+            return code >= 400 && code < 500;
+        }
+        return false;
+    }
+
+    private static SolrServerException toSolrServerException(String message, Exception e)
+    {
+        // SolrJ reports errors returned by Solr as runtime exceptions
+        return e instanceof SolrServerException ? (SolrServerException) e : new SolrServerException(message, e);
+    }
+
+    /**
+     * Set the commitWithin time of the updates and deletions sent to the core
+     * 
+     * @param commitWithin the time in milliseconds within which Solr commits them, -1 for none
+     */
+    public void setCommitWithin(int commitWithin)
+    {
+        this.commitWithin = commitWithin;
+    }
+
+    /**
+     * Set the handler the updates are sent to
+     * 
+     * @param updateHandler the path of the update handler of the core
+     */
+    public void setUpdateHandler(String updateHandler)
+    {
+        this.updateHandler = updateHandler;
+    }
+
+    /**
+     * Note that the occurrences of a document were decremented, so it may have to be deleted
+     * 
+     * @param id the id of the document
+     */
+    public void addPruneCandidate(String id)
+    {
+        pruneCandidates.add(id);
+    }
+
+    /**
+     * Delete the documents left without occurrences among the prune candidates. The waiting updates are sent first, and
+     * the occurrences are read with real-time gets, so only the documents found empty are sent for deletion. The
+     * deletion is by a query on both the ids and the occurrences, so a document incremented in between is not deleted.
+     * The candidates not checked because of an error are kept for the next prune.
+     * 
+     * @return the number of documents found empty, deleted unless they were incremented in between
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public int pruneEmptyDocuments() throws IOException, SolrServerException
+    {
+        flush();
+        List<String> candidates = new ArrayList<String>(pruneCandidates);
+        pruneCandidates.removeAll(candidates);
+        int deleted = 0;
+        int start = 0;
+        try
+        {
+            for (; start < candidates.size(); start += MAX_IDS_PER_GET)
+            {
+                List<String> emptyIds = getEmptyDocumentIds(solrClient,
+                        candidates.subList(start, Math.min(start + MAX_IDS_PER_GET, candidates.size())));
+                if (!emptyIds.isEmpty())
+                {
+                    solrClient.deleteByQuery(getEmptyDocumentsQuery(emptyIds), commitWithin);
+                    deleted += emptyIds.size();
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new SolrServerException("Error pruning the documents without occurrences from " + coreURL, e);
+        }
+        finally
+        {
+            if (start < candidates.size())
+            {
+                pruneCandidates.addAll(candidates.subList(start, candidates.size()));
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete all the documents without occurrences of the core, if the last time was long enough ago
+     * 
+     * @param interval the minimum time in milliseconds between two full prunes
+     * @return true if the core was pruned
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    public boolean pruneAllEmptyDocuments(long interval) throws IOException, SolrServerException
+    {
+        long now = System.currentTimeMillis();
+        Long lastFullPruneTime = lastFullPruneTimes.get(coreURL);
+        if (lastFullPruneTime == null)
+        {
+            lastFullPruneTimes.putIfAbsent(coreURL, LOAD_TIME);
+            lastFullPruneTime = lastFullPruneTimes.get(coreURL);
+        }
+        if (now - lastFullPruneTime < interval
+                || !lastFullPruneTimes.replace(coreURL, lastFullPruneTime, now))
+        {
+            return false;
+        }
+        try
+        {
+            solrClient.deleteByQuery(SolrWrapperConnector.OCCURRENCES_FIELD + ":" + EMPTY_OCCURRENCES_RANGE,
+                    commitWithin);
+        }
+        catch (RuntimeException e)
+        {
+            throw new SolrServerException("Error pruning the documents without occurrences from " + coreURL, e);
+        }
+        return true;
+    }
+
+    /**
+     * @return the query matching the documents of the given ids which have no occurrences left
+     */
+    static String getEmptyDocumentsQuery(List<String> ids)
+    {
+        StringBuilder query = new StringBuilder(SolrWrapperConnector.DOCUMENT_ID_FIELD).append(":(");
+        for (int i = 0; i < ids.size(); i++)
+        {
+            if (i > 0)
+            {
+                query.append(" OR ");
+            }
+            query.append(ClientUtils.escapeQueryChars(ids.get(i)));
+        }
+        return query.append(") AND ").append(SolrWrapperConnector.OCCURRENCES_FIELD).append(':')
+                .append(EMPTY_OCCURRENCES_RANGE).toString();
+    }
+
+    /**
+     * @return the ids of the documents with no occurrences left
+     */
+    private static List<String> getEmptyDocumentIds(HttpSolrClient solrClient, List<String> ids)
+            throws IOException, SolrServerException
+    {
+        SolrQuery getQuery = new SolrQuery();
+        getQuery.setRequestHandler("/get");
+        getQuery.set("id", ids.toArray(new String[ids.size()]));
+        getQuery.setFields(SolrWrapperConnector.DOCUMENT_ID_FIELD, SolrWrapperConnector.OCCURRENCES_FIELD);
+        List<String> emptyIds = new ArrayList<String>();
+        for (SolrDocument d : solrClient.query(getQuery, SolrRequest.METHOD.POST).getResults())
+        {
+            Object id = d.getFieldValue(SolrWrapperConnector.DOCUMENT_ID_FIELD);
+            Object occurrences = d.getFieldValue(SolrWrapperConnector.OCCURRENCES_FIELD);
+            if (id != null && occurrences instanceof Number && ((Number) occurrences).longValue() <= 0)
+            {
+                emptyIds.add(id.toString());
+            }
+        }
+        return emptyIds;
+    }
+
+    private synchronized boolean isEmpty()
+    {
+        return pendingUpdates.isEmpty();
+    }
+
+    private synchronized boolean isExpired()
+    {
+        return !pendingUpdates.isEmpty() && System.currentTimeMillis() - oldestUpdateTime >= maxAge;
+    }
+
+    private static String toJSON(List<AtomicUpdate> updates) throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+        try
+        {
+            generator.writeStartArray();
+            for (AtomicUpdate update : updates)
+            {
+                update.write(generator);
+            }
+            generator.writeEndArray();
+        }
+        finally
+        {
+            generator.close();
+        }
+        return writer.toString();
+    }
+
+}
@@ -17,11 +17,11 @@
  **/
 package org.zaizi.manifoldcf.agents.output.solrwrapper;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
 import org.apache.manifoldcf.agents.interfaces.IOutputConnection;
 import org.apache.manifoldcf.agents.interfaces.IOutputConnectionManager;
-import org.apache.manifoldcf.agents.interfaces.IOutputConnector;
 import org.apache.manifoldcf.agents.interfaces.IOutputConnectorPool;
 import org.apache.manifoldcf.agents.interfaces.IOutputNotifyActivity;
 import org.apache.manifoldcf.agents.interfaces.IOutputRemoveActivity;
@@ -40,23 +40,39 @@ import org.apache.manifoldcf.core.interfaces.VersionContext;
 import org.apache.manifoldcf.crawler.system.Logging;
 import org.apache.manifoldcf.ui.beans.ThreadContext;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.json.JSONArray;
+import org.zaizi.manifoldcf.agents.output.solrwrapper.activity.BufferedOutputAddActivity;
 import org.zaizi.manifoldcf.agents.output.solrwrapper.activity.EmptyOutputAddActivity;
+import org.zaizi.manifoldcf.agents.output.solrwrapper.utility.CommitPolicy;
 import org.zaizi.manifoldcf.agents.output.solrwrapper.utility.IndexNames;
 import org.zaizi.manifoldcf.agents.output.solrwrapper.utility.JSONRepositoryDocumentSerializer;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the SolrWrapper connector. This Indexer is able to recgnize different type of documents and send them to the
@@ -100,6 +116,11 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
      */
     public final static String JOB_COMPLETE_ACTIVITY = "output notification";
 
+    /**
+     * Commit activity, recording the time spent committing a core
+     */
+    public final static String COMMIT_ACTIVITY = "index commit";
+
     public static final String OCCURRENCES_FIELD = "occurrences";
 
     public static final String DOC_IDS_FIELD = "doc_ids";
@@ -116,12 +137,140 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
 
     public static final String CONNECTORS_FIELD = "solrConnectors";
 
+    public static final String CONCURRENT_DISPATCH_FIELD = "concurrentDispatch";
+
+    public static final String ENTITY_CONCURRENCY_FIELD = "entityIndexConcurrency";
+
+    public static final String ENTITY_TYPE_CONCURRENCY_FIELD = "entityTypeIndexConcurrency";
+
+    public static final int DEFAULT_ENTITY_CONCURRENCY = 4;
+
+    public static final int DEFAULT_ENTITY_TYPE_CONCURRENCY = 2;
+
+    public static final String BATCH_CHILDREN_FIELD = "batchChildUpdates";
+
+    public static final String CHILD_BATCH_SIZE_FIELD = "childBatchSize";
+
+    public static final String CHILD_BATCH_MAX_AGE_FIELD = "childBatchMaxAge";
+
+    public static final int DEFAULT_CHILD_BATCH_SIZE = 500;
+
+    /**
+     * In milliseconds
+     */
+    public static final int DEFAULT_CHILD_BATCH_MAX_AGE = 5000;
+
+    public static final String FULL_PRUNE_INTERVAL_FIELD = "fullPruneInterval";
+
+    /**
+     * In hours, 0 to never run the full prune
+     */
+    public static final int DEFAULT_FULL_PRUNE_INTERVAL = 24;
+
+    public static final String PRIMARY_COMMIT_POLICY_FIELD = "primaryCommitPolicy";
+
+    public static final String ENTITY_COMMIT_POLICY_FIELD = "entityCommitPolicy";
+
+    public static final String ENTITY_TYPE_COMMIT_POLICY_FIELD = "entityTypeCommitPolicy";
+
+    public static final String ENTITY_COMMIT_WITHIN_FIELD = "entityCommitWithin";
+
+    public static final String ENTITY_TYPE_COMMIT_WITHIN_FIELD = "entityTypeCommitWithin";
+
+    /**
+     * In milliseconds
+     */
+    public static final int DEFAULT_COMMIT_WITHIN = 60000;
+
+    public static final String SOLR_MAX_CONNECTIONS_FIELD = "solrMaxConnections";
+
+    public static final String SOLR_MAX_CONNECTIONS_PER_CORE_FIELD = "solrMaxConnectionsPerCore";
+
+    public static final String SOLR_CONNECTION_TIMEOUT_FIELD = "solrConnectionTimeout";
+
+    public static final String SOLR_SOCKET_TIMEOUT_FIELD = "solrSocketTimeout";
+
+    /**
+     * Number of threads sending child documents, shared by all the connector instances
+     */
+    private static final int DISPATCH_THREADS = 32;
+
+    private static final ThreadPoolExecutor dispatchExecutor = createDispatchExecutor();
+
+    /**
+     * The documents whose children were removed but not the primary document yet, by primary core and document URI. A
+     * retried removal of these documents skips their children, whose occurrences were already decremented.
+     */
+    private static final Set<String> childrenRemovedDocuments = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     public static final String PRIMARY_DOCUMENT_URI = "uri";
 
     public static final String SMLT_ENTITIES = "smlt_entities";
 
     private static final String SMLT_ENTITY_TYPES = "smlt_entity_types";
 
+    /**
+     * Maximum number of primary documents fetched by a single real-time get
+     */
+    private static final int MAX_IDS_PER_GET = 500;
+
+    /**
+     * How long the resolved output connections are reused before being loaded again, so the changes made to the Solr
+     * connections are eventually picked up
+     */
+    private static final long CONNECTIONS_REFRESH_INTERVAL = 60000L;
+
+    /**
+     * How long a document is retried later when the batched child updates cannot be sent, and how long it is retried
+     * for before failing
+     */
+    private static final long BATCH_RETRY_INTERVAL = 300000L;
+
+    private static final long BATCH_RETRY_TIMEOUT = 3L * 3600000L;
+
+    /**
+     * Parameters of the wrapped Solr connections used when updating their cores directly
+     */
+    private static final String WRAPPED_UPDATE_HANDLER_PARAM = "Server update handler";
+
+    private static final String WRAPPED_USER_ID_PARAM = "User ID";
+
+    /**
+     * The output connection of each index, loaded on first use after connecting. Null when not loaded.
+     */
+    private Map<IndexNames, IOutputConnection> cachedConnections = null;
+
+    /**
+     * The connection selections the cached connections were loaded for
+     */
+    private String cachedConnectionsKey = null;
+
+    private long cachedConnectionsTime = 0L;
+
+    /**
+     * The Solr clients acquired from the {@link SolrClientRegistry} by this instance, per core URL, released on
+     * disconnect
+     */
+    private final Map<String, HttpSolrClient> solrClients = new HashMap<String, HttpSolrClient>();
+
+    /**
+     * The connection pool sizes and timeouts of the Solr clients, from the configuration
+     */
+    private SolrClientRegistry.ClientSettings clientSettings = null;
+
+    /**
+     * The shared update batchers acquired by this instance, per core URL, released on disconnect
+     */
+    private final Map<String, SolrUpdateBatcher> batchers = new HashMap<String, SolrUpdateBatcher>();
+
+    /**
+     * The pool handle of the output connectors, made once per thread context
+     */
+    private IOutputConnectorPool outputConnectorPool = null;
+
+    private IThreadContext outputConnectorPoolContext = null;
+
     /**
      * Constructor.
      */
@@ -129,6 +278,25 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     {
     }
 
+    private static ThreadPoolExecutor createDispatchExecutor()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60L,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "SolrWrapper dispatch " + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Return the list of activities that this connector supports (i.e. writes into the log).
      * 
@@ -137,7 +305,7 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     @Override
     public String[] getActivitiesList()
     {
-        return new String[] { INGEST_ACTIVITY, REMOVE_ACTIVITY, JOB_COMPLETE_ACTIVITY };
+        return new String[] { INGEST_ACTIVITY, REMOVE_ACTIVITY, JOB_COMPLETE_ACTIVITY, COMMIT_ACTIVITY };
     }
 
     /**
@@ -150,6 +318,16 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     public void connect(ConfigParams configParameters)
     {
         super.connect(configParameters);
+        // the connections are loaded on first use, as there is no thread context yet
+        invalidateConnectors();
+        releaseSolrClients();
+        releaseBatchers();
+        clientSettings = new SolrClientRegistry.ClientSettings(
+                getPositiveIntParameter(SOLR_MAX_CONNECTIONS_FIELD, SolrClientRegistry.DEFAULT_MAX_CONNECTIONS),
+                getPositiveIntParameter(SOLR_MAX_CONNECTIONS_PER_CORE_FIELD,
+                        SolrClientRegistry.DEFAULT_MAX_CONNECTIONS_PER_CORE),
+                getPositiveIntParameter(SOLR_CONNECTION_TIMEOUT_FIELD, SolrClientRegistry.DEFAULT_CONNECTION_TIMEOUT),
+                getPositiveIntParameter(SOLR_SOCKET_TIMEOUT_FIELD, SolrClientRegistry.DEFAULT_SOCKET_TIMEOUT));
     }
 
     /**
@@ -158,9 +336,38 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     @Override
     public void disconnect() throws ManifoldCFException
     {
+        // the batched child updates are kept in memory only, so they are sent before the agent stops
+        try
+        {
+            SolrUpdateBatcher.flushAll(false);
+        }
+        catch (IOException | SolrServerException e)
+        {
+            Logging.connectors.error("SolrWrapper - Error sending the batched child updates on disconnect", e);
+        }
+        invalidateConnectors();
+        releaseSolrClients();
+        releaseBatchers();
         super.disconnect();
     }
 
+    /**
+     * Send the batched child updates that waited too long
+     */
+    @Override
+    public void poll() throws ManifoldCFException
+    {
+        super.poll();
+        try
+        {
+            SolrUpdateBatcher.flushAll(true);
+        }
+        catch (IOException | SolrServerException e)
+        {
+            // already logged, the updates are kept for the next poll
+        }
+    }
+
     /**
      * Set up a session
      */
@@ -180,17 +387,17 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
         {
             StringBuilder result = new StringBuilder();
             getSession();
+            // always check the current connections
+            invalidateConnectors();
             Map<IndexNames, IOutputConnection> index2connector = this.getConnectors();
             for (IndexNames index : index2connector.keySet())
             {
                 IOutputConnection outputConnection = index2connector.get(index);
 
-                IOutputConnectorPool outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
-                IOutputConnector outputConnector = outputConnectorPool.grab(outputConnection);
-
-                result.append("[" + index + "]" + outputConnector.check() + ", ");
-
-                outputConnectorPool.release(outputConnection, outputConnector);
+                try (ConnectorLease lease = ConnectorLease.grab(getOutputConnectorPool(), outputConnection))
+                {
+                    result.append("[" + index + "]" + lease.getConnector().check() + ", ");
+                }
             }
             return result.toString();
         }
@@ -222,10 +429,10 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
 
         Map<IndexNames, IOutputConnection> index2connector = this.getConnectors();
         IOutputConnection iOutputConnection = index2connector.get(IndexNames.PRIMARY_INDEX);
-        IOutputConnectorPool outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
-        BaseOutputConnector outputConnector = (BaseOutputConnector) outputConnectorPool.grab(iOutputConnection);
-        outputDescription = outputConnector.getPipelineDescription(spec);
-        outputConnectorPool.release(iOutputConnection, outputConnector);
+        try (ConnectorLease lease = ConnectorLease.grab(getOutputConnectorPool(), iOutputConnection))
+        {
+            outputDescription = lease.getConnector().getPipelineDescription(spec);
+        }
 
         return outputDescription;
     }
@@ -233,8 +440,6 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     /**
      * Remove a document using the connector. Note that the last outputDescription is included, since it may be
      * necessary for the connector to use such information to know how to properly remove the document.
-     * <p/>
-     * --TO DO --
      * 
      * @param documentURI is the URI of the document. The URI is presumed to be the unique identifier which the output
      *            data store will use to process and serve the document. This URI is constructed by the repository
@@ -244,52 +449,164 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
      * @param activities is the handle to an object that the implementer of an output connector may use to perform
      *            operations, such as logging processing activity.
      */
-    
-    public void removeDocument(String documentURI, VersionContext outputDescription, IOutputRemoveActivity activities)
+    @Override
+    public void removeDocument(String documentURI, String outputDescription, IOutputRemoveActivity activities)
+            throws ManifoldCFException, ServiceInterruption
+    {
+        removeDocuments(new String[] { documentURI }, new String[] { outputDescription }, activities);
+    }
+
+    /**
+     * Remove many documents, resolving the children of all of them with a single lookup of the primary index. The
+     * children are removed first, then the primary documents.
+     * 
+     * @param documentURIs the URIs of the documents to remove
+     * @param outputDescriptions the last output description strings of the documents, in the same order
+     * @param activities
+     * @throws ManifoldCFException
+     * @throws ServiceInterruption
+     */
+    public void removeDocuments(String[] documentURIs, String[] outputDescriptions, IOutputRemoveActivity activities)
             throws ManifoldCFException, ServiceInterruption
     {
-        Logging.connectors.info("SolrWrapper - Starting removing doc : " + documentURI);
+        if (documentURIs.length == 1)
+        {
+            Logging.connectors.info("SolrWrapper - Starting removing doc : " + documentURIs[0]);
+        }
+        else
+        {
+            Logging.connectors.info("SolrWrapper - Starting removing " + documentURIs.length + " docs");
+        }
 
         Map<IndexNames, IOutputConnection> index2connector = this.getConnectors();
         List<IndexNames> orderedIndexList = getOrderedIndexes();
-        IOutputConnectorPool outputConnectorPool = null;
-        outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
-        // Primary Index Connector
+        // Primary Index Connection
         IOutputConnection primaryConnection = index2connector.get(IndexNames.PRIMARY_INDEX);
-        BaseOutputConnector primaryConnector = (BaseOutputConnector) outputConnectorPool.grab(primaryConnection);
 
+        String primaryCoreURL = getSolrCoreURL(primaryConnection.getConfigParams());
+        List<String> childrenToRemove = new ArrayList<String>();
+        for (String documentURI : documentURIs)
+        {
+            if (!childrenRemovedDocuments.contains(primaryCoreURL + " " + documentURI))
+            {
+                childrenToRemove.add(documentURI);
+            }
+        }
+        Map<String, SolrDocument> primaryDocuments = childrenToRemove.isEmpty() ? new HashMap<String, SolrDocument>()
+                : this.retrieveChildrenFromSolr(childrenToRemove, primaryConnection.getConfigParams());
+
+        // the removal updates of the children go to the update batches of their cores, merged per child. Unless the
+        // child updates are batched, each core receives a single update for all the documents, sent before the
+        // primary documents are removed. Once a core took some of the updates, the document is not retried anymore,
+        // which would decrement the children of that core twice: the updates not sent are batched instead.
+        boolean batching = isBatchingChildren();
+        int childBatchSize = getPositiveIntParameter(CHILD_BATCH_SIZE_FIELD, DEFAULT_CHILD_BATCH_SIZE);
+        long childBatchMaxAge = getPositiveIntParameter(CHILD_BATCH_MAX_AGE_FIELD, DEFAULT_CHILD_BATCH_MAX_AGE);
+        int batchSize = batching ? childBatchSize : Integer.MAX_VALUE;
+        long batchMaxAge = batching ? childBatchMaxAge : Long.MAX_VALUE;
+        boolean childrenUpdated = false;
         for (IndexNames index : orderedIndexList)
         {
             IOutputConnection outputConnection = index2connector.get(index);
-            BaseOutputConnector outputConnector = null;
-
-            try
+            if (outputConnection == null)
             {
-                outputConnector = (BaseOutputConnector) outputConnectorPool.grab(outputConnection);
+                Logging.connectors.error("Error getting the connector for Index :" + index);
+                continue;
             }
-            catch (ManifoldCFException e)
+            ConfigParams configuration = outputConnection.getConfigParams();
+            String childType = index == IndexNames.ENTITY_INDEX ? SMLT_ENTITIES : SMLT_ENTITY_TYPES;
+            boolean removeDocURI = index == IndexNames.ENTITY_INDEX;
+
+            if (!canUpdateDirectly(configuration))
             {
-                Logging.connectors.error("Error getting the connector for Index :" + index, e);
+                childrenUpdated |= removeChildrenThroughConnector(documentURIs, outputDescriptions,
+                        primaryDocuments, childType, removeDocURI, outputConnection, childrenUpdated);
                 continue;
             }
 
-            switch (index)
+            SolrUpdateBatcher batcher = getBatcher(index, configuration);
+            if (batching)
             {
-            case ENTITY_INDEX:
-                removeChildren(documentURI, outputDescription, primaryConnector, outputConnector, SMLT_ENTITIES, true);
-            case ENTITY_TYPE_INDEX:
-                removeChildren(documentURI, outputDescription, primaryConnector, outputConnector, SMLT_ENTITY_TYPES,
-                        false);
+                if (!childrenUpdated)
+                {
+                    flushIfFull(batcher, batchSize);
+                }
+                for (int i = 0; i < documentURIs.length; i++)
+                {
+                    List<String> childrenEntities = getChildrenIds(primaryDocuments.get(documentURIs[i]), childType);
+                    removeChildren(documentURIs[i], batcher, batcher, childrenEntities, removeDocURI, batchSize,
+                            batchMaxAge);
+                }
+                childrenUpdated = true;
+                continue;
+            }
 
+            // the removals of this call are kept apart from the batched updates, so they are all sent, or none
+            SolrUpdateBatcher removalBatcher = SolrUpdateBatcher.create(getSolrCoreURL(configuration),
+                    clientSettings);
+            try
+            {
+                configureBatcher(removalBatcher, index, configuration);
+                for (int i = 0; i < documentURIs.length; i++)
+                {
+                    List<String> childrenEntities = getChildrenIds(primaryDocuments.get(documentURIs[i]), childType);
+                    removeChildren(documentURIs[i], removalBatcher, batcher, childrenEntities, removeDocURI,
+                            batchSize, batchMaxAge);
+                }
+                flushRemovals(removalBatcher, batcher, childrenUpdated, childBatchSize, childBatchMaxAge, index);
+                childrenUpdated = true;
+            }
+            finally
+            {
+                removalBatcher.close();
             }
-            outputConnectorPool.release(outputConnection, outputConnector);
+        }
 
+        for (String documentURI : childrenToRemove)
+        {
+            childrenRemovedDocuments.add(primaryCoreURL + " " + documentURI);
+        }
+        try (ConnectorLease primaryLease = ConnectorLease.grab(getOutputConnectorPool(), primaryConnection))
+        {
+            for (int i = 0; i < documentURIs.length; i++)
+            {
+                primaryLease.getConnector().removeDocument(documentURIs[i], outputDescriptions[i], activities);
+                childrenRemovedDocuments.remove(primaryCoreURL + " " + documentURIs[i]);
+                activities.recordActivity(null, REMOVE_ACTIVITY, null, documentURIs[i], "OK", null);
+            }
         }
-        
-        primaryConnector.removeDocument(documentURI, outputDescription.getVersionString(), activities);
-        outputConnectorPool.release(primaryConnection, primaryConnector);
+    }
 
-        activities.recordActivity(null, REMOVE_ACTIVITY, null, documentURI, "OK", null);
+    /**
+     * Send the removal updates of a core collected apart from the batched updates. If they cannot all be sent, the
+     * removal is retried when no child core was updated yet. Otherwise a retry would decrement the children updated
+     * so far twice, so the updates not sent are moved to the shared batcher of the core, to be sent by its next flush.
+     * 
+     * @param removalBatcher the batcher of the removal updates of the core
+     * @param batcher the shared batcher of the core
+     * @param childrenUpdated true if some child core already took updates of the removed documents
+     * @param batchSize the number of updated documents the shared batches are sent at
+     * @param batchMaxAge the maximum time in milliseconds an update waits in the shared batches
+     * @param index
+     * @throws ServiceInterruption if no child was updated yet
+     */
+    static void flushRemovals(SolrUpdateBatcher removalBatcher, SolrUpdateBatcher batcher, boolean childrenUpdated,
+            int batchSize, long batchMaxAge, IndexNames index) throws ServiceInterruption
+    {
+        try
+        {
+            removalBatcher.flush();
+        }
+        catch (IOException | SolrServerException e)
+        {
+            if (!childrenUpdated && !removalBatcher.hasUpdated())
+            {
+                throw batchInterruption("Error deleting the children from Index :" + index, e);
+            }
+            Logging.connectors.warn("SolrWrapper - Error deleting the children from Index :" + index
+                    + ", the removals not sent are batched", e);
+            removalBatcher.transferTo(batcher, batchSize, batchMaxAge);
+        }
     }
 
     /**
@@ -306,99 +623,223 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     }
 
     /**
-     * Removes the children of the current primaryDocument . To retrieve the children entities we use the primaryIndex
-     * Connector as those information are in the primaryIndex independently of which index are we going to purge.
+     * Removes the children of the current primaryDocument, by adding the decrements of their occurrences to the
+     * update batch of their core
      * 
      * @param documentURI
-     * @param outputDescription
-     * @param outputConnector
-     * @param childType
+     * @param batcher the update batcher the removal updates are added to
+     * @param pruneBatcher the shared update batcher of the core of the children, keeping the prune candidates
+     * @param childrenEntities the ids of the children, read from the primary index
+     * @param removeDocURI true to also remove the documentURI from the doc_ids of the children
+     * @param batchSize
+     * @param batchMaxAge
      */
-    private void removeChildren(String documentURI, VersionContext outputDescription,
-            BaseOutputConnector primaryIndexConnector, BaseOutputConnector outputConnector, String childType,
-            boolean removeDocURI)
+    private void removeChildren(String documentURI, SolrUpdateBatcher batcher, SolrUpdateBatcher pruneBatcher,
+            List<String> childrenEntities, boolean removeDocURI, int batchSize, long batchMaxAge)
     {
-        List<String> childrenEntities;
-        childrenEntities = this.retrieveChildrenFromSolr(documentURI, primaryIndexConnector.getConfiguration(),
-                childType);
+        for (String currentId : childrenEntities)
+        {
+            try
+            {
+                JSONArray removalUpdateJSON = JSONRepositoryDocumentSerializer.createAtomicRemovalJSON(currentId,
+                        documentURI, removeDocURI);
+                batcher.add(removalUpdateJSON.toString(), batchSize, batchMaxAge);
+                pruneBatcher.addPruneCandidate(currentId);
+            }
+            catch (Exception e)
+            {
+                Logging.connectors.error("Error deleting child doc from : " + currentId, e);
+                continue;
+            }
+        }
+    }
 
-        if (childrenEntities != null)
+    /**
+     * Removes the children of the primary documents by sending each removal update through the connector of their
+     * index, for the cores which cannot be updated directly. If the connector asks for a retry once some children were
+     * updated, the remaining removals are dropped, as a retry would decrement the updated children twice.
+     * 
+     * @param childrenUpdated true if some child core already took updates of the removed documents
+     * @return true if some children were updated
+     * @throws ManifoldCFException
+     * @throws ServiceInterruption if the connector of the index asks for the removal to be retried before any child
+     *             was updated
+     */
+    private boolean removeChildrenThroughConnector(String[] documentURIs, String[] outputDescriptions,
+            Map<String, SolrDocument> primaryDocuments, String childType, boolean removeDocURI,
+            IOutputConnection outputConnection, boolean childrenUpdated) throws ManifoldCFException,
+            ServiceInterruption
+    {
+        boolean updated = false;
+        try (ConnectorLease lease = ConnectorLease.grab(getOutputConnectorPool(), outputConnection))
         {
-            for (String currentId : childrenEntities)
+            for (int i = 0; i < documentURIs.length; i++)
             {
-                try
+                // the job specification is not known on removal, the removal updates do not depend on it
+                VersionContext outputDescription = new VersionContext(outputDescriptions[i],
+                        outputConnection.getConfigParams(), new Specification());
+                for (String currentId : getChildrenIds(primaryDocuments.get(documentURIs[i]), childType))
                 {
-                    JSONArray removalUpdateJSON = JSONRepositoryDocumentSerializer.createAtomicRemovalJSON(currentId,
-                            documentURI, removeDocURI);
-                    RepositoryDocument removalUpdateRepoDoc = JSONRepositoryDocumentSerializer.createRepoDocFromJSON(
-                            currentId, removalUpdateJSON.toString());
+                    try
+                    {
+                        JSONArray removalUpdateJSON = JSONRepositoryDocumentSerializer.createAtomicRemovalJSON(
+                                currentId, documentURIs[i], removeDocURI);
+                        RepositoryDocument removalUpdateRepoDoc = JSONRepositoryDocumentSerializer
+                                .createRepoDocFromJSON(currentId, removalUpdateJSON.toString());
+                        lease.getConnector().addOrReplaceDocumentWithException(currentId, outputDescription,
+                                removalUpdateRepoDoc, null, new EmptyOutputAddActivity());
+                        updated = true;
+                    }
+                    catch (ServiceInterruption e)
+                    {
+                        if (!childrenUpdated && !updated)
+                        {
+                            throw e;
+                        }
+                        Logging.connectors.error("Error deleting the children of : " + documentURIs[i]
+                                + ", dropping the removals not sent", e);
+                        return true;
+                    }
+                    catch (Exception e)
+                    {
+                        Logging.connectors.error("Error deleting child doc from : " + currentId, e);
+                    }
+                }
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Returns from the primary core the children entities and entity types of primary documents. The documents are
+     * fetched with real-time gets of many ids at once, restricted to the children fields.
+     * 
+     * @param documentURIs
+     * @param configuration the configuration of the primary index connector
+     * @return the primary documents found, by documentURI
+     * @throws ServiceInterruption if the primary core could not be read, as the children of the documents would be
+     *             left with occurrences they no longer have
+     */
+    private Map<String, SolrDocument> retrieveChildrenFromSolr(List<String> documentURIs, ConfigParams configuration)
+            throws ServiceInterruption
+    {
+        Map<String, SolrDocument> primaryDocuments = new HashMap<String, SolrDocument>();
+        HttpSolrClient solrServer = getHttpSolrServer(configuration);
+
+        for (int start = 0; start < documentURIs.size(); start += MAX_IDS_PER_GET)
+        {
+            List<String> ids = documentURIs.subList(start, Math.min(start + MAX_IDS_PER_GET, documentURIs.size()));
+            SolrQuery getQuery = new SolrQuery();
+            getQuery.setRequestHandler("/get");
+            // one id parameter per document, as document URIs may hold commas
+            getQuery.set("id", ids.toArray(new String[ids.size()]));
+            getQuery.setFields(DOCUMENT_ID_FIELD, SMLT_ENTITIES, SMLT_ENTITY_TYPES);
 
-                    outputConnector.addOrReplaceDocumentWithException(currentId, outputDescription, removalUpdateRepoDoc,
-                            "authorityNameString", new EmptyOutputAddActivity()); // check the authorityNameString
+            try
+            {
+                // posted, as the ids may not fit in a URL
+                QueryResponse getResponse = solrServer.query(getQuery, SolrRequest.METHOD.POST);
+                SolrDocumentList results = getResponse.getResults();
+                for (SolrDocument d : results)
+                {
+                    Object id = d.getFieldValue(DOCUMENT_ID_FIELD);
+                    if (id != null)
+                    {
+                        primaryDocuments.put(id.toString(), d);
+                    }
+                    else if (ids.size() == 1)
+                    {
+                        primaryDocuments.put(ids.get(0), d);
+                    }
                 }
-                catch (Exception e)
+            }
+            catch (IOException | SolrServerException | SolrException e)
+            {
+                throw batchInterruption("Error retrieving the children of " + ids.size() + " documents", e);
+            }
+        }
+        return primaryDocuments;
+    }
+
+    /**
+     * @return the ids held by a children field of a primary document, empty if there is no such document
+     */
+    private static List<String> getChildrenIds(SolrDocument primaryDocument, String field)
+    {
+        List<String> childrenIds = new ArrayList<String>();
+        if (primaryDocument != null)
+        {
+            Collection<Object> values = primaryDocument.getFieldValues(field);
+            if (values != null)
+            {
+                for (Object value : values)
                 {
-                    Logging.connectors.error("Error deleting child doc from : " + currentId, e);
-                    continue;
+                    childrenIds.add(value.toString());
                 }
             }
         }
-       
+        return childrenIds;
     }
 
     /**
-     * Returns from the Entity core all the children entities of a specific primary document
+     * Return the Solr Server instance from the configurations of a Connector. The instance is shared, and must not be
+     * closed.
      * 
-     * ATTENTION : This can be improved accessing with GET only the documentURI doc, then retrieving or entity types or
-     * entities ID ( that are there with SMLT fields)
-     * 
-     * @param documentURI
      * @param configuration
      * @return
      */
-    private List<String> retrieveChildrenFromSolr(String documentURI, ConfigParams configuration, String field)
+    private HttpSolrClient getHttpSolrServer(ConfigParams configuration)
     {
-        QueryResponse getResponse;
-        SolrQuery getQuery;
-        List<String> childrenIds = new ArrayList<String>();
-        SolrDocumentList results = new SolrDocumentList();
-
-        HttpSolrClient solrServer = getHttpSolrServer(configuration);
-
-        getQuery = new SolrQuery();
-        getQuery.setRequestHandler("/get");
-        getQuery.set("ids", documentURI);
-
-        try
+        String coreURL = getSolrCoreURL(configuration);
+        synchronized (solrClients)
         {
-            getResponse = solrServer.query(getQuery);
-            results = getResponse.getResults();
-            if (results.size() > 0)
+            HttpSolrClient solrClient = solrClients.get(coreURL);
+            if (solrClient == null)
             {
-                SolrDocument d = results.get(0);
-                childrenIds = (List<String>) d.getFieldValue(field);
+                solrClient = SolrClientRegistry.acquire(coreURL, clientSettings);
+                solrClients.put(coreURL, solrClient);
             }
-
+            return solrClient;
         }
-        catch (SolrServerException e)
-        {
-            Logging.connectors.error("Error retrieving children for : " + documentURI, e);
+    }
 
-        }
-        finally
+    /**
+     * Release the Solr clients acquired by this instance
+     */
+    private void releaseSolrClients()
+    {
+        synchronized (solrClients)
         {
-            return childrenIds;
+            for (String coreURL : solrClients.keySet())
+            {
+                SolrClientRegistry.release(coreURL, clientSettings);
+            }
+            solrClients.clear();
         }
+    }
 
+    /**
+     * Release the update batchers acquired by this instance
+     */
+    private void releaseBatchers()
+    {
+        synchronized (batchers)
+        {
+            for (SolrUpdateBatcher batcher : batchers.values())
+            {
+                batcher.release();
+            }
+            batchers.clear();
+        }
     }
 
     /**
-     * Return the Solr Server instance from the configurations of a Connector
+     * Return the URL of the Solr core from the configurations of a Connector
      * 
      * @param configuration
      * @return
      */
-    private HttpSolrClient getHttpSolrServer(ConfigParams configuration)
+    private static String getSolrCoreURL(ConfigParams configuration)
     {
         String serverProtocol = configuration.getParameter("Server protocol");
         String serverName = configuration.getParameter("Server name");
@@ -408,7 +849,7 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
 
         String httpSolrServerUrl = serverProtocol + "://" + serverName + ":" + serverPort + "/" + webapp + "/"
                 + serverCore;
-        return new HttpSolrClient(httpSolrServerUrl);
+        return httpSolrServerUrl;
     }
 
     /**
@@ -429,92 +870,442 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
      */
     @Override
     public int addOrReplaceDocumentWithException(String documentURI, VersionContext outputDescription, RepositoryDocument document,
-            String authorityNameString, IOutputAddActivity activities) throws ManifoldCFException, ServiceInterruption
+            String authorityNameString, IOutputAddActivity activities) throws ManifoldCFException, ServiceInterruption,
+            IOException
     {
-        boolean documentAcceptance = true;
         Logging.connectors.info("SolrWrapper - Starting Semantic Info Indexing" + documentURI);
         Map<IndexNames, IOutputConnection> index2connector = this.getConnectors();
         Map<IndexNames, List<RepositoryDocument>> index2documents = JSONRepositoryDocumentSerializer.parseJSONChildStructures(
                 documentURI, document);
 
-        for (IndexNames index : index2connector.keySet())
+        // the status of the document is the one of its primary document
+        int status;
+        if (isBatchingChildren())
         {
-            IOutputConnection outputConnection = index2connector.get(index);
-
-            IOutputConnectorPool outputConnectorPool = null;
-            BaseOutputConnector outputConnector = null;
-            try
-            {
-                outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
-                outputConnector = (BaseOutputConnector) outputConnectorPool.grab(outputConnection);
-            }
-            catch (ManifoldCFException e)
-            {
-                Logging.connectors.error("Error getting the connector for Index :" + index, e);
-                continue;
-            }
+            status = addBatched(documentURI, outputDescription, authorityNameString, activities, index2connector,
+                    index2documents);
+        }
+        else
+        {
+            Integer concurrentStatus = isConcurrentDispatch() ? addConcurrently(documentURI, outputDescription,
+                    authorityNameString, activities, index2connector, index2documents) : null;
+            status = concurrentStatus != null ? concurrentStatus : addSequentially(documentURI, outputDescription,
+                    authorityNameString, activities, index2connector, index2documents);
+        }
+        activities.recordActivity(null, INGEST_ACTIVITY, new Long(document.getBinaryLength()), documentURI,
+                status == DOCUMENTSTATUS_ACCEPTED ? "OK" : "REJECTED", null);
+        return status;
+    }
 
-            List<RepositoryDocument> repositoryDocuments = index2documents.get(index);
-            
-            //check if the document being indexed is the primary document if yes, 
-            //send it with the documentURI passed to SolrWrapper as id
-            if (index == IndexNames.PRIMARY_INDEX)
-            {
-                if (repositoryDocuments != null)
+    /**
+     * Send the primary document, then the documents of each child index in turn if it was accepted
+     * 
+     * @return the status of the primary document
+     */
+    private int addSequentially(String documentURI, VersionContext outputDescription, String authorityNameString,
+            IOutputAddActivity activities, Map<IndexNames, IOutputConnection> index2connector,
+            Map<IndexNames, List<RepositoryDocument>> index2documents) throws ManifoldCFException,
+            ServiceInterruption, IOException
+    {
+        int status = addPrimaryDocument(documentURI, outputDescription,
+                index2documents.get(IndexNames.PRIMARY_INDEX), authorityNameString, activities,
+                index2connector.get(IndexNames.PRIMARY_INDEX));
+        if (status != DOCUMENTSTATUS_ACCEPTED)
+        {
+            return status;
+        }
+
+        for (IndexNames index : index2connector.keySet())
+        {
+            if (index == IndexNames.PRIMARY_INDEX)
+            {
+                continue;
+            }
+            IOutputConnection outputConnection = index2connector.get(index);
+
+            try (ConnectorLease lease = grabOrLog(index, outputConnection))
+            {
+                if (lease == null)
+                {
+                    continue;
+                }
+                //documents from entity,entityType indexes
+                addChildDocuments(index, documentURI, outputDescription, index2documents.get(index),
+                        authorityNameString, activities, lease.getConnector());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Send the primary document on this thread while the child documents are sent on the dispatch threads, each index
+     * using up to its configured number of connectors. The connectors are grabbed and released, and the activities
+     * recorded, on this thread as they need its thread context. If the primary document is rejected or fails, the
+     * children not started yet are skipped, and the outcome of the primary document is returned or thrown once the
+     * started ones are done.
+     * 
+     * @return the status of the primary document, or null if the connectors could not be grabbed, and the documents
+     *         have to be sent sequentially
+     * @throws ManifoldCFException if interrupted
+     */
+    private Integer addConcurrently(final String documentURI, final VersionContext outputDescription,
+            final String authorityNameString, IOutputAddActivity activities,
+            Map<IndexNames, IOutputConnection> index2connector,
+            Map<IndexNames, List<RepositoryDocument>> index2documents) throws ManifoldCFException,
+            ServiceInterruption, IOException
+    {
+        if (index2connector.containsValue(null))
+        {
+            return null;
+        }
+
+        // split the children of each index between as many connectors as the index allows
+        List<IOutputConnection> connections = new ArrayList<IOutputConnection>();
+        List<IndexNames> shareIndexes = new ArrayList<IndexNames>();
+        List<List<RepositoryDocument>> shares = new ArrayList<List<RepositoryDocument>>();
+        connections.add(index2connector.get(IndexNames.PRIMARY_INDEX));
+        for (IndexNames index : index2connector.keySet())
+        {
+            List<RepositoryDocument> repositoryDocuments = index2documents.get(index);
+            if (index == IndexNames.PRIMARY_INDEX || repositoryDocuments == null || repositoryDocuments.isEmpty())
+            {
+                continue;
+            }
+            int shareCount = Math.min(getIndexConcurrency(index), repositoryDocuments.size());
+            int firstShare = shares.size();
+            for (int i = 0; i < shareCount; i++)
+            {
+                connections.add(index2connector.get(index));
+                shareIndexes.add(index);
+                shares.add(new ArrayList<RepositoryDocument>());
+            }
+            for (int i = 0; i < repositoryDocuments.size(); i++)
+            {
+                shares.get(firstShare + i % shareCount).add(repositoryDocuments.get(i));
+            }
+        }
+
+        IOutputConnection[] connectionArray = connections.toArray(new IOutputConnection[connections.size()]);
+        String[] orderingKeys = new String[connectionArray.length];
+        for (int i = 0; i < connectionArray.length; i++)
+        {
+            orderingKeys[i] = connectionArray[i].getName();
+        }
+        ConnectorLease lease;
+        try
+        {
+            // grabbing all the connectors at once cannot deadlock with other threads doing the same
+            lease = ConnectorLease.grabMultiple(getOutputConnectorPool(), orderingKeys, connectionArray);
+        }
+        catch (ManifoldCFException e)
+        {
+            if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+            {
+                throw e;
+            }
+            Logging.connectors.error("Error getting the connectors for concurrent dispatch, sending sequentially", e);
+            return null;
+        }
+
+        final BufferedOutputAddActivity childActivities = new BufferedOutputAddActivity();
+        final AtomicBoolean abandoned = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(shares.size());
+        boolean interrupted = false;
+        int status = DOCUMENTSTATUS_REJECTED;
+        try
+        {
+            for (int i = 0; i < shares.size(); i++)
+            {
+                final IndexNames index = shareIndexes.get(i);
+                final List<RepositoryDocument> share = shares.get(i);
+                final BaseOutputConnector outputConnector = lease.getConnector(i + 1);
+                dispatchExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            if (!abandoned.get())
+                            {
+                                addChildDocuments(index, documentURI, outputDescription, share, authorityNameString,
+                                        childActivities, outputConnector);
+                            }
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+
+            status = addPrimaryDocument(documentURI, outputDescription,
+                    index2documents.get(IndexNames.PRIMARY_INDEX), authorityNameString, activities,
+                    lease.getConnector(0));
+        }
+        finally
+        {
+            if (status != DOCUMENTSTATUS_ACCEPTED)
+            {
+                abandoned.set(true);
+            }
+            // the connectors cannot be released while the dispatch threads still use them
+            while (true)
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                    abandoned.set(true);
+                }
+            }
+            lease.close();
+        }
+        if (interrupted)
+        {
+            throw new ManifoldCFException("Interrupted while dispatching the child documents of " + documentURI,
+                    ManifoldCFException.INTERRUPTED);
+        }
+        childActivities.replay(activities);
+        return status;
+    }
+
+    /**
+     * Send the primary document, then add the child documents to the update batches of their cores if it was accepted
+     * 
+     * @return the status of the primary document
+     */
+    private int addBatched(String documentURI, VersionContext outputDescription, String authorityNameString,
+            IOutputAddActivity activities, Map<IndexNames, IOutputConnection> index2connector,
+            Map<IndexNames, List<RepositoryDocument>> index2documents) throws ManifoldCFException,
+            ServiceInterruption, IOException
+    {
+        int batchSize = getPositiveIntParameter(CHILD_BATCH_SIZE_FIELD, DEFAULT_CHILD_BATCH_SIZE);
+        int batchMaxAge = getPositiveIntParameter(CHILD_BATCH_MAX_AGE_FIELD, DEFAULT_CHILD_BATCH_MAX_AGE);
+
+        // the full batches are sent before anything of the document, so it can be retried when Solr is unreachable
+        // without its child updates being counted twice
+        for (IndexNames index : index2connector.keySet())
+        {
+            IOutputConnection outputConnection = index2connector.get(index);
+            if (index != IndexNames.PRIMARY_INDEX && outputConnection != null
+                    && canUpdateDirectly(outputConnection.getConfigParams()))
+            {
+                flushIfFull(getBatcher(index, outputConnection.getConfigParams()), batchSize);
+            }
+        }
+
+        int status = addPrimaryDocument(documentURI, outputDescription,
+                index2documents.get(IndexNames.PRIMARY_INDEX), authorityNameString, activities,
+                index2connector.get(IndexNames.PRIMARY_INDEX));
+        if (status != DOCUMENTSTATUS_ACCEPTED)
+        {
+            return status;
+        }
+
+        for (IndexNames index : index2connector.keySet())
+        {
+            IOutputConnection outputConnection = index2connector.get(index);
+            List<RepositoryDocument> repositoryDocuments = index2documents.get(index);
+            if (index == IndexNames.PRIMARY_INDEX)
+            {
+                continue;
+            }
+            if (repositoryDocuments != null && outputConnection != null
+                    && !canUpdateDirectly(outputConnection.getConfigParams()))
+            {
+                try (ConnectorLease lease = grabOrLog(index, outputConnection))
+                {
+                    if (lease != null)
+                    {
+                        addChildDocuments(index, documentURI, outputDescription, repositoryDocuments,
+                                authorityNameString, activities, lease.getConnector());
+                    }
+                }
+            }
+            else if (repositoryDocuments != null && outputConnection != null)
+            {
+                SolrUpdateBatcher batcher = getBatcher(index, outputConnection.getConfigParams());
+                for (RepositoryDocument d : repositoryDocuments)
                 {
-                    RepositoryDocument d = repositoryDocuments.get(0);
                     try
                     {
-                        Logging.connectors.info("\n the repo doc being proccessed by Solrwrapper : " + documentURI);
-                        int acceptance = outputConnector.addOrReplaceDocumentWithException(documentURI, outputDescription, d,
-                                authorityNameString, activities);
-                        if (acceptance == DOCUMENTSTATUS_REJECTED)
-                            Logging.connectors.error("Error Ingesting Child Document : Rejected 468- " + documentURI);
-                        else
-                            Logging.connectors.info(" Child Document : Accepted - " + documentURI);
+                        batcher.add(IOUtils.toString(d.getBinaryStream()), batchSize, batchMaxAge);
                     }
                     catch (Exception e)
                     {
                         Logging.connectors.error("Error in adding documents in the Index :  " + index
                                 + " for Parent Document :" + documentURI, e);
-                        continue;
                     }
-
                 }
             }
-            else
-            {//documents from entity,entityType indexes
-                if (repositoryDocuments != null)
+            else if (outputConnection == null)
+            {
+                Logging.connectors.error("Error getting the connector for Index :" + index);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Send the primary document through a connector grabbed from the primary connection
+     * 
+     * @return the status of the primary document
+     */
+    private int addPrimaryDocument(String documentURI, VersionContext outputDescription,
+            List<RepositoryDocument> repositoryDocuments, String authorityNameString, IOutputAddActivity activities,
+            IOutputConnection outputConnection) throws ManifoldCFException, ServiceInterruption, IOException
+    {
+        if (outputConnection == null)
+        {
+            throw new ManifoldCFException("Error getting the connector for Index :" + IndexNames.PRIMARY_INDEX);
+        }
+        try (ConnectorLease lease = ConnectorLease.grab(getOutputConnectorPool(), outputConnection))
+        {
+            return addPrimaryDocument(documentURI, outputDescription, repositoryDocuments, authorityNameString,
+                    activities, lease.getConnector());
+        }
+    }
+
+    /**
+     * Send the primary document with the documentURI passed to SolrWrapper as id. The errors of the primary connector
+     * are passed on, so the document is retried or failed as the primary connector asks.
+     * 
+     * @return the status of the primary document, accepted if there is none
+     */
+    private int addPrimaryDocument(String documentURI, VersionContext outputDescription,
+            List<RepositoryDocument> repositoryDocuments, String authorityNameString, IOutputAddActivity activities,
+            BaseOutputConnector outputConnector) throws ManifoldCFException, ServiceInterruption, IOException
+    {
+        if (repositoryDocuments == null)
+        {
+            return DOCUMENTSTATUS_ACCEPTED;
+        }
+        RepositoryDocument d = repositoryDocuments.get(0);
+        Logging.connectors.info("\n the repo doc being proccessed by Solrwrapper : " + documentURI);
+        int acceptance = outputConnector.addOrReplaceDocumentWithException(documentURI, outputDescription, d,
+                authorityNameString, activities);
+        if (acceptance == DOCUMENTSTATUS_REJECTED)
+            Logging.connectors.error("Error Ingesting Primary Document : Rejected - " + documentURI);
+        else
+            Logging.connectors.info(" Primary Document : Accepted - " + documentURI);
+        return acceptance;
+    }
+
+    /**
+     * Send the documents of the entity or entityType index, each with its own id
+     */
+    private void addChildDocuments(IndexNames index, String documentURI, VersionContext outputDescription,
+            List<RepositoryDocument> repositoryDocuments, String authorityNameString, IOutputAddActivity activities,
+            BaseOutputConnector outputConnector)
+    {
+        if (repositoryDocuments != null)
+        {
+            for (RepositoryDocument d : repositoryDocuments)
+            {
+                try
                 {
-                    for (RepositoryDocument d : repositoryDocuments)
-                    {
-                        try
-                        {
-                            String id = "";
-                            if (d.getFieldAsStrings(DOCUMENT_ID_FIELD) != null)
-                                id = d.getFieldAsStrings(DOCUMENT_ID_FIELD)[0];
-                            Logging.connectors.info("\n the repo doc being proccessed by Solrwrapper : " + id);
-                            int acceptance = outputConnector.addOrReplaceDocumentWithException(id, outputDescription, d,
-                                    authorityNameString, activities);
-                            if (acceptance == DOCUMENTSTATUS_REJECTED)
-                                Logging.connectors.error("Error Ingesting Child Document : Rejected 468- " + id);
-                            else
-                                Logging.connectors.info(" Child Document : Accepted - " + id);
-                        }
-                        catch (Exception e)
-                        {
-                            Logging.connectors.error("Error in adding documents in the Index :  " + index
-                                    + " for Parent Document :" + documentURI, e);
-                            continue;
-                        }
-                    }
+                    String id = "";
+                    if (d.getFieldAsStrings(DOCUMENT_ID_FIELD) != null)
+                        id = d.getFieldAsStrings(DOCUMENT_ID_FIELD)[0];
+                    Logging.connectors.info("\n the repo doc being proccessed by Solrwrapper : " + id);
+                    int acceptance = outputConnector.addOrReplaceDocumentWithException(id, outputDescription, d,
+                            authorityNameString, activities);
+                    if (acceptance == DOCUMENTSTATUS_REJECTED)
+                        Logging.connectors.error("Error Ingesting Child Document : Rejected 468- " + id);
+                    else
+                        Logging.connectors.info(" Child Document : Accepted - " + id);
+                }
+                catch (Exception e)
+                {
+                    Logging.connectors.error("Error in adding documents in the Index :  " + index
+                            + " for Parent Document :" + documentURI, e);
+                    continue;
                 }
             }
-            
-            outputConnectorPool.release(outputConnection, outputConnector);
         }
-        activities.recordActivity(null, INGEST_ACTIVITY, new Long(document.getBinaryLength()), documentURI, "OK", null);
-        return DOCUMENTSTATUS_ACCEPTED;
+    }
+
+    /**
+     * @return true if the child documents are sent on the dispatch threads
+     */
+    private boolean isConcurrentDispatch()
+    {
+        return Boolean.parseBoolean(params.getParameter(CONCURRENT_DISPATCH_FIELD));
+    }
+
+    /**
+     * @return the pool of the output connectors, through a handle made once per thread context
+     */
+    private IOutputConnectorPool getOutputConnectorPool() throws ManifoldCFException
+    {
+        if (outputConnectorPool == null || outputConnectorPoolContext != super.currentContext)
+        {
+            outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
+            outputConnectorPoolContext = super.currentContext;
+        }
+        return outputConnectorPool;
+    }
+
+    /**
+     * Grab the connector of an index, logging the failures
+     * 
+     * @return the lease, or null if the connector could not be grabbed
+     */
+    private ConnectorLease grabOrLog(IndexNames index, IOutputConnection outputConnection)
+    {
+        try
+        {
+            return ConnectorLease.grab(getOutputConnectorPool(), outputConnection);
+        }
+        catch (ManifoldCFException e)
+        {
+            Logging.connectors.error("Error getting the connector for Index :" + index, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the child documents are sent to Solr in batches
+     */
+    private boolean isBatchingChildren()
+    {
+        return Boolean.parseBoolean(params.getParameter(BATCH_CHILDREN_FIELD));
+    }
+
+    private int getPositiveIntParameter(String name, int defaultValue)
+    {
+        return getIntParameter(name, defaultValue, 1);
+    }
+
+    private int getIntParameter(String name, int defaultValue, int minimum)
+    {
+        try
+        {
+            int value = Integer.parseInt(params.getParameter(name));
+            return value >= minimum ? value : defaultValue;
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the maximum number of connectors sending the documents of a child index at the same time
+     */
+    private int getIndexConcurrency(IndexNames index)
+    {
+        if (index == IndexNames.ENTITY_INDEX)
+        {
+            return getPositiveIntParameter(ENTITY_CONCURRENCY_FIELD, DEFAULT_ENTITY_CONCURRENCY);
+        }
+        return getPositiveIntParameter(ENTITY_TYPE_CONCURRENCY_FIELD, DEFAULT_ENTITY_TYPE_CONCURRENCY);
     }
 
     /**
@@ -528,43 +1319,213 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     @Override
     public void noteJobComplete(IOutputNotifyActivity activities) throws ManifoldCFException, ServiceInterruption
     {
+        // the batched child updates are sent before the wrapped connectors commit
+        try
+        {
+            SolrUpdateBatcher.flushAll(false);
+        }
+        catch (IOException | SolrServerException e)
+        {
+            throw batchInterruption("Error sending the batched child updates", e);
+        }
 
         Map<IndexNames, IOutputConnection> index2connector = this.getConnectors();
         for (IndexNames index : index2connector.keySet())
         {
             IOutputConnection outputConnection = index2connector.get(index);
 
-            IOutputConnectorPool outputConnectorPool = OutputConnectorPoolFactory.make(super.currentContext);
-            IOutputConnector outputConnector = outputConnectorPool.grab(outputConnection);
-            outputConnector.noteJobComplete(activities);
+            try (ConnectorLease lease = ConnectorLease.grab(getOutputConnectorPool(), outputConnection))
+            {
+                lease.getConnector().noteJobComplete(activities);
+            }
             try
             {
-                if (index != IndexNames.PRIMARY_INDEX)
-                    this.removeEmptyOccurrences(outputConnector.getConfiguration());
+                if (index != IndexNames.PRIMARY_INDEX && canUpdateDirectly(outputConnection.getConfigParams()))
+                    this.pruneEmptyOccurrences(index, outputConnection.getConfigParams());
             }
             catch (Exception e)
             {
                 Logging.connectors.error("Error pruning the index from 0 occurrences children", e);
             }
-
-            outputConnectorPool.release(outputConnection, outputConnector);
+            commit(index, outputConnection.getConfigParams(), activities);
         }
         // remove 0 occurrences entities and entity types
         activities.recordActivity(null, JOB_COMPLETE_ACTIVITY, null, "", "OK", null);
+        Logging.connectors.info("SolrWrapper - Output connector leases : " + ConnectorLease.getStatistics());
     }
 
     /**
-     * Simply run a pruning query removing Solr Documents with 0 occurrences
+     * Remove the Solr Documents left with 0 occurrences by the removals, and once per full prune interval run a pruning
+     * query over the whole core. The deletions are committed following the commit policy of the core.
      * 
+     * @param index
      * @param configuration
      * @throws IOException
      * @throws SolrServerException
      */
-    private void removeEmptyOccurrences(ConfigParams configuration) throws IOException, SolrServerException
+    private void pruneEmptyOccurrences(IndexNames index, ConfigParams configuration) throws IOException,
+            SolrServerException
     {
-        HttpSolrClient httpSolrServer = this.getHttpSolrServer(configuration);
-        httpSolrServer.deleteByQuery(OCCURRENCES_FIELD + ":" + 0);
-        httpSolrServer.commit();
+        SolrUpdateBatcher batcher = getBatcher(index, configuration);
+        int deleted = batcher.pruneEmptyDocuments();
+        Logging.connectors.debug("SolrWrapper - Deleted " + deleted + " documents found without occurrences");
+
+        long fullPruneInterval = getIntParameter(FULL_PRUNE_INTERVAL_FIELD, DEFAULT_FULL_PRUNE_INTERVAL, 0) * 3600000L;
+        if (fullPruneInterval > 0 && batcher.pruneAllEmptyDocuments(fullPruneInterval))
+        {
+            Logging.connectors.info("SolrWrapper - Pruned the whole index from 0 occurrences children");
+        }
+    }
+
+    /**
+     * Commit a core at job end if its commit policy asks for it, recording the time spent in the commit
+     * 
+     * @param index
+     * @param configuration
+     * @param activities
+     * @throws ManifoldCFException
+     */
+    private void commit(IndexNames index, ConfigParams configuration, IOutputNotifyActivity activities)
+            throws ManifoldCFException
+    {
+        CommitPolicy commitPolicy = getCommitPolicy(index);
+        if (commitPolicy != CommitPolicy.SOFT_COMMIT && commitPolicy != CommitPolicy.HARD_COMMIT)
+        {
+            return;
+        }
+        String coreURL = getSolrCoreURL(configuration);
+        long startTime = System.currentTimeMillis();
+        try
+        {
+            HttpSolrClient solrServer = getHttpSolrServer(configuration);
+            if (commitPolicy == CommitPolicy.SOFT_COMMIT)
+            {
+                solrServer.commit(true, true, true);
+            }
+            else
+            {
+                solrServer.commit();
+            }
+            long commitTime = System.currentTimeMillis() - startTime;
+            Logging.connectors.info("SolrWrapper - " + commitPolicy.getValue() + " commit of Index :" + index
+                    + " took " + commitTime + " ms");
+            activities.recordActivity(startTime, COMMIT_ACTIVITY, null, coreURL, "OK", commitPolicy.getValue());
+        }
+        catch (Exception e)
+        {
+            Logging.connectors.error("Error committing the Index :" + index, e);
+            activities.recordActivity(startTime, COMMIT_ACTIVITY, null, coreURL, "ERROR", e.getMessage());
+        }
+    }
+
+    /**
+     * Send the waiting updates of a batcher if its batch is full or too old
+     * 
+     * @throws ServiceInterruption if the batch could not be sent
+     */
+    private static void flushIfFull(SolrUpdateBatcher batcher, int batchSize) throws ServiceInterruption
+    {
+        try
+        {
+            batcher.flushIfFull(batchSize);
+        }
+        catch (IOException | SolrServerException e)
+        {
+            throw batchInterruption("Error sending the batched child updates", e);
+        }
+    }
+
+    /**
+     * @return an interruption retrying the document or job later, as Solr could not be reached to read or update the
+     *         children
+     */
+    private static ServiceInterruption batchInterruption(String message, Exception e)
+    {
+        Logging.connectors.warn("SolrWrapper - " + message + ", retrying later", e);
+        long currentTime = System.currentTimeMillis();
+        return new ServiceInterruption(message + ": " + e.getMessage(), e, currentTime + BATCH_RETRY_INTERVAL,
+                currentTime + BATCH_RETRY_TIMEOUT, -1, false);
+    }
+
+    /**
+     * Return the update batcher of the core of an index, set to the commitWithin time of its commit policy
+     * 
+     * @param index
+     * @param configuration the configuration of the connector of the index
+     * @return
+     */
+    private SolrUpdateBatcher getBatcher(IndexNames index, ConfigParams configuration)
+    {
+        String coreURL = getSolrCoreURL(configuration);
+        SolrUpdateBatcher batcher;
+        synchronized (batchers)
+        {
+            batcher = batchers.get(coreURL);
+            if (batcher == null)
+            {
+                batcher = SolrUpdateBatcher.acquire(coreURL, clientSettings);
+                batchers.put(coreURL, batcher);
+            }
+        }
+        configureBatcher(batcher, index, configuration);
+        return batcher;
+    }
+
+    /**
+     * Set a batcher to the commitWithin time of the commit policy of its index, and to the update handler of the
+     * wrapped connection
+     */
+    private void configureBatcher(SolrUpdateBatcher batcher, IndexNames index, ConfigParams configuration)
+    {
+        batcher.setCommitWithin(getCommitPolicy(index) == CommitPolicy.COMMIT_WITHIN ? getCommitWithin(index) : -1);
+        String updateHandler = configuration.getParameter(WRAPPED_UPDATE_HANDLER_PARAM);
+        batcher.setUpdateHandler(StringUtils.isEmpty(updateHandler) ? SolrUpdateBatcher.DEFAULT_UPDATE_HANDLER
+                : updateHandler);
+    }
+
+    /**
+     * The direct updates do not authenticate, so the cores of the wrapped connections with credentials are only
+     * updated through their connectors
+     * 
+     * @param configuration the configuration of the connector of an index
+     * @return true if the core of the index can be updated directly
+     */
+    private static boolean canUpdateDirectly(ConfigParams configuration)
+    {
+        return StringUtils.isEmpty(configuration.getParameter(WRAPPED_USER_ID_PARAM));
+    }
+
+    /**
+     * @return the commit policy of the core of an index. The primary core is committed by its connector by default,
+     *         the child cores within {@link #DEFAULT_COMMIT_WITHIN}. The primary documents are only sent by its
+     *         connector, so the primary core cannot be committed within a time.
+     */
+    private CommitPolicy getCommitPolicy(IndexNames index)
+    {
+        switch (index)
+        {
+        case ENTITY_INDEX:
+            return CommitPolicy.fromValue(params.getParameter(ENTITY_COMMIT_POLICY_FIELD), CommitPolicy.COMMIT_WITHIN);
+        case ENTITY_TYPE_INDEX:
+            return CommitPolicy.fromValue(params.getParameter(ENTITY_TYPE_COMMIT_POLICY_FIELD),
+                    CommitPolicy.COMMIT_WITHIN);
+        default:
+            CommitPolicy primaryPolicy = CommitPolicy.fromValue(params.getParameter(PRIMARY_COMMIT_POLICY_FIELD),
+                    CommitPolicy.NONE);
+            return primaryPolicy == CommitPolicy.COMMIT_WITHIN ? CommitPolicy.NONE : primaryPolicy;
+        }
+    }
+
+    /**
+     * @return the commitWithin time of the core of a child index
+     */
+    private int getCommitWithin(IndexNames index)
+    {
+        if (index == IndexNames.ENTITY_INDEX)
+        {
+            return getPositiveIntParameter(ENTITY_COMMIT_WITHIN_FIELD, DEFAULT_COMMIT_WITHIN);
+        }
+        return getPositiveIntParameter(ENTITY_TYPE_COMMIT_WITHIN_FIELD, DEFAULT_COMMIT_WITHIN);
     }
 
     @Override
@@ -627,6 +1588,44 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
                 variableContext.getParameter(PRIMARY_INDEX_SELECTION_FIELD));
         parameters.setParameter(ENTITY_SELECTION_FIELD, variableContext.getParameter(ENTITY_SELECTION_FIELD));
         parameters.setParameter(ENTITY_TYPE_SELECTION_FIELD, variableContext.getParameter(ENTITY_TYPE_SELECTION_FIELD));
+        String concurrentDispatch = variableContext.getParameter(CONCURRENT_DISPATCH_FIELD);
+        parameters.setParameter(CONCURRENT_DISPATCH_FIELD, Boolean.toString("true".equals(concurrentDispatch)));
+        String entityConcurrency = variableContext.getParameter(ENTITY_CONCURRENCY_FIELD);
+        if (entityConcurrency != null)
+            parameters.setParameter(ENTITY_CONCURRENCY_FIELD, entityConcurrency);
+        String entityTypeConcurrency = variableContext.getParameter(ENTITY_TYPE_CONCURRENCY_FIELD);
+        if (entityTypeConcurrency != null)
+            parameters.setParameter(ENTITY_TYPE_CONCURRENCY_FIELD, entityTypeConcurrency);
+        String batchChildren = variableContext.getParameter(BATCH_CHILDREN_FIELD);
+        parameters.setParameter(BATCH_CHILDREN_FIELD, Boolean.toString("true".equals(batchChildren)));
+        String childBatchSize = variableContext.getParameter(CHILD_BATCH_SIZE_FIELD);
+        if (childBatchSize != null)
+            parameters.setParameter(CHILD_BATCH_SIZE_FIELD, childBatchSize);
+        String childBatchMaxAge = variableContext.getParameter(CHILD_BATCH_MAX_AGE_FIELD);
+        if (childBatchMaxAge != null)
+            parameters.setParameter(CHILD_BATCH_MAX_AGE_FIELD, childBatchMaxAge);
+        for (String field : new String[] { PRIMARY_COMMIT_POLICY_FIELD, ENTITY_COMMIT_POLICY_FIELD,
+                ENTITY_TYPE_COMMIT_POLICY_FIELD, ENTITY_COMMIT_WITHIN_FIELD, ENTITY_TYPE_COMMIT_WITHIN_FIELD })
+        {
+            String value = variableContext.getParameter(field);
+            if (value != null)
+                parameters.setParameter(field, value);
+        }
+        String fullPruneInterval = variableContext.getParameter(FULL_PRUNE_INTERVAL_FIELD);
+        if (fullPruneInterval != null)
+            parameters.setParameter(FULL_PRUNE_INTERVAL_FIELD, fullPruneInterval);
+        String solrMaxConnections = variableContext.getParameter(SOLR_MAX_CONNECTIONS_FIELD);
+        if (solrMaxConnections != null)
+            parameters.setParameter(SOLR_MAX_CONNECTIONS_FIELD, solrMaxConnections);
+        String solrMaxConnectionsPerCore = variableContext.getParameter(SOLR_MAX_CONNECTIONS_PER_CORE_FIELD);
+        if (solrMaxConnectionsPerCore != null)
+            parameters.setParameter(SOLR_MAX_CONNECTIONS_PER_CORE_FIELD, solrMaxConnectionsPerCore);
+        String solrConnectionTimeout = variableContext.getParameter(SOLR_CONNECTION_TIMEOUT_FIELD);
+        if (solrConnectionTimeout != null)
+            parameters.setParameter(SOLR_CONNECTION_TIMEOUT_FIELD, solrConnectionTimeout);
+        String solrSocketTimeout = variableContext.getParameter(SOLR_SOCKET_TIMEOUT_FIELD);
+        if (solrSocketTimeout != null)
+            parameters.setParameter(SOLR_SOCKET_TIMEOUT_FIELD, solrSocketTimeout);
         super.params = parameters;
         return null;
     }
@@ -639,6 +1638,44 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
         paramMap.put(PRIMARY_INDEX_SELECTION_FIELD, (parameters.getParameter(PRIMARY_INDEX_SELECTION_FIELD)));
         paramMap.put(ENTITY_SELECTION_FIELD, (parameters.getParameter(ENTITY_SELECTION_FIELD)));
         paramMap.put(ENTITY_TYPE_SELECTION_FIELD, (parameters.getParameter(ENTITY_TYPE_SELECTION_FIELD)));
+        paramMap.put(CONCURRENT_DISPATCH_FIELD,
+                Boolean.toString(Boolean.parseBoolean(parameters.getParameter(CONCURRENT_DISPATCH_FIELD))));
+        paramMap.put(ENTITY_CONCURRENCY_FIELD,
+                getParameter(parameters, ENTITY_CONCURRENCY_FIELD, Integer.toString(DEFAULT_ENTITY_CONCURRENCY)));
+        paramMap.put(ENTITY_TYPE_CONCURRENCY_FIELD,
+                getParameter(parameters, ENTITY_TYPE_CONCURRENCY_FIELD, Integer.toString(DEFAULT_ENTITY_TYPE_CONCURRENCY)));
+        paramMap.put(BATCH_CHILDREN_FIELD,
+                Boolean.toString(Boolean.parseBoolean(parameters.getParameter(BATCH_CHILDREN_FIELD))));
+        paramMap.put(CHILD_BATCH_SIZE_FIELD,
+                getParameter(parameters, CHILD_BATCH_SIZE_FIELD, Integer.toString(DEFAULT_CHILD_BATCH_SIZE)));
+        paramMap.put(CHILD_BATCH_MAX_AGE_FIELD,
+                getParameter(parameters, CHILD_BATCH_MAX_AGE_FIELD, Integer.toString(DEFAULT_CHILD_BATCH_MAX_AGE)));
+        paramMap.put(PRIMARY_COMMIT_POLICY_FIELD,
+                getParameter(parameters, PRIMARY_COMMIT_POLICY_FIELD, CommitPolicy.NONE.getValue()));
+        paramMap.put(ENTITY_COMMIT_POLICY_FIELD,
+                getParameter(parameters, ENTITY_COMMIT_POLICY_FIELD, CommitPolicy.COMMIT_WITHIN.getValue()));
+        paramMap.put(ENTITY_TYPE_COMMIT_POLICY_FIELD,
+                getParameter(parameters, ENTITY_TYPE_COMMIT_POLICY_FIELD, CommitPolicy.COMMIT_WITHIN.getValue()));
+        paramMap.put(ENTITY_COMMIT_WITHIN_FIELD,
+                getParameter(parameters, ENTITY_COMMIT_WITHIN_FIELD, Integer.toString(DEFAULT_COMMIT_WITHIN)));
+        paramMap.put(ENTITY_TYPE_COMMIT_WITHIN_FIELD,
+                getParameter(parameters, ENTITY_TYPE_COMMIT_WITHIN_FIELD, Integer.toString(DEFAULT_COMMIT_WITHIN)));
+        paramMap.put(FULL_PRUNE_INTERVAL_FIELD,
+                getParameter(parameters, FULL_PRUNE_INTERVAL_FIELD, Integer.toString(DEFAULT_FULL_PRUNE_INTERVAL)));
+        paramMap.put(SOLR_MAX_CONNECTIONS_FIELD, getParameter(parameters, SOLR_MAX_CONNECTIONS_FIELD,
+                Integer.toString(SolrClientRegistry.DEFAULT_MAX_CONNECTIONS)));
+        paramMap.put(SOLR_MAX_CONNECTIONS_PER_CORE_FIELD, getParameter(parameters, SOLR_MAX_CONNECTIONS_PER_CORE_FIELD,
+                Integer.toString(SolrClientRegistry.DEFAULT_MAX_CONNECTIONS_PER_CORE)));
+        paramMap.put(SOLR_CONNECTION_TIMEOUT_FIELD, getParameter(parameters, SOLR_CONNECTION_TIMEOUT_FIELD,
+                Integer.toString(SolrClientRegistry.DEFAULT_CONNECTION_TIMEOUT)));
+        paramMap.put(SOLR_SOCKET_TIMEOUT_FIELD, getParameter(parameters, SOLR_SOCKET_TIMEOUT_FIELD,
+                Integer.toString(SolrClientRegistry.DEFAULT_SOCKET_TIMEOUT)));
+    }
+
+    private static String getParameter(ConfigParams parameters, String name, String defaultValue)
+    {
+        String value = parameters.getParameter(name);
+        return value == null || value.length() == 0 ? defaultValue : value;
     }
 
     /**
@@ -691,23 +1728,54 @@ public class SolrWrapperConnector extends org.apache.manifoldcf.agents.output.Ba
     /**
      * Returns a the Map relating each index to a specific Solr Connector . It assumes the connector has already been
      * configured .
+     * The connections are loaded once and reused until the selected connections change or the refresh interval
+     * expires. They are loaded again on each call while one of them cannot be found.
      * 
      * @return
      */
     private Map<IndexNames, IOutputConnection> getConnectors()
     {
-        Map<IndexNames, IOutputConnection> index2connector = new HashMap<IndexNames, IOutputConnection>();
         String primaryIndexSelection = this.params.getParameter(PRIMARY_INDEX_SELECTION_FIELD);
         String entityIndexSelection = this.params.getParameter(ENTITY_SELECTION_FIELD);
         String entityTypeIndexSelection = this.params.getParameter(ENTITY_TYPE_SELECTION_FIELD);
+        String connectionsKey = primaryIndexSelection + "\n" + entityIndexSelection + "\n" + entityTypeIndexSelection;
+
+        long now = System.currentTimeMillis();
+        if (cachedConnections != null && connectionsKey.equals(cachedConnectionsKey)
+                && now - cachedConnectionsTime < CONNECTIONS_REFRESH_INTERVAL)
+        {
+            return cachedConnections;
+        }
 
+        Map<IndexNames, IOutputConnection> index2connector = new EnumMap<IndexNames, IOutputConnection>(
+                IndexNames.class);
         index2connector.put(IndexNames.PRIMARY_INDEX, getOutputConnector(primaryIndexSelection));
         index2connector.put(IndexNames.ENTITY_INDEX, getOutputConnector(entityIndexSelection));
         index2connector.put(IndexNames.ENTITY_TYPE_INDEX, getOutputConnector(entityTypeIndexSelection));
 
+        if (index2connector.containsValue(null))
+        {
+            invalidateConnectors();
+        }
+        else
+        {
+            cachedConnections = index2connector;
+            cachedConnectionsKey = connectionsKey;
+            cachedConnectionsTime = now;
+        }
         return index2connector;
     }
 
+    /**
+     * Forget the cached connections, so they are loaded again on next use
+     */
+    private void invalidateConnectors()
+    {
+        cachedConnections = null;
+        cachedConnectionsKey = null;
+        cachedConnectionsTime = 0L;
+    }
+
     private IOutputConnection getOutputConnector(String name)
     {
         IOutputConnectionManager manager;
@@ -0,0 +1,122 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper.activity;
+
+import org.apache.manifoldcf.agents.interfaces.IOutputAddActivity;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Activity handed to the output connectors writing child documents on dispatch threads. The activity of the crawler
+ * is bound to the worker thread context, so the recorded activities are kept and replayed on the worker thread once
+ * the writes are done. Child documents carry no access tokens and are not sent further down the pipeline, so those
+ * calls are refused, and the checks already done for the primary document accept everything.
+ */
+public class BufferedOutputAddActivity implements IOutputAddActivity
+{
+    private final List<Object[]> recordedActivities = new ArrayList<Object[]>();
+
+    @Override
+    public synchronized void recordActivity( Long startTime, String activityType, Long dataSize, String entityURI,
+                                             String resultCode, String resultDescription )
+        throws ManifoldCFException
+    {
+        recordedActivities.add( new Object[]{ startTime, activityType, dataSize, entityURI, resultCode,
+            resultDescription } );
+    }
+
+    /**
+     * Record the buffered activities. Must be called on the thread owning the activity.
+     * @param activities
+     * @throws ManifoldCFException
+     */
+    public synchronized void replay( IOutputAddActivity activities )
+        throws ManifoldCFException
+    {
+        for ( Object[] activity : recordedActivities )
+        {
+            activities.recordActivity( (Long) activity[0], (String) activity[1], (Long) activity[2],
+                                       (String) activity[3], (String) activity[4], (String) activity[5] );
+        }
+        recordedActivities.clear();
+    }
+
+    @Override
+    public String qualifyAccessToken( String authorityNameString, String accessToken )
+        throws ManifoldCFException
+    {
+        throw new ManifoldCFException( "Access tokens cannot be qualified while dispatching child documents" );
+    }
+
+    @Override
+    public int sendDocument( String s, RepositoryDocument repositoryDocument )
+        throws ManifoldCFException, ServiceInterruption, IOException
+    {
+        throw new ManifoldCFException( "Documents cannot be sent down the pipeline while dispatching child documents" );
+    }
+
+    @Override
+    public void noDocument()
+        throws ManifoldCFException, ServiceInterruption
+    {
+        throw new ManifoldCFException( "Documents cannot be sent down the pipeline while dispatching child documents" );
+    }
+
+    @Override
+    public boolean checkMimeTypeIndexable( String s )
+        throws ManifoldCFException, ServiceInterruption
+    {
+        return true;
+    }
+
+    @Override
+    public boolean checkDocumentIndexable( File file )
+        throws ManifoldCFException, ServiceInterruption
+    {
+        return true;
+    }
+
+    @Override
+    public boolean checkLengthIndexable( long l )
+        throws ManifoldCFException, ServiceInterruption
+    {
+        return true;
+    }
+
+    @Override
+    public boolean checkURLIndexable( String s )
+        throws ManifoldCFException, ServiceInterruption
+    {
+        return true;
+    }
+
+    @Override
+    public boolean checkDateIndexable( Date date )
+        throws ManifoldCFException, ServiceInterruption
+    {
+        return true;
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper.utility;
+
+/**
+ * How the updates the SolrWrapper sends to a core are committed
+ */
+public enum CommitPolicy
+{
+    /**
+     * No commit, left to the core auto commit or to the wrapped connector
+     */
+    NONE("none"),
+    /**
+     * The updates carry a commitWithin time
+     */
+    COMMIT_WITHIN("commitWithin"),
+    /**
+     * A soft commit at job end
+     */
+    SOFT_COMMIT("soft"),
+    /**
+     * A hard commit at job end
+     */
+    HARD_COMMIT("hard");
+
+    private final String value;
+
+    private CommitPolicy( String value )
+    {
+        this.value = value;
+    }
+
+    /**
+     * @return the value of the policy in the connector configuration
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Returns the policy of a configuration value
+     * @param value
+     * @param defaultPolicy the policy returned for unknown values
+     * @return
+     */
+    public static CommitPolicy fromValue( String value, CommitPolicy defaultPolicy )
+    {
+        for ( CommitPolicy policy : values() )
+        {
+            if ( policy.value.equals( value ) )
+            {
+                return policy;
+            }
+        }
+        return defaultPolicy;
+    }
+
+}
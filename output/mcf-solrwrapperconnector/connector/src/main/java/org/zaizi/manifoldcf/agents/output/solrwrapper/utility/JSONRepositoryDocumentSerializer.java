@@ -17,6 +17,9 @@
  **/
 package org.zaizi.manifoldcf.agents.output.solrwrapper.utility;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.apache.commons.io.IOUtils;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
@@ -49,6 +52,18 @@ public class JSONRepositoryDocumentSerializer
 
     public static final String ENTITY_TYPES_FIELD = "entity_types";
 
+    public static final String ENTITY_IDS_FIELD = "entity_ids";
+
+    public static final String ENTITY_TYPE_IDS_FIELD = "entity_type_ids";
+
+    /**
+     * Start of the values packing several documents, written by the Stanbol connector instead of one JSON per value.
+     * Each document follows as the length of its id, a colon, the id, the length of its JSON, a colon and the JSON.
+     */
+    public static final String PACKED_PREFIX = "#packed/1\n";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     /**
      * Create a Repository Document from the  JSON Object string.
      * This RepoDocument is really simple :
@@ -119,12 +134,14 @@ public class JSONRepositoryDocumentSerializer
         {
             // Parse Entities
             String[] entitiesJSON = document.getFieldAsStrings( ENTITIES_FIELD );
-            entitiesList=getRepoDocListFromJSONArrayString( document, entitiesJSON,ENTITIES_FIELD );
+            String[] entityIds = document.getFieldAsStrings( ENTITY_IDS_FIELD );
+            entitiesList=getRepoDocListFromJSONArrayString( document, entitiesJSON,entityIds,ENTITIES_FIELD,ENTITY_IDS_FIELD );
             index2RepoDocs.put( IndexNames.ENTITY_INDEX,entitiesList);
 
             // parse EntityTypes
             String[] entityTypesJSON = document.getFieldAsStrings( ENTITY_TYPES_FIELD );
-            entityTypesList=getRepoDocListFromJSONArrayString( document, entityTypesJSON,ENTITY_TYPES_FIELD );
+            String[] entityTypeIds = document.getFieldAsStrings( ENTITY_TYPE_IDS_FIELD );
+            entityTypesList=getRepoDocListFromJSONArrayString( document, entityTypesJSON,entityTypeIds,ENTITY_TYPES_FIELD,ENTITY_TYPE_IDS_FIELD );
             index2RepoDocs.put( IndexNames.ENTITY_TYPE_INDEX,entityTypesList);
         }
         catch ( IOException e )
@@ -142,35 +159,127 @@ public class JSONRepositoryDocumentSerializer
 
 
     /**
-     * Parse a String array of JSON representation for Objects to a List of Repository Documents
+     * Parse a String array of JSON representation for Objects to a List of Repository Documents.
+     * The ids come from the ids field written next to the JSONs by the Stanbol connector, the JSONs are only
+     * read when the ids are missing. Packed values are split into their documents
      * @param document
      * @param entitiesJSON
+     * @param entityIds the ids of the JSONs, in the same order, or null
      * @return
      * @throws ManifoldCFException
      */
-    private static List<RepositoryDocument> getRepoDocListFromJSONArrayString( RepositoryDocument document, String[] entitiesJSON,String repoField )
+    private static List<RepositoryDocument> getRepoDocListFromJSONArrayString( RepositoryDocument document, String[] entitiesJSON,String[] entityIds,String repoField,String idsField )
         throws ManifoldCFException
     {
         List<RepositoryDocument> resultRepoDocList;
         resultRepoDocList=new ArrayList<RepositoryDocument>();
+        boolean hasIds = entityIds != null && entitiesJSON != null && entityIds.length == entitiesJSON.length;
         if(entitiesJSON!=null)
-        for(String JSONEntityString:entitiesJSON){
+        for(int i=0;i<entitiesJSON.length;i++){
+            String JSONEntityString=entitiesJSON[i];
+            if(JSONEntityString.startsWith( PACKED_PREFIX )){
+                unpackRepoDocs( JSONEntityString,resultRepoDocList );
+                continue;
+            }
             try
             {
-                JSONArray JSONArray=new JSONArray(JSONEntityString);
-                JSONObject JSONEntity=JSONArray.getJSONObject( 0 );
-                String currentId=JSONEntity.get( DOCUMENT_ID_FIELD ).toString();
+                String currentId=hasIds ? entityIds[i] : readDocumentId( JSONEntityString );
+                if(currentId==null){
+                    Logging.connectors.error("No id in Entities JSON Child structure: "+JSONEntityString );
+                    continue;
+                }
                 RepositoryDocument repoDocFromJSON =JSONRepositoryDocumentSerializer.createRepoDocFromJSON( currentId, JSONEntityString );
                 resultRepoDocList.add( repoDocFromJSON );
             }
-            catch ( JSONException e )
+            catch ( IOException e )
             {
                 Logging.connectors.error("Error processing Entities JSON Child structure: "+JSONEntityString,e );
             }
         }
         String[] nullArray=null;
         document.addField( repoField,nullArray);  // remove the field from the primary document
+        document.addField( idsField,nullArray);
         return resultRepoDocList;
     }
 
+    /**
+     * Split a packed value into Repository Documents, without parsing the JSONs
+     * @param packedValue
+     * @param resultRepoDocList the list the documents are added to
+     * @throws ManifoldCFException
+     */
+    private static void unpackRepoDocs( String packedValue, List<RepositoryDocument> resultRepoDocList )
+        throws ManifoldCFException
+    {
+        int position=PACKED_PREFIX.length();
+        try
+        {
+            while(position<packedValue.length()){
+                int idLength=readPackedLength( packedValue,position );
+                position=packedValue.indexOf( ':',position )+1;
+                String id=packedValue.substring( position,position+idLength );
+                position+=idLength;
+                int jsonLength=readPackedLength( packedValue,position );
+                position=packedValue.indexOf( ':',position )+1;
+                String json=packedValue.substring( position,position+jsonLength );
+                position+=jsonLength;
+                resultRepoDocList.add( createRepoDocFromJSON( id,json ) );
+            }
+        }
+        catch ( IndexOutOfBoundsException e )
+        {
+            Logging.connectors.error("Truncated packed Entities Child structure, after "+resultRepoDocList.size()+" documents",e );
+        }
+        catch ( NumberFormatException e )
+        {
+            Logging.connectors.error("Malformed packed Entities Child structure, after "+resultRepoDocList.size()+" documents",e );
+        }
+    }
+
+    /**
+     * Read the length written before an id or a JSON in a packed value
+     */
+    private static int readPackedLength( String packedValue, int position )
+    {
+        int separator=packedValue.indexOf( ':',position );
+        if(separator<0){
+            throw new NumberFormatException( "Missing length at "+position );
+        }
+        return Integer.parseInt( packedValue.substring( position,separator ) );
+    }
+
+    /**
+     * Stream through a JSON array of a single Object up to its id, without building the JSON tree
+     * @param JSONEntityString
+     * @return the id, or null if the Object has no id
+     * @throws IOException if the JSON is malformed
+     */
+    static String readDocumentId( String JSONEntityString )
+        throws IOException
+    {
+        JsonParser parser = JSON_FACTORY.createParser( JSONEntityString );
+        try
+        {
+            if ( parser.nextToken() != JsonToken.START_ARRAY || parser.nextToken() != JsonToken.START_OBJECT )
+            {
+                throw new IOException( "Not a JSON array of an Object" );
+            }
+            while ( parser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ( DOCUMENT_ID_FIELD.equals( fieldName ) && value.isScalarValue() )
+                {
+                    return parser.getText();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+        finally
+        {
+            parser.close();
+        }
+    }
+
 }
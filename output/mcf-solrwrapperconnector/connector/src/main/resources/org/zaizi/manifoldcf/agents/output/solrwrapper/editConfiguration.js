@@ -36,8 +36,95 @@ function checkConfig()
   return true;
 }
 
+function isPositiveInteger(value)
+{
+  return /^[1-9][0-9]*$/.test(value);
+}
+
+function isNonNegativeInteger(value)
+{
+  return /^[0-9]+$/.test(value);
+}
+
 function checkConfigForSave()
 {
+  if (editconnection.entityIndexConcurrency && !isPositiveInteger(editconnection.entityIndexConcurrency.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.EntityIndexConcurrencyMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.entityIndexConcurrency.focus();
+    return false;
+  }
+  if (editconnection.entityTypeIndexConcurrency && !isPositiveInteger(editconnection.entityTypeIndexConcurrency.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.EntityTypeIndexConcurrencyMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.entityTypeIndexConcurrency.focus();
+    return false;
+  }
+  if (editconnection.childBatchSize && !isPositiveInteger(editconnection.childBatchSize.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.ChildBatchSizeMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.childBatchSize.focus();
+    return false;
+  }
+  if (editconnection.childBatchMaxAge && !isPositiveInteger(editconnection.childBatchMaxAge.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.ChildBatchMaxAgeMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.childBatchMaxAge.focus();
+    return false;
+  }
+  if (editconnection.entityCommitWithin && !isPositiveInteger(editconnection.entityCommitWithin.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.CommitWithinMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.entityCommitWithin.focus();
+    return false;
+  }
+  if (editconnection.entityTypeCommitWithin && !isPositiveInteger(editconnection.entityTypeCommitWithin.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.CommitWithinMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.entityTypeCommitWithin.focus();
+    return false;
+  }
+  if (editconnection.fullPruneInterval && !isNonNegativeInteger(editconnection.fullPruneInterval.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.FullPruneIntervalMustBeANonNegativeInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.fullPruneInterval.focus();
+    return false;
+  }
+  if (editconnection.solrMaxConnections && !isPositiveInteger(editconnection.solrMaxConnections.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.SolrMaxConnectionsMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.solrMaxConnections.focus();
+    return false;
+  }
+  if (editconnection.solrMaxConnectionsPerCore && !isPositiveInteger(editconnection.solrMaxConnectionsPerCore.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.SolrMaxConnectionsPerCoreMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.solrMaxConnectionsPerCore.focus();
+    return false;
+  }
+  if (editconnection.solrConnectionTimeout && !isPositiveInteger(editconnection.solrConnectionTimeout.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.SolrConnectionTimeoutMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.solrConnectionTimeout.focus();
+    return false;
+  }
+  if (editconnection.solrSocketTimeout && !isPositiveInteger(editconnection.solrSocketTimeout.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.SolrSocketTimeoutMustBeAPositiveInteger'))");
+    SelectTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('SolrWrapperConnector.Parameters'))");
+    editconnection.solrSocketTimeout.focus();
+    return false;
+  }
   return true;
 }
 
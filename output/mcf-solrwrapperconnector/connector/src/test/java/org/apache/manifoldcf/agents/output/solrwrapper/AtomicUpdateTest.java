@@ -0,0 +1,141 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.apache.manifoldcf.agents.output.solrwrapper;
+
+import junit.framework.TestCase;
+import org.zaizi.manifoldcf.agents.output.solrwrapper.AtomicUpdate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AtomicUpdateTest extends TestCase
+{
+    /**
+     * A removal update as written by JSONRepositoryDocumentSerializer, with the increment as a string
+     */
+    private static final String REMOVAL_JSON = "[{\"id\":\"e1\",\"occurrences\":{\"inc\":\"-1\"},\"doc_ids\":{\"remove\":\"u1\"}}]";
+
+    public void testIncrementsAreSummed() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"inc\":3}}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":{\"inc\":1}}]", "[{\"id\":\"e1\",\"occurrences\":{\"inc\":2}}]"));
+    }
+
+    public void testRemovalsAreWrittenBeforeAdditions() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"doc_ids\":{\"remove\":[\"u2\"],\"add\":[\"u1\"]}}]",
+                merge("[{\"id\":\"e1\",\"doc_ids\":{\"add\":\"u1\"}}]", "[{\"id\":\"e1\",\"doc_ids\":{\"remove\":\"u2\"}}]"));
+    }
+
+    public void testAddThenRemoveOfTheSameValue() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"doc_ids\":{\"remove\":[\"u1\"]}}]",
+                merge("[{\"id\":\"e1\",\"doc_ids\":{\"add\":\"u1\"}}]", "[{\"id\":\"e1\",\"doc_ids\":{\"remove\":\"u1\"}}]"));
+    }
+
+    public void testRemoveThenAddOfTheSameValue() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"doc_ids\":{\"remove\":[\"u1\"],\"add\":[\"u1\"]}}]",
+                merge("[{\"id\":\"e1\",\"doc_ids\":{\"remove\":\"u1\"}}]", "[{\"id\":\"e1\",\"doc_ids\":{\"add\":\"u1\"}}]"));
+    }
+
+    public void testPlainValuesOfAtomicUpdatesAreSet() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"inc\":1},\"label\":{\"set\":\"b\"}}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":{\"inc\":1},\"label\":\"a\"}]",
+                        "[{\"id\":\"e1\",\"label\":{\"set\":\"b\"}}]"));
+    }
+
+    public void testIncrementOfASetNumberIsSet() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"set\":3}}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":{\"set\":2}}]", "[{\"id\":\"e1\",\"occurrences\":{\"inc\":1}}]"));
+    }
+
+    public void testWholeDocumentReplacesTheUpdates() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":5,\"label\":\"a\"}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":{\"inc\":1}}]", "[{\"id\":\"e1\",\"occurrences\":5,\"label\":\"a\"}]"));
+    }
+
+    public void testAtomicUpdateOfAWholeDocumentIsKept() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":5},{\"id\":\"e1\",\"occurrences\":{\"inc\":1}}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":5}]", "[{\"id\":\"e1\",\"occurrences\":{\"inc\":1}}]"));
+    }
+
+    public void testIncrementOfATextIsKept() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"label\":{\"set\":\"a\"}},{\"id\":\"e1\",\"label\":{\"inc\":1}}]",
+                merge("[{\"id\":\"e1\",\"label\":{\"set\":\"a\"}}]", "[{\"id\":\"e1\",\"label\":{\"inc\":1}}]"));
+    }
+
+    public void testUnknownOperationIsKept() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"doc_ids\":{\"add\":[\"u1\"]}},{\"id\":\"e1\",\"doc_ids\":{\"removeregex\":\"u.*\"}}]",
+                merge("[{\"id\":\"e1\",\"doc_ids\":{\"add\":\"u1\"}}]",
+                        "[{\"id\":\"e1\",\"doc_ids\":{\"removeregex\":\"u.*\"}}]"));
+    }
+
+    public void testRemovalIncrementAsString() throws IOException
+    {
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"inc\":-1},\"doc_ids\":{\"remove\":[\"u1\"]}}]",
+                merge(REMOVAL_JSON));
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"inc\":-2},\"doc_ids\":{\"remove\":[\"u1\"]}}]",
+                merge(REMOVAL_JSON, REMOVAL_JSON));
+        assertEquals("[{\"id\":\"e1\",\"occurrences\":{\"inc\":0},\"doc_ids\":{\"remove\":[\"u1\"]}}]",
+                merge("[{\"id\":\"e1\",\"occurrences\":{\"inc\":1},\"doc_ids\":{\"add\":\"u1\"}}]", REMOVAL_JSON));
+    }
+
+    /**
+     * Merge updates in order as the batcher does, each into the last one kept
+     *
+     * @return the JSON of the updates kept
+     */
+    private static String merge(String... updatesJSON) throws IOException
+    {
+        List<AtomicUpdate> updates = new ArrayList<AtomicUpdate>();
+        for (String updateJSON : updatesJSON)
+        {
+            for (AtomicUpdate update : AtomicUpdate.parse(updateJSON))
+            {
+                if (updates.isEmpty() || !updates.get(updates.size() - 1).merge(update))
+                {
+                    updates.add(update);
+                }
+            }
+        }
+
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = new JsonFactory().createGenerator(writer);
+        generator.writeStartArray();
+        for (AtomicUpdate update : updates)
+        {
+            update.write(generator);
+        }
+        generator.writeEndArray();
+        generator.close();
+        return writer.toString();
+    }
+
+}
@@ -84,6 +84,53 @@ public class JSONRepositoryDocumentSerializerTest extends TestCase
 
 
 
+    public void testJSONParsingWithIds() throws ManifoldCFException, IOException
+    {
+        String parentURI = "parentURI";
+        RepositoryDocument currentDocument = new RepositoryDocument();
+        currentDocument.addField("id", parentURI);
+        currentDocument.addField("entities", new String[] {
+                "[{\"occurrences\":{\"inc\":1},\"doc_ids\":{\"add\":\"parentURI\"},\"id\":\"EntityId0\"}]",
+                "[{\"occurrences\":{\"inc\":1},\"doc_ids\":{\"add\":\"parentURI\"},\"id\":\"EntityId1\"}]" });
+        currentDocument.addField("entity_ids", new String[] { "EntityId0", "EntityId1" });
+        // without ids the JSONs are read
+        currentDocument.addField("entity_types", new String[] {
+                "[{\"attributes\":[\"name\"],\"occurrences\":{\"inc\":1},\"id\":\"EntityTypeId0\"}]" });
+
+        Map<IndexNames, List<RepositoryDocument>> parsedJSONChildStructures = JSONRepositoryDocumentSerializer
+                .parseJSONChildStructures(parentURI, currentDocument);
+        List<RepositoryDocument> entities = parsedJSONChildStructures.get(IndexNames.ENTITY_INDEX);
+        assertEquals(2, entities.size());
+        assertEquals("EntityId0", entities.get(0).getFieldAsStrings("id")[0]);
+        assertEquals("EntityId1", entities.get(1).getFieldAsStrings("id")[0]);
+        List<RepositoryDocument> entityTypes = parsedJSONChildStructures.get(IndexNames.ENTITY_TYPE_INDEX);
+        assertEquals(1, entityTypes.size());
+        assertEquals("EntityTypeId0", entityTypes.get(0).getFieldAsStrings("id")[0]);
+        assertNull(currentDocument.getField("entity_ids"));
+    }
+
+    public void testPackedParsing() throws ManifoldCFException, IOException
+    {
+        String parentURI = "parentURI";
+        String entity0 = "[{\"id\":\"EntityId0\",\"label\":\"a:b\"}]";
+        String entity1 = "[{\"id\":\"Entity:Id1\"}]";
+        RepositoryDocument currentDocument = new RepositoryDocument();
+        currentDocument.addField("id", parentURI);
+        currentDocument.addField("entities", JSONRepositoryDocumentSerializer.PACKED_PREFIX + "9:EntityId0"
+                + entity0.length() + ":" + entity0 + "10:Entity:Id1" + entity1.length() + ":" + entity1);
+        currentDocument.addField("entity_types", JSONRepositoryDocumentSerializer.PACKED_PREFIX);
+
+        Map<IndexNames, List<RepositoryDocument>> parsedJSONChildStructures = JSONRepositoryDocumentSerializer
+                .parseJSONChildStructures(parentURI, currentDocument);
+        List<RepositoryDocument> entities = parsedJSONChildStructures.get(IndexNames.ENTITY_INDEX);
+        assertEquals(2, entities.size());
+        assertEquals("EntityId0", entities.get(0).getFieldAsStrings("id")[0]);
+        assertEquals(entity0, IOUtils.toString(entities.get(0).getBinaryStream()));
+        assertEquals("Entity:Id1", entities.get(1).getFieldAsStrings("id")[0]);
+        assertEquals(entity1, IOUtils.toString(entities.get(1).getBinaryStream()));
+        assertEquals(0, parsedJSONChildStructures.get(IndexNames.ENTITY_TYPE_INDEX).size());
+    }
+
     private Map<IndexNames, List<RepositoryDocument>> buildExpectedMap(RepositoryDocument document, String parentURI)
             throws ManifoldCFException
     {
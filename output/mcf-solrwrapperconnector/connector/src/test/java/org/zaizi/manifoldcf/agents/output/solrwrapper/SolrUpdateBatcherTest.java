@@ -0,0 +1,89 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class SolrUpdateBatcherTest extends TestCase
+{
+    private static final String CORE_URL = "http://localhost:8983/solr/entities";
+
+    private static final SolrClientRegistry.ClientSettings SETTINGS = new SolrClientRegistry.ClientSettings(10, 5,
+            1000, 1000);
+
+    public void testBatcherIsSharedByItsUsers()
+    {
+        SolrUpdateBatcher batcher = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        SolrUpdateBatcher other = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        try
+        {
+            assertSame(batcher, other);
+        }
+        finally
+        {
+            other.release();
+            batcher.release();
+        }
+    }
+
+    public void testBatcherIsDroppedAfterItsLastUser()
+    {
+        SolrUpdateBatcher batcher = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        SolrUpdateBatcher other = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        other.release();
+        SolrUpdateBatcher stillShared = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        assertSame(batcher, stillShared);
+        stillShared.release();
+        batcher.release();
+
+        SolrUpdateBatcher recreated = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        try
+        {
+            assertNotSame(batcher, recreated);
+        }
+        finally
+        {
+            recreated.release();
+        }
+    }
+
+    public void testEmptyDocumentsAreDeletedOnlyIfStillEmpty()
+    {
+        assertEquals("id:(dbpedia\\:Paris OR Bob\\ Smith) AND occurrences:[* TO 0]",
+                SolrUpdateBatcher.getEmptyDocumentsQuery(Arrays.asList("dbpedia:Paris", "Bob Smith")));
+    }
+
+    public void testOtherClientSettingsGetTheirOwnBatcher()
+    {
+        SolrUpdateBatcher batcher = SolrUpdateBatcher.acquire(CORE_URL, SETTINGS);
+        SolrUpdateBatcher other = SolrUpdateBatcher.acquire(CORE_URL, new SolrClientRegistry.ClientSettings(20, 5,
+                1000, 1000));
+        try
+        {
+            assertNotSame(batcher, other);
+        }
+        finally
+        {
+            other.release();
+            batcher.release();
+        }
+    }
+
+}
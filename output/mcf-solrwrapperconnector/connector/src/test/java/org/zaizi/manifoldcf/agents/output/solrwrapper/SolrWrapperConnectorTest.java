@@ -0,0 +1,195 @@
+/**
+ * Sensefy
+ *
+ * Copyright (c) Zaizi Limited, All rights reserved.
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ **/
+package org.zaizi.manifoldcf.agents.output.solrwrapper;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.apache.manifoldcf.agents.interfaces.IOutputRemoveActivity;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.agents.output.BaseOutputConnector;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.json.JSONException;
+import org.zaizi.manifoldcf.agents.output.solrwrapper.utility.IndexNames;
+import org.zaizi.manifoldcf.agents.output.solrwrapper.utility.JSONRepositoryDocumentSerializer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SolrWrapperConnectorTest extends TestCase
+{
+    // nothing listens on this port, so the updates sent to this core fail
+    private static final String UNREACHABLE_CORE_URL = "http://127.0.0.1:1/solr/entities";
+
+    private static final SolrClientRegistry.ClientSettings SETTINGS = new SolrClientRegistry.ClientSettings(10, 5,
+            1000, 1000);
+
+    private HttpServer solr;
+
+    private String reachableCoreURL;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        Logging.connectors = Logger.getLogger("connectors");
+        solr = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        solr.createContext("/", new UpdateHandler());
+        solr.start();
+        reachableCoreURL = "http://127.0.0.1:" + solr.getAddress().getPort() + "/solr/entity_types";
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        solr.stop(0);
+    }
+
+    public void testRemoveDocumentTakesTheBatchedRemovalPath() throws Exception
+    {
+        RemovalRecordingConnector connector = new RemovalRecordingConnector();
+        // called the way the framework calls it
+        BaseOutputConnector outputConnector = connector;
+        outputConnector.removeDocument("http://repository/doc1", "version1", null);
+
+        assertEquals(Arrays.asList("http://repository/doc1"), connector.removedURIs);
+        assertEquals(Arrays.asList("version1"), connector.removedDescriptions);
+    }
+
+    public void testFailureOnTheFirstCoreRetriesTheRemoval() throws Exception
+    {
+        SolrUpdateBatcher batcher = SolrUpdateBatcher.acquire(UNREACHABLE_CORE_URL, SETTINGS);
+        SolrUpdateBatcher removals = SolrUpdateBatcher.create(UNREACHABLE_CORE_URL, SETTINGS);
+        try
+        {
+            removals.add(removalJSON("entity1"), Integer.MAX_VALUE, Long.MAX_VALUE);
+            SolrWrapperConnector.flushRemovals(removals, batcher, false, 100, 60000L, IndexNames.ENTITY_TYPE_INDEX);
+            fail("The removal must be retried as no core was updated");
+        }
+        catch (ServiceInterruption e)
+        {
+            assertEquals(0, batcher.getPendingCount());
+        }
+        finally
+        {
+            removals.close();
+            batcher.release();
+        }
+    }
+
+    public void testFailureOnTheSecondCoreBatchesItsRemovals() throws Exception
+    {
+        SolrUpdateBatcher typeBatcher = SolrUpdateBatcher.acquire(reachableCoreURL, SETTINGS);
+        SolrUpdateBatcher typeRemovals = SolrUpdateBatcher.create(reachableCoreURL, SETTINGS);
+        SolrUpdateBatcher entityBatcher = SolrUpdateBatcher.acquire(UNREACHABLE_CORE_URL, SETTINGS);
+        SolrUpdateBatcher entityRemovals = SolrUpdateBatcher.create(UNREACHABLE_CORE_URL, SETTINGS);
+        try
+        {
+            typeRemovals.add(removalJSON("type1"), Integer.MAX_VALUE, Long.MAX_VALUE);
+            SolrWrapperConnector.flushRemovals(typeRemovals, typeBatcher, false, 100, 60000L,
+                    IndexNames.ENTITY_TYPE_INDEX);
+            assertTrue(typeRemovals.hasUpdated());
+
+            // the entity types were decremented, so a retry would decrement them twice
+            entityRemovals.add(removalJSON("entity1"), Integer.MAX_VALUE, Long.MAX_VALUE);
+            entityRemovals.add(removalJSON("entity2"), Integer.MAX_VALUE, Long.MAX_VALUE);
+            SolrWrapperConnector.flushRemovals(entityRemovals, entityBatcher, true, 100, 60000L,
+                    IndexNames.ENTITY_INDEX);
+
+            assertEquals(0, entityRemovals.getPendingCount());
+            assertEquals(2, entityBatcher.getPendingCount());
+        }
+        finally
+        {
+            typeRemovals.close();
+            entityRemovals.close();
+            typeBatcher.release();
+            entityBatcher.release();
+        }
+    }
+
+    private static String removalJSON(String childId) throws JSONException
+    {
+        return JSONRepositoryDocumentSerializer.createAtomicRemovalJSON(childId, "http://repository/doc1", true)
+                .toString();
+    }
+
+    /**
+     * Answers every request as a successful Solr update
+     */
+    private static class UpdateHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            InputStream request = exchange.getRequestBody();
+            while (request.read() != -1)
+            {
+                // the update is not checked
+            }
+            NamedList<Object> header = new NamedList<Object>();
+            header.add("status", 0);
+            header.add("QTime", 0);
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("responseHeader", header);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, body);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, body.size());
+            OutputStream out = exchange.getResponseBody();
+            try
+            {
+                body.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Records the documents sent to the removal of many documents instead of removing them
+     */
+    private static class RemovalRecordingConnector extends SolrWrapperConnector
+    {
+        private final List<String> removedURIs = new ArrayList<String>();
+        private final List<String> removedDescriptions = new ArrayList<String>();
+
+        @Override
+        public void removeDocuments(String[] documentURIs, String[] outputDescriptions,
+                IOutputRemoveActivity activities)
+        {
+            removedURIs.addAll(Arrays.asList(documentURIs));
+            removedDescriptions.addAll(Arrays.asList(outputDescriptions));
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package org.zaizi.manifoldcf.agents.transformation.stanbol;
+
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.manifoldcf.agents.system.Logging;
+import org.apache.stanbol.client.Enhancer;
+import org.apache.stanbol.client.enhancer.impl.EnhancerParameters;
+import org.apache.stanbol.client.enhancer.model.EnhancementStructure;
+import org.apache.stanbol.client.enhancer.model.EntityAnnotation;
+import org.apache.stanbol.client.enhancer.model.TextAnnotation;
+import org.apache.stanbol.client.services.exception.StanbolServiceException;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.DocumentTextAnnotation;
+
+/**
+ * Gathers the small documents enhanced at the same time by the worker threads into a single Stanbol enhancement
+ * request.
+ *
+ * The first thread to arrive opens a batch and waits for other documents, up to a document count, a content length
+ * and a latency budget. It then sends the contents joined with a separator, and splits the text annotations back
+ * between the documents using their offsets, rebased on the start of each document. Every thread then carries on
+ * with its own document, so the documents are still sent down the pipeline by the threads that own them.
+ */
+public class EnhancementBatcher
+{
+    /**
+     * Put between the documents of a batch, so that no sentence, and so no text annotation, spans two documents
+     */
+    static final String DOCUMENT_SEPARATOR = "\n\n.\n\n";
+
+    /**
+     * Longest time in milliseconds a document waits for the enhancement request of its batch, on top of the time the
+     * batch waits for more documents. The document is enhanced on its own after that.
+     */
+    private static final long BATCH_REQUEST_TIMEOUT = 300000L;
+
+    private final StanbolClientPool clientPool;
+    private final String chain;
+
+    /**
+     * The batch documents are currently added to, guarded by this
+     */
+    private Batch openBatch = null;
+
+    public EnhancementBatcher(StanbolClientPool clientPool, String chain)
+    {
+        this.clientPool = clientPool;
+        this.chain = chain;
+    }
+
+    /**
+     * Enhance a document content as part of a batch
+     *
+     * @param content the document content
+     * @param maxDocuments the maximum number of documents in a batch
+     * @param maxLength the maximum length, in characters, of the contents of a batch
+     * @param maxWait the maximum time in milliseconds a batch waits for more documents
+     * @return the text annotations of the document with their entity annotations, or null if the batch could not be
+     *         sent in time and the document has to be enhanced on its own
+     * @throws StanbolServiceException if the enhancement of the batch failed
+     * @throws InterruptedException
+     */
+    public Map<DocumentTextAnnotation, Collection<EntityAnnotation>> enhance(String content, int maxDocuments,
+            int maxLength, long maxWait) throws StanbolServiceException, InterruptedException
+    {
+        Batch batch;
+        int index;
+        boolean leader = false;
+        synchronized (this)
+        {
+            if (openBatch == null || !openBatch.canAdd(content, maxLength))
+            {
+                closeOpenBatch();
+                openBatch = new Batch();
+                leader = true;
+            }
+            batch = openBatch;
+            index = batch.add(content);
+            if (batch.contents.size() >= maxDocuments || batch.length >= maxLength)
+            {
+                closeOpenBatch();
+            }
+
+            if (leader)
+            {
+                try
+                {
+                    long deadline = System.currentTimeMillis() + maxWait;
+                    long remaining = maxWait;
+                    while (!batch.closed && remaining > 0)
+                    {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // the other documents of the batch are enhanced on their own
+                    if (openBatch == batch)
+                    {
+                        closeOpenBatch();
+                    }
+                    batch.complete(null, null);
+                    throw e;
+                }
+                if (openBatch == batch)
+                {
+                    closeOpenBatch();
+                }
+            }
+        }
+
+        if (leader)
+        {
+            batch.execute();
+        }
+        Map<DocumentTextAnnotation, Collection<EntityAnnotation>> result = batch.getResult(index, maxWait
+                + BATCH_REQUEST_TIMEOUT);
+        if (result == null)
+        {
+            Logging.agents.debug("No result for a document of a batch, enhancing it on its own");
+        }
+        return result;
+    }
+
+    /**
+     * Stop adding documents to the open batch, and wake up its leader. Must be called holding the lock of this.
+     */
+    private void closeOpenBatch()
+    {
+        if (openBatch != null)
+        {
+            openBatch.closed = true;
+            openBatch = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Join the contents of a batch into the text sent to Stanbol
+     *
+     * @param contents the document contents
+     * @param starts filled with the offset of each document in the text
+     * @param ends filled with the offset after each document in the text
+     * @return the text
+     */
+    static String join(List<String> contents, int[] starts, int[] ends)
+    {
+        int length = 0;
+        for (String content : contents)
+        {
+            length += content.length() + DOCUMENT_SEPARATOR.length();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < contents.size(); i++)
+        {
+            starts[i] = sb.length();
+            sb.append(contents.get(i));
+            ends[i] = sb.length();
+            sb.append(DOCUMENT_SEPARATOR);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find the document holding a text annotation
+     *
+     * @param starts the offset of each document in the text
+     * @param ends the offset after each document in the text
+     * @param start the offset of the annotation in the text
+     * @param end the offset after the annotation in the text
+     * @return the index of the document, or -1 if the annotation is not within a single document
+     */
+    static int locate(int[] starts, int[] ends, int start, int end)
+    {
+        int position = Arrays.binarySearch(starts, start);
+        int document = position >= 0 ? position : -position - 2;
+        if (document < 0 || end > ends[document])
+        {
+            return -1;
+        }
+        return document;
+    }
+
+    /**
+     * Assign each text annotation to the document holding its text, with its offsets in that document
+     */
+    private static List<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>> split(EnhancementStructure eRes,
+            int[] starts, int[] ends)
+    {
+        List<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>> documentResults =
+                new ArrayList<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>>();
+        for (int i = 0; i < starts.length; i++)
+        {
+            documentResults.add(new LinkedHashMap<DocumentTextAnnotation, Collection<EntityAnnotation>>());
+        }
+        for (TextAnnotation ta : eRes.getTextAnnotations())
+        {
+            int document = locate(starts, ends, ta.getStart(), ta.getEnd());
+            if (document >= 0)
+            {
+                documentResults.get(document).put(new DocumentTextAnnotation(ta, -starts[document]),
+                        eRes.getEntityAnnotations(ta));
+            }
+            else
+            {
+                Logging.agents.debug("Ignoring text annotation outside of the batched documents : " + ta.getUri());
+            }
+        }
+        return documentResults;
+    }
+
+    /**
+     * Documents enhanced together. The contents are only changed while the batch is open, holding the lock of the
+     * batcher, and the results are guarded by the batch itself.
+     */
+    private class Batch
+    {
+        private final List<String> contents = new ArrayList<String>();
+        private int length = 0;
+        private boolean closed = false;
+
+        private boolean done = false;
+        private List<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>> results = null;
+        private StanbolServiceException failure = null;
+
+        private boolean canAdd(String content, int maxLength)
+        {
+            return !closed && length + DOCUMENT_SEPARATOR.length() + content.length() <= maxLength;
+        }
+
+        private int add(String content)
+        {
+            contents.add(content);
+            length += content.length() + DOCUMENT_SEPARATOR.length();
+            return contents.size() - 1;
+        }
+
+        /**
+         * Send the batch to Stanbol and split the result between the documents
+         */
+        private void execute()
+        {
+            int[] starts = new int[contents.size()];
+            int[] ends = new int[contents.size()];
+            String text = join(contents, starts, ends);
+
+            List<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>> batchResults = null;
+            StanbolServiceException batchFailure = null;
+            Enhancer enhancerClient = null;
+            try
+            {
+                enhancerClient = clientPool.borrowEnhancer();
+                EnhancerParameters parameters = EnhancerParameters.builder().setChain(chain)
+                        .setContent(text).build();
+                EnhancementStructure eRes = enhancerClient.enhance(parameters);
+                batchResults = split(eRes, starts, ends);
+                Logging.agents.debug("Enhanced a batch of " + contents.size() + " documents, " + length
+                        + " characters");
+            }
+            catch (StanbolServiceException e)
+            {
+                batchFailure = e;
+            }
+            catch (RuntimeException e)
+            {
+                Logging.agents.warn("Error enhancing a batch of " + contents.size() + " documents", e);
+            }
+            finally
+            {
+                clientPool.releaseEnhancer(enhancerClient);
+                // the documents are enhanced on their own if the batch failed unexpectedly
+                complete(batchResults, batchFailure);
+            }
+        }
+
+        private synchronized void complete(List<Map<DocumentTextAnnotation, Collection<EntityAnnotation>>> results,
+                StanbolServiceException failure)
+        {
+            this.results = results;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the result of a document of the batch
+         *
+         * @param index the index of the document in the batch
+         * @param timeout the longest time to wait, in milliseconds
+         * @return the annotations of the document, or null if the batch failed unexpectedly or is not done in time
+         */
+        private synchronized Map<DocumentTextAnnotation, Collection<EntityAnnotation>> getResult(int index,
+                long timeout) throws StanbolServiceException, InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (!done && remaining > 0)
+            {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (!done)
+            {
+                return null;
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return results == null ? null : results.get(index);
+        }
+    }
+
+}
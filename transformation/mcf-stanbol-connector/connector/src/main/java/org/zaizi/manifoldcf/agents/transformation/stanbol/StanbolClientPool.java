@@ -0,0 +1,303 @@
+package org.zaizi.manifoldcf.agents.transformation.stanbol;
+
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.stanbol.client.Enhancer;
+import org.apache.stanbol.client.StanbolClientFactory;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.DereferencedEntity;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.EnhancementPayload;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Pool of Stanbol enhancer clients for a single Stanbol server. Pools are created once per server url and shared by
+ * all the connector instances (and so all the worker threads) of the agent, so that the client set-up is reused
+ * across documents instead of being redone for each one.
+ *
+ * The Stanbol client does not expose its HTTP transport, so the pool does not manage the HTTP connections: whether
+ * they are kept alive between requests, and how many, is left to the client and the JVM settings it relies on.
+ *
+ * A client is only ever used by one thread at a time: it is borrowed for an enhancement request and handed back to
+ * the pool once the request is done.
+ *
+ * The pool also owns the executors used to dereference entities and to enhance the chunks of large documents, so the
+ * number of concurrent requests sent to a Stanbol server is capped across all the documents being processed, and the
+ * cache of the entities already dereferenced from the server, so entities mentioned in many documents are only
+ * requested once. The enhancement results of the documents sent to the server are cached as well, so unchanged
+ * documents are not enhanced again.
+ *
+ * The executors and caches are kept per setting: the jobs using other thread limits, cache sizes or times to live get
+ * their own, so a job does not resize or empty the ones of the other jobs. The caches no longer used are left to
+ * expire.
+ */
+public class StanbolClientPool
+{
+    /**
+     * Maximum number of idle clients kept per Stanbol server
+     */
+    private static final int MAX_IDLE_CLIENTS = 32;
+
+    /**
+     * Idle dereferencing and chunk enhancement threads are stopped after this many seconds
+     */
+    private static final long EXECUTOR_THREAD_KEEP_ALIVE = 60L;
+
+    private static final ConcurrentMap<String, StanbolClientPool> pools = new ConcurrentHashMap<String, StanbolClientPool>();
+
+    private final String stanbolServer;
+    private final StanbolClientFactory stanbolFactory;
+    private final BlockingQueue<Enhancer> idleEnhancers = new LinkedBlockingQueue<Enhancer>(MAX_IDLE_CLIENTS);
+    private final ConcurrentMap<String, EnhancementBatcher> batchers = new ConcurrentHashMap<String, EnhancementBatcher>();
+    // the executors by thread limit, and the caches by size and time to live, guarded by this
+    private final Map<Integer, ThreadPoolExecutor> dereferenceExecutors = new HashMap<Integer, ThreadPoolExecutor>();
+    private final Map<Integer, ThreadPoolExecutor> chunkExecutors = new HashMap<Integer, ThreadPoolExecutor>();
+    private final Map<String, Cache<String, DereferencedEntity>> entityCaches =
+            new HashMap<String, Cache<String, DereferencedEntity>>();
+    private final Map<String, Cache<String, EnhancementPayload>> resultCaches =
+            new HashMap<String, Cache<String, EnhancementPayload>>();
+
+    private StanbolClientPool(String stanbolServer)
+    {
+        this.stanbolServer = stanbolServer;
+        this.stanbolFactory = new StanbolClientFactory(stanbolServer);
+    }
+
+    /**
+     * Return the shared client pool for a Stanbol server, creating it on first use
+     *
+     * @param stanbolServer the Stanbol server url
+     * @return the client pool for the server
+     */
+    public static StanbolClientPool getPool(String stanbolServer)
+    {
+        StanbolClientPool pool = pools.get(stanbolServer);
+        if (pool == null)
+        {
+            StanbolClientPool newPool = new StanbolClientPool(stanbolServer);
+            pool = pools.putIfAbsent(stanbolServer, newPool);
+            if (pool == null)
+            {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Borrow an enhancer client from the pool. A new client is created if there is no idle one. The client must be
+     * given back with {@link #releaseEnhancer(Enhancer)} once the request is done.
+     *
+     * @return an enhancer client for this pool's Stanbol server
+     */
+    public Enhancer borrowEnhancer()
+    {
+        Enhancer enhancer = idleEnhancers.poll();
+        if (enhancer == null)
+        {
+            enhancer = stanbolFactory.createEnhancerClient();
+        }
+        return enhancer;
+    }
+
+    /**
+     * Give an enhancer client back to the pool. The client is simply dropped if the pool already holds the maximum
+     * number of idle clients.
+     *
+     * @param enhancer the client obtained from {@link #borrowEnhancer()}
+     */
+    public void releaseEnhancer(Enhancer enhancer)
+    {
+        if (enhancer != null)
+        {
+            idleEnhancers.offer(enhancer);
+        }
+    }
+
+    /**
+     * Return the batcher gathering the small documents enhanced with an enhancement chain of this pool's Stanbol
+     * server
+     *
+     * @param chain the enhancement chain
+     * @return the shared batcher for the chain
+     */
+    public EnhancementBatcher getBatcher(String chain)
+    {
+        EnhancementBatcher batcher = batchers.get(chain);
+        if (batcher == null)
+        {
+            EnhancementBatcher newBatcher = new EnhancementBatcher(this, chain);
+            batcher = batchers.putIfAbsent(chain, newBatcher);
+            if (batcher == null)
+            {
+                batcher = newBatcher;
+            }
+        }
+        return batcher;
+    }
+
+    /**
+     * Return the executor used to dereference the entities returned by this pool's Stanbol server. Tasks submitted
+     * beyond the thread limit are queued, so at most maxThreads dereferencing requests are sent to the server at the
+     * same time by the jobs using this limit.
+     *
+     * @param maxThreads the maximum number of concurrent dereferencing requests for the server
+     * @return the dereferencing executor shared by the callers using the same limit
+     */
+    public synchronized ExecutorService getDereferenceExecutor(int maxThreads)
+    {
+        ThreadPoolExecutor executor = dereferenceExecutors.get(maxThreads);
+        if (executor == null)
+        {
+            executor = createExecutor(maxThreads, "Stanbol dereference");
+            dereferenceExecutors.put(maxThreads, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Return the executor used to enhance the chunks of large documents with this pool's Stanbol server. At most
+     * maxThreads chunks are sent to the server at the same time by the jobs using this limit.
+     *
+     * @param maxThreads the maximum number of concurrent chunk enhancement requests for the server
+     * @return the chunk enhancement executor shared by the callers using the same limit
+     */
+    public synchronized ExecutorService getChunkExecutor(int maxThreads)
+    {
+        ThreadPoolExecutor executor = chunkExecutors.get(maxThreads);
+        if (executor == null)
+        {
+            executor = createExecutor(maxThreads, "Stanbol chunk enhancement");
+            chunkExecutors.put(maxThreads, executor);
+        }
+        return executor;
+    }
+
+    private ThreadPoolExecutor createExecutor(int maxThreads, String threadName)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, EXECUTOR_THREAD_KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(threadName + " ("
+                        + stanbolServer + ")"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Return the cache of the entities dereferenced from this pool's Stanbol server, keyed by entity reference. The
+     * least recently used entities are evicted once the cache holds more than the given size, and entities expire
+     * after the given time to live. The callers using the same settings share the cache.
+     *
+     * @param maxSize the maximum size of the cache in MB
+     * @param ttl the time to live of the cached entities in minutes
+     * @return the entity cache, or null if one of the settings is 0
+     */
+    public synchronized Cache<String, DereferencedEntity> getEntityCache(int maxSize, int ttl)
+    {
+        if (maxSize <= 0 || ttl <= 0)
+        {
+            return null;
+        }
+        String key = maxSize + "/" + ttl;
+        Cache<String, DereferencedEntity> entityCache = entityCaches.get(key);
+        if (entityCache == null)
+        {
+            entityCache = CacheBuilder.newBuilder().maximumWeight(maxSize * 1024L * 1024L)
+                    .weigher(new Weigher<String, DereferencedEntity>()
+                    {
+                        @Override
+                        public int weigh(String key, DereferencedEntity value)
+                        {
+                            return 2 * key.length() + value.getEstimatedSize();
+                        }
+                    }).expireAfterWrite(ttl, TimeUnit.MINUTES).recordStats().build();
+            entityCaches.put(key, entityCache);
+        }
+        return entityCache;
+    }
+
+    /**
+     * Return the cache of the enhancement results of the documents sent to this pool's Stanbol server. The callers
+     * using the same settings share the cache.
+     *
+     * @param maxSize the maximum size of the cache in MB
+     * @param ttl the time to live of the cached results in minutes
+     * @return the result cache, or null if one of the settings is 0
+     */
+    public synchronized Cache<String, EnhancementPayload> getResultCache(int maxSize, int ttl)
+    {
+        if (maxSize <= 0 || ttl <= 0)
+        {
+            return null;
+        }
+        String key = maxSize + "/" + ttl;
+        Cache<String, EnhancementPayload> resultCache = resultCaches.get(key);
+        if (resultCache == null)
+        {
+            resultCache = CacheBuilder.newBuilder().maximumWeight(maxSize * 1024L * 1024L)
+                    .weigher(new Weigher<String, EnhancementPayload>()
+                    {
+                        @Override
+                        public int weigh(String key, EnhancementPayload value)
+                        {
+                            return 2 * key.length() + value.getEstimatedSize();
+                        }
+                    }).expireAfterWrite(ttl, TimeUnit.MINUTES).recordStats().build();
+            resultCaches.put(key, resultCache);
+        }
+        return resultCache;
+    }
+
+    public String getStanbolServer()
+    {
+        return stanbolServer;
+    }
+
+    /**
+     * Creates daemon threads, so an idle pool never prevents the agent from shutting down
+     */
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String threadName;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public DaemonThreadFactory(String threadName)
+        {
+            this.threadName = threadName;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, threadName + " " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
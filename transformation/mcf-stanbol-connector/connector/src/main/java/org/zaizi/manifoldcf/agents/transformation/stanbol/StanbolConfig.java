@@ -26,6 +26,24 @@ public class StanbolConfig {
   public static final String ATTRIBUTE_VALUE = "value"; 
   public static final String STANBOL_SERVER_VALUE = "stanbol_server";
   public static final String STANBOL_CHAIN_VALUE = "stanbol_chain";
+  public static final String DEREFERENCE_PER_DOCUMENT_VALUE = "dereference_per_document";
+  public static final String DEREFERENCE_PER_SERVER_VALUE = "dereference_per_server";
+  public static final String ENTITY_CACHE_SIZE_VALUE = "entity_cache_size";
+  public static final String ENTITY_CACHE_TTL_VALUE = "entity_cache_ttl";
+  public static final String RESULT_CACHE_SIZE_VALUE = "result_cache_size";
+  public static final String RESULT_CACHE_TTL_VALUE = "result_cache_ttl";
+  public static final String USE_ENTITY_STORE_VALUE = "use_entity_store";
+  public static final String USE_BATCHING_VALUE = "use_batching";
+  public static final String BATCH_MAX_DOCUMENTS_VALUE = "batch_max_documents";
+  public static final String BATCH_MAX_SIZE_VALUE = "batch_max_size";
+  public static final String BATCH_MAX_WAIT_VALUE = "batch_max_wait";
+  public static final String CHUNK_MAX_SIZE_VALUE = "chunk_max_size";
+  public static final String CHUNK_PARALLELISM_VALUE = "chunk_parallelism";
+  public static final String USE_PACKED_ENTITIES_VALUE = "use_packed_entities";
+  public static final String USE_ENTITY_IDS_VALUE = "use_entity_ids";
+
+  // Configuration parameters
+  public static final String ENTITY_STORE_DIRECTORY_PARAM = "entityStoreDirectory";
   
   public static final String NODE_FIELDMAP = "fieldmap";
   public static final String NODE_KEEPMETADATA = "keepAllMetadata";
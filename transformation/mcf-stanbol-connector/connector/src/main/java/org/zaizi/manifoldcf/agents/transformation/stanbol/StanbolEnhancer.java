@@ -15,13 +15,17 @@ package org.zaizi.manifoldcf.agents.transformation.stanbol;
  *
  **/
 
-import org.apache.commons.io.IOUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import org.apache.commons.validator.routines.UrlValidator;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.stanbol.client.Enhancer;
-import org.apache.stanbol.client.StanbolClientFactory;
 import org.apache.stanbol.client.enhancer.impl.EnhancerParameters;
 import org.apache.stanbol.client.enhancer.model.EnhancementStructure;
 import org.apache.stanbol.client.enhancer.model.EntityAnnotation;
@@ -31,12 +35,26 @@ import org.apache.stanbol.client.services.exception.StanbolServiceException;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.openrdf.model.impl.URIImpl;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.ContentChunker;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.ContentChunker.Chunk;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.ContentSpool;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.DereferencedEntity;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.DocumentTextAnnotation;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.EnhancementPayload;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.EntityComparator;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.EntityStore;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.JsonDocumentWriter;
+import org.zaizi.manifoldcf.agents.transformation.stanbol.util.PackedEntityEncoder;
 
 /**
  * Stanbol Enhancer transformation connector
@@ -50,6 +68,9 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
     private static final String EDIT_SPECIFICATION_JS = "editSpecification.js";
     private static final String EDIT_SPECIFICATION_FIELDMAPPING_HTML = "editSpecification_FieldMapping.html";
     private static final String VIEW_SPECIFICATION_HTML = "viewSpecification.html";
+    private static final String EDIT_CONFIGURATION_JS = "editConfiguration.js";
+    private static final String EDIT_CONFIGURATION_ENTITYSTORE_HTML = "editConfiguration_EntityStore.html";
+    private static final String VIEW_CONFIGURATION_HTML = "viewConfiguration.html";
 
     private static final String STANBOL_ENDPOINT = "http://localhost:8081/";
     private static final String STANBOL_ENHANCEMENT_CHAIN = "default";
@@ -60,6 +81,9 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
     static final String DOC_IDS2POS_FIELD = "doc_ids2pos";
     static final String ENTITIES_FIELD = "entities";
     static final String ENTITIES_TYPES_FIELD = "entity_types";
+    // the ids of the entities and entity types, in the order of their JSONs, only added for the Solr wrapper
+    static final String ENTITY_IDS_FIELD = "entity_ids";
+    static final String ENTITY_TYPE_IDS_FIELD = "entity_type_ids";
     static final String PARENT_URI_FIELD = "doc_ids";
     static final String OCCURRENCES_FIELD = "occurrences";
     static final String SMLT_ENTITY_TYPES_FIELD = "smlt_entity_types";
@@ -91,9 +115,104 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
 
     public static final double DEFAULT_DISAMBIGUATION_SCORE = 0.7;
 
+    // entity dereferencing
+    public static final int DEFAULT_DEREFERENCE_PER_DOCUMENT = 8;
+    public static final int DEFAULT_DEREFERENCE_PER_SERVER = 16;
+
+    // dereferenced entity cache, the size is in MB and the time to live in minutes. 0 disables the cache
+    public static final int DEFAULT_ENTITY_CACHE_SIZE = 64;
+    public static final int DEFAULT_ENTITY_CACHE_TTL = 1440;
+    // enhancement result cache, the size is in MB and the time to live in minutes. 0 disables the cache
+    public static final int DEFAULT_RESULT_CACHE_SIZE = 32;
+    public static final int DEFAULT_RESULT_CACHE_TTL = 1440;
+
+    // batching of small documents, the size is in characters and the wait in milliseconds
+    public static final int DEFAULT_BATCH_MAX_DOCUMENTS = 16;
+    public static final int DEFAULT_BATCH_MAX_SIZE = 65536;
+    public static final int DEFAULT_BATCH_MAX_WAIT = 100;
+
+    // chunking of large documents, the size is in characters. 0 disables chunking
+    public static final int DEFAULT_CHUNK_MAX_SIZE = 0;
+    public static final int DEFAULT_CHUNK_PARALLELISM = 4;
+    private static final int CHUNK_OVERLAP = 200;
+
+    /**
+     * Charset of the document content, as requested in checkMimeTypeIndexable
+     */
+    private static final Charset CONTENT_CHARSET = Charset.forName("UTF-8");
+
     protected static final String[] activitiesList = new String[] { ACTIVITY_ENHANCE };
 
-    private StanbolClientFactory stanbolFactory = null;
+    /**
+     * Persistent store of the dereferenced entities, null if none is configured for the connection
+     */
+    private EntityStore entityStore = null;
+
+    /**
+     * Connect. The persistent entity store of the connection, if any, is opened and its index loaded here so the first
+     * documents do not pay for it.
+     * 
+     * @param configParameters is the set of configuration parameters
+     */
+    @Override
+    public void connect(ConfigParams configParameters)
+    {
+        super.connect(configParameters);
+        entityStore = openEntityStore();
+    }
+
+    /**
+     * Close the connection. The entity store stays open, as it is shared by all the connector instances using it.
+     */
+    @Override
+    public void disconnect() throws ManifoldCFException
+    {
+        entityStore = null;
+        super.disconnect();
+    }
+
+    /**
+     * This method is periodically called for all connectors that are connected but not in active use. The entity store
+     * is compacted here, if it holds too many replaced entities.
+     */
+    @Override
+    public void poll() throws ManifoldCFException
+    {
+        if (entityStore != null)
+        {
+            try
+            {
+                if (entityStore.compact())
+                {
+                    Logging.agents.info("Compacted Stanbol entity store, " + entityStore.size() + " entities");
+                }
+            }
+            catch (IOException e)
+            {
+                Logging.agents.warn("Error compacting Stanbol entity store : " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private EntityStore openEntityStore()
+    {
+        String directory = params == null ? null : params.getParameter(StanbolConfig.ENTITY_STORE_DIRECTORY_PARAM);
+        if (directory == null || directory.trim().length() == 0)
+        {
+            return null;
+        }
+        try
+        {
+            EntityStore store = EntityStore.getStore(new File(directory.trim()));
+            Logging.agents.info("Opened Stanbol entity store in " + directory + ", " + store.size() + " entities");
+            return store;
+        }
+        catch (IOException e)
+        {
+            Logging.agents.error("Error opening Stanbol entity store in " + directory + " : " + e.getMessage(), e);
+            return null;
+        }
+    }
 
     /**
      * Return a list of activities that this connector generates. The connector does NOT need to be connected before
@@ -208,6 +327,34 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
     public int addOrReplaceDocumentWithException(String documentURI, VersionContext pipelineDescription,
             RepositoryDocument document, String authorityNameString, IOutputAddActivity activities)
             throws ManifoldCFException, ServiceInterruption, IOException
+    {
+        // the content is read once and kept (in memory or in a temporary file) until the document has been sent
+        // downstream
+        ContentSpool contentSpool = ContentSpool.spool(document.getBinaryStream(), document.getBinaryLength(),
+                ContentSpool.DEFAULT_MEMORY_THRESHOLD);
+        try
+        {
+            return enhanceDocument(documentURI, pipelineDescription, document, contentSpool, activities);
+        }
+        finally
+        {
+            contentSpool.close();
+        }
+    }
+
+    /**
+     * Enhance the spooled content of a document and send the enriched copy of the document downstream
+     * 
+     * @param documentURI is the URI of the document.
+     * @param pipelineDescription is the document's pipeline version string, for this connection.
+     * @param document is the original document.
+     * @param contentSpool holds the content of the document.
+     * @param activities is the handle used to log activities and send the document to the next pipeline stage.
+     * @return the document status (accepted or permanently rejected).
+     */
+    private int enhanceDocument(String documentURI, VersionContext pipelineDescription, RepositoryDocument document,
+            ContentSpool contentSpool, IOutputAddActivity activities) throws ManifoldCFException, ServiceInterruption,
+            IOException
     {
         long startTime = System.currentTimeMillis();
         Logging.agents.info("Starting to enhance document content in Stanbol connector ");
@@ -220,272 +367,831 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
         String stanbolServer = sp.getStanbolServer();
         String chain = sp.getStanbolChain();
 
-        // mapping of stanbol props : solr field keys
-        Map<String, String> sourceTargets = sp.getSourceTargets();
-        boolean keepAllMetaData = sp.keepAllMetadata();
-
-        stanbolFactory = new StanbolClientFactory(stanbolServer);
+        // enhancer clients are shared by all the documents sent to the same Stanbol server
+        StanbolClientPool clientPool = StanbolClientPool.getPool(stanbolServer);
 
         // Extracting Content.
-        long length = document.getBinaryLength();
-        byte[] copy = IOUtils.toByteArray(document.getBinaryStream());
-        String content = new String(copy);
+        long length = contentSpool.getLength();
+
+        // Create a copy of Repository Document
+        RepositoryDocument docCopy = document.duplicate();
+
+        // documents whose content and settings did not change get the fields computed the last time
+        Cache<String, EnhancementPayload> resultCache = clientPool.getResultCache(sp.getResultCacheSize(),
+                sp.getResultCacheTTL());
+        String resultKey = null;
+        EnhancementPayload payload = null;
+        if (resultCache != null)
+        {
+            resultKey = computeResultKey(documentURI, contentSpool, sp);
+            payload = resultCache.getIfPresent(resultKey);
+        }
+
+        if (payload != null)
+        {
+            Logging.agents.debug("Reusing the cached enhancement result for document : " + documentURI);
+            activities.recordActivity(new Long(startTime), ACTIVITY_ENHANCE, length, documentURI, "CACHED",
+                    describeResultCache(resultCache));
+        }
+        else
+        {
+            Enhancer enhancerClient = null;
+            Map<DocumentTextAnnotation, Collection<EntityAnnotation>> annotations = null;
+            try
+            {
+                // the Stanbol client only takes the content as a string, so the whole content is loaded here
+                String content = contentSpool.getContent(CONTENT_CHARSET);
+                if (sp.getChunkMaxSize() > 0 && content.length() > sp.getChunkMaxSize())
+                {
+                    // large documents are enhanced in smaller pieces
+                    annotations = enhanceInChunks(content, sp, clientPool);
+                }
+                else if (sp.useBatching() && content.length() <= sp.getBatchMaxSize())
+                {
+                    // small documents are enhanced together with the ones other threads are enhancing
+                    annotations = clientPool.getBatcher(chain).enhance(content, sp.getBatchMaxDocuments(),
+                            sp.getBatchMaxSize(), sp.getBatchMaxWait());
+                }
+                if (annotations == null)
+                {
+                    enhancerClient = clientPool.borrowEnhancer();
+                    EnhancerParameters parameters = EnhancerParameters.builder().setChain(chain).setContent(content)
+                            .build();
+                    annotations = getAnnotations(enhancerClient.enhance(parameters));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new ManifoldCFException("Interrupted: " + e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+            }
+            catch (StanbolServiceException e)
+            {
+                Logging.agents.error("Error occurred while performing Stanbol enhancement for document : "
+                        + documentURI, e);
+                resultCode = "STANBOL_ENHANCEMENT_FAIL";
+                description = e.getMessage();
+            }
+            finally
+            {
+                clientPool.releaseEnhancer(enhancerClient);
+                if (description == null && resultCache != null)
+                {
+                    description = describeResultCache(resultCache);
+                }
+                activities.recordActivity(new Long(startTime), ACTIVITY_ENHANCE, length, documentURI, resultCode,
+                        description);
+
+            }
+            if (annotations == null)
+            {
+                // if no enhancement result is received, cannot enhance document, hence reject it
+                return DOCUMENTSTATUS_REJECTED; // TODO Make This Configurable
+            }
+
+            payload = buildEnhancementPayload(documentURI, annotations, sp, clientPool);
+            if (resultCache != null && payload.isComplete())
+            {
+                resultCache.put(resultKey, payload);
+            }
+        }
+
+        // Enrichment complete!
+        if (sp.usePackedEntities())
+        {
+            // Add Entities and Entities's types as single packed values, with their ids
+            docCopy.addField(ENTITIES_FIELD, PackedEntityEncoder.encode(payload.getEntityIds(), payload.getEntities()));
+            docCopy.addField(ENTITIES_TYPES_FIELD,
+                    PackedEntityEncoder.encode(payload.getEntityTypeIds(), payload.getEntityTypes()));
+        }
+        else
+        {
+            // Add Entities JSONs
+            docCopy.addField(ENTITIES_FIELD, payload.getEntities());
+            // Add Entities's types JSONs
+            docCopy.addField(ENTITIES_TYPES_FIELD, payload.getEntityTypes());
+            if (sp.useEntityIds())
+            {
+                // Add the ids of the JSONs, in the same order, removed by the Solr wrapper output connector
+                docCopy.addField(ENTITY_IDS_FIELD, payload.getEntityIds());
+                docCopy.addField(ENTITY_TYPE_IDS_FIELD, payload.getEntityTypeIds());
+            }
+        }
+
+        // // Add Semantic Metadata
+        // these are flat fields/ no hierarchy
+        docCopy.addField(SMLT_ENTITY_URI_FIELD, payload.getEntityURIs());
+        docCopy.addField(SMLT_ENTITY_TYPES_FIELD, payload.getEntityTypeURIs());
+
+        // tagging the primary document whether it has person, org, place type entities
+        docCopy.addField(PERSON_TYPE_FIELD, Boolean.toString(payload.hasPerson()));
+        docCopy.addField(ORGANIZATION_TYPE_FIELD, Boolean.toString(payload.hasOrganization()));
+        docCopy.addField(PLACE_TYPE_FIELD, Boolean.toString(payload.hasPlace()));
+
+        // Send new document downstream, re-reading the spooled content
+        InputStream contentStream = contentSpool.getInputStream();
+        try
+        {
+            docCopy.setBinary(contentStream, length);
+            int rval = activities.sendDocument(documentURI, docCopy);
+            resultCode = (rval == DOCUMENTSTATUS_ACCEPTED) ? "ACCEPTED" : "REJECTED";
+            return rval;
+        }
+        finally
+        {
+            contentStream.close();
+        }
+
+    }
+
+    /**
+     * Enhance a large content in chunks. Up to the configured number of chunks are enhanced at the same time, on the
+     * executor shared by all the documents sent to the same Stanbol server. The text annotations of two chunks that
+     * overlap in the content, as the ones found twice in the overlapping part of the chunks, are merged: their entity
+     * annotations are combined by entity reference, keeping the highest confidence for each entity.
+     * 
+     * @param content the content to enhance
+     * @param sp the specification
+     * @param clientPool the client pool of the Stanbol server
+     * @return the text annotations of the content with their entity annotations
+     * @throws StanbolServiceException if the enhancement of a chunk failed
+     * @throws InterruptedException
+     */
+    private static Map<DocumentTextAnnotation, Collection<EntityAnnotation>> enhanceInChunks(String content, SpecPacker sp,
+            final StanbolClientPool clientPool) throws StanbolServiceException, InterruptedException
+    {
+        List<Chunk> chunks = ContentChunker.split(content, sp.getChunkMaxSize(), CHUNK_OVERLAP);
+        Logging.agents.debug("Enhancing content of " + content.length() + " characters in " + chunks.size()
+                + " chunks");
+        final String chain = sp.getStanbolChain();
+        ExecutorService executor = clientPool.getChunkExecutor(sp.getChunkParallelism());
+        CompletionService<EnhancementStructure> completionService = new ExecutorCompletionService<EnhancementStructure>(
+                executor);
+        Map<Future<EnhancementStructure>, Chunk> pending = new HashMap<Future<EnhancementStructure>, Chunk>();
+        int maxInFlight = sp.getChunkParallelism();
+        int next = 0;
+
+        List<ChunkAnnotation> chunkAnnotations = new ArrayList<ChunkAnnotation>();
+
+        try
+        {
+            while (next < chunks.size() || !pending.isEmpty())
+            {
+                while (next < chunks.size() && pending.size() < maxInFlight)
+                {
+                    final Chunk chunk = chunks.get(next);
+                    Future<EnhancementStructure> future = completionService.submit(new Callable<EnhancementStructure>()
+                    {
+                        @Override
+                        public EnhancementStructure call() throws StanbolServiceException
+                        {
+                            Enhancer enhancerClient = clientPool.borrowEnhancer();
+                            try
+                            {
+                                EnhancerParameters parameters = EnhancerParameters.builder().setChain(chain)
+                                        .setContent(chunk.getText()).build();
+                                return enhancerClient.enhance(parameters);
+                            }
+                            finally
+                            {
+                                clientPool.releaseEnhancer(enhancerClient);
+                            }
+                        }
+                    });
+                    pending.put(future, chunk);
+                    next++;
+                }
+
+                Future<EnhancementStructure> done = completionService.take();
+                Chunk chunk = pending.remove(done);
+                EnhancementStructure eRes;
+                try
+                {
+                    eRes = done.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof StanbolServiceException)
+                    {
+                        throw (StanbolServiceException) e.getCause();
+                    }
+                    throw new RuntimeException("Error enhancing chunk at offset " + chunk.getOffset(), e.getCause());
+                }
+                if (eRes == null)
+                {
+                    continue;
+                }
+
+                for (TextAnnotation ta : eRes.getTextAnnotations())
+                {
+                    ChunkAnnotation chunkAnnotation = new ChunkAnnotation(chunk.getOffset(),
+                            new DocumentTextAnnotation(ta, chunk.getOffset()));
+                    chunkAnnotation.addEntityAnnotations(eRes.getEntityAnnotations(ta));
+                    chunkAnnotations.add(chunkAnnotation);
+                }
+            }
+        }
+        finally
+        {
+            for (Future<EnhancementStructure> future : pending.keySet())
+            {
+                future.cancel(true);
+            }
+        }
+
+        Map<DocumentTextAnnotation, Collection<EntityAnnotation>> annotations = new LinkedHashMap<DocumentTextAnnotation, Collection<EntityAnnotation>>();
+        for (ChunkAnnotation chunkAnnotation : mergeChunkAnnotations(chunkAnnotations))
+        {
+            annotations.put(chunkAnnotation.textAnnotation, chunkAnnotation.entityAnnotations.values());
+        }
+        return annotations;
+    }
+
+    /**
+     * Merge the text annotations of the chunks of a content. An annotation is merged into a previous one at the same
+     * position, or overlapping it and found in another chunk: the same mention seen in the overlapping part of two
+     * chunks, possibly cut short at the end of the first one.
+     * 
+     * @param chunkAnnotations the text annotations of all the chunks
+     * @return the merged annotations, in text order
+     */
+    private static List<ChunkAnnotation> mergeChunkAnnotations(List<ChunkAnnotation> chunkAnnotations)
+    {
+        Collections.sort(chunkAnnotations, new Comparator<ChunkAnnotation>()
+        {
+            @Override
+            public int compare(ChunkAnnotation a1, ChunkAnnotation a2)
+            {
+                int start1 = a1.textAnnotation.getStart();
+                int start2 = a2.textAnnotation.getStart();
+                if (start1 != start2)
+                {
+                    return start1 < start2 ? -1 : 1;
+                }
+                int end1 = a1.textAnnotation.getEnd();
+                int end2 = a2.textAnnotation.getEnd();
+                return end1 < end2 ? -1 : (end1 == end2 ? 0 : 1);
+            }
+        });
+
+        List<ChunkAnnotation> merged = new ArrayList<ChunkAnnotation>();
+        for (ChunkAnnotation chunkAnnotation : chunkAnnotations)
+        {
+            DocumentTextAnnotation ta = chunkAnnotation.textAnnotation;
+            ChunkAnnotation into = null;
+            // a mention found twice lies within the overlap of the chunks, so its positions are close
+            for (int i = merged.size() - 1; i >= 0 && into == null; i--)
+            {
+                ChunkAnnotation previous = merged.get(i);
+                DocumentTextAnnotation previousTa = previous.textAnnotation;
+                if (previousTa.getStart() <= ta.getStart() - CHUNK_OVERLAP)
+                {
+                    break;
+                }
+                boolean samePosition = previousTa.getStart() == ta.getStart() && previousTa.getEnd() == ta.getEnd();
+                boolean overlapping = previousTa.getEnd() > ta.getStart()
+                        && !previous.chunkOffsets.contains(chunkAnnotation.chunkOffset);
+                if (samePosition || overlapping)
+                {
+                    into = previous;
+                }
+            }
+
+            if (into == null)
+            {
+                merged.add(chunkAnnotation);
+            }
+            else
+            {
+                into.chunkOffsets.add(chunkAnnotation.chunkOffset);
+                into.addEntityAnnotations(chunkAnnotation.entityAnnotations.values());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Get the text annotations of an enhancement result with their entity annotations
+     * 
+     * @param eRes the enhancement result, may be null
+     * @return the annotations, or null if there is no result
+     */
+    private static Map<DocumentTextAnnotation, Collection<EntityAnnotation>> getAnnotations(EnhancementStructure eRes)
+    {
+        if (eRes == null)
+        {
+            return null;
+        }
+        Map<DocumentTextAnnotation, Collection<EntityAnnotation>> annotations = new LinkedHashMap<DocumentTextAnnotation, Collection<EntityAnnotation>>();
+        for (TextAnnotation ta : eRes.getTextAnnotations())
+        {
+            annotations.put(new DocumentTextAnnotation(ta, 0), eRes.getEntityAnnotations(ta));
+        }
+        return annotations;
+    }
+
+    /**
+     * Build the fields of an enhanced document from the Stanbol enhancement result
+     * 
+     * @param documentURI the URI of the primary document
+     * @param annotations the text annotations of the document with their entity annotations
+     * @param sp the specification
+     * @param clientPool the client pool of the Stanbol server
+     * @return the fields to add to the document
+     * @throws ManifoldCFException if the thread is interrupted
+     */
+    private EnhancementPayload buildEnhancementPayload(String documentURI,
+            Map<DocumentTextAnnotation, Collection<EntityAnnotation>> annotations, SpecPacker sp, StanbolClientPool clientPool)
+            throws ManifoldCFException
+    {
+        boolean hasPersonTypeEntities = false;
+        boolean hasOrganizationTypeEntities = false;
+        boolean hasPlaceTypeEntities = false;
+        boolean complete = true;
 
         Set<String> uris = new HashSet<String>();
         // entityType uris
         Collection<String> entityTypeURIs = new HashSet<String>();
         Collection<String> entitiesJsons = new ArrayList<String>();
         Collection<String> entitiesTypesJSONs = new ArrayList<String>();
+        // the ids of the JSONs, so the output connector does not have to parse them
+        Collection<String> entityIds = new ArrayList<String>();
+        Collection<String> entityTypeIds = new ArrayList<String>();
+
+        List<EntityAnnotation> entityAnnotations = new ArrayList<EntityAnnotation>();
+        for (Map.Entry<DocumentTextAnnotation, Collection<EntityAnnotation>> annotation : annotations.entrySet())
+        {
+            Logging.agents.debug("Processing text annotation for content : " + annotation.getKey().getUri());
+            // need to disambiguate the entity-annotations returned
+            for (EntityAnnotation ea : annotation.getValue())
+            {
+                double confidence = ea.getConfidence();
+                Logging.agents.debug("Processing entity annotation for content : " + ea.getUri() + " confidence : "
+                        + confidence);
+                if (confidence < DEFAULT_DISAMBIGUATION_SCORE)
+                {
+                    Logging.agents.debug("Confidence for the entity annotation is below the threshold, hence not processing the entity annotation");
+                }
+                else
+                {
+                    uris.add(ea.getEntityReference());
+                    entityAnnotations.add(ea);
+                }
+            }
+        }
+
+        // sorting the annotations keeps the order of the entities independent of the dereferencing order
+        Collections.sort(entityAnnotations, new EntityComparator());
+        EntityResult[] entityResults = dereferenceEntities(documentURI, entityAnnotations, sp, clientPool);
+
+        for (EntityResult entityResult : entityResults)
+        {
+            if (entityResult == null)
+            {
+                // the entity could not be dereferenced
+                continue;
+            }
+            if (entityResult == DEREFERENCE_FAILED)
+            {
+                complete = false;
+                continue;
+            }
+            entitiesJsons.add(entityResult.entityJSON); // we need the array
+            entityIds.add(entityResult.entityId);
+
+            for (EntityTypeResult typeResult : entityResult.entityTypes)
+            {
+                // process entity types for this document, if that entity type
+                // is not already processed for this document
+                if (entityTypeURIs.add(typeResult.typeURI))
+                {
+                    entitiesTypesJSONs.add(typeResult.entityTypeJSON);
+                    entityTypeIds.add(typeResult.typeURI);
+
+                    if (typeResult.typeLiteral.equalsIgnoreCase(PERSON_ENTITY_ATTRIBUTE_VALUE))
+                    {
+                        hasPersonTypeEntities = true;
+                    }
+                    else if (typeResult.typeLiteral.equalsIgnoreCase(ORGANIZATION_ENTITY_ATTRIBUTE_VALUE))
+                    {
+                        hasOrganizationTypeEntities = true;
+                    }
+                    else if (typeResult.typeLiteral.equalsIgnoreCase(PLACE_ENTITY_ATTRIBUTE_VALUE))
+                    {
+                        hasPlaceTypeEntities = true;
+                    }
+                }
+            }
+        }
+
+        return new EnhancementPayload(entitiesJsons.toArray(new String[entitiesJsons.size()]),
+                entitiesTypesJSONs.toArray(new String[entitiesTypesJSONs.size()]), entityIds
+                        .toArray(new String[entityIds.size()]), entityTypeIds.toArray(new String[entityTypeIds
+                        .size()]), uris.toArray(new String[uris.size()]), entityTypeURIs
+                        .toArray(new String[entityTypeURIs.size()]), hasPersonTypeEntities,
+                hasOrganizationTypeEntities, hasPlaceTypeEntities, complete);
+    }
+
+    /**
+     * Compute the key of a document in the enhancement result cache: a SHA-256 hash of everything the enhancement
+     * fields depend on: the content, the server, chain and field mappings, and the chunking, batching and entity
+     * dereferencing settings. The document URI is part of it as the entity JSONs refer to the document.
+     * 
+     * @param documentURI the URI of the document
+     * @param contentSpool the content of the document
+     * @param sp the specification
+     * @return the cache key
+     * @throws IOException
+     */
+    private static String computeResultKey(String documentURI, ContentSpool contentSpool, SpecPacker sp)
+            throws IOException
+    {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(documentURI, CONTENT_CHARSET).putByte((byte) 0);
+        hasher.putString(sp.toPackedString(), CONTENT_CHARSET).putByte((byte) 0);
+        // the packed specification does not hold the enhancement chain
+        hasher.putString(String.valueOf(sp.getStanbolChain()), CONTENT_CHARSET).putByte((byte) 0);
+        hasher.putBoolean(sp.keepAllMetadata());
+        // the enhancement differs when the content is split in chunks or enhanced along with other documents
+        hasher.putInt(sp.getChunkMaxSize());
+        hasher.putBoolean(sp.useBatching());
+        hasher.putInt(sp.getBatchMaxSize());
+        hasher.putInt(sp.getBatchMaxDocuments());
+        // and the entities may be dereferenced from the store or from the cache
+        hasher.putBoolean(sp.useEntityStore());
+        hasher.putInt(sp.getEntityCacheTTL());
+        hasher.putLong(contentSpool.getLength());
+        InputStream contentStream = contentSpool.getInputStream();
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = contentStream.read(buffer)) != -1)
+            {
+                hasher.putBytes(buffer, 0, read);
+            }
+        }
+        finally
+        {
+            contentStream.close();
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the enhancement result cache counters, for the activity log
+     */
+    private static String describeResultCache(Cache<String, EnhancementPayload> resultCache)
+    {
+        CacheStats stats = resultCache.stats();
+        return "Result cache hits: " + stats.hitCount() + ", misses: " + stats.missCount() + ", hit rate: "
+                + Math.round(stats.hitRate() * 100) + "%";
+    }
+
+    /**
+     * Dereference the entities of a document. Entities found in the entity cache of the Stanbol server are used
+     * directly. The others are dereferenced on the executor shared by all the documents sent to the same server, with
+     * up to the configured number of entities per document in flight at the same time. The entity JSON is built as
+     * soon as each dereferenced entity is received.
+     * 
+     * @param documentURI the URI of the primary document
+     * @param entityAnnotations the entity annotations to dereference
+     * @param sp the specification
+     * @param clientPool the client pool of the Stanbol server
+     * @return the results, in the same order as the annotations. The result is null for entities that could not be
+     *         found and {@link #DEREFERENCE_FAILED} for the ones that could not be dereferenced because of an error.
+     * @throws ManifoldCFException if the thread is interrupted
+     */
+    private EntityResult[] dereferenceEntities(String documentURI, List<EntityAnnotation> entityAnnotations,
+            SpecPacker sp, StanbolClientPool clientPool) throws ManifoldCFException
+    {
+        EntityResult[] entityResults = new EntityResult[entityAnnotations.size()];
+        final Cache<String, DereferencedEntity> entityCache = clientPool.getEntityCache(sp.getEntityCacheSize(),
+                sp.getEntityCacheTTL());
+        final EntityStore store = sp.useEntityStore() ? entityStore : null;
+        final String stanbolServer = clientPool.getStanbolServer();
+        final long maxAge = sp.getEntityCacheTTL() * 60L * 1000L;
+        ExecutorService executor = clientPool.getDereferenceExecutor(sp.getDereferencePerServer());
+        CompletionService<DereferencedEntity> completionService = new ExecutorCompletionService<DereferencedEntity>(
+                executor);
+        Map<Future<DereferencedEntity>, Integer> pending = new HashMap<Future<DereferencedEntity>, Integer>();
+        int maxInFlight = sp.getDereferencePerDocument();
+        int next = 0;
+
+        try
+        {
+            while (next < entityAnnotations.size() || !pending.isEmpty())
+            {
+                while (next < entityAnnotations.size() && pending.size() < maxInFlight)
+                {
+                    final EntityAnnotation ea = entityAnnotations.get(next);
+                    DereferencedEntity cached = entityCache == null ? null : entityCache.getIfPresent(ea
+                            .getEntityReference());
+                    if (cached != null)
+                    {
+                        entityResults[next] = buildEntityResult(documentURI, ea, cached, sp);
+                    }
+                    else
+                    {
+                        Future<DereferencedEntity> future = completionService.submit(new Callable<DereferencedEntity>()
+                        {
+                            @Override
+                            public DereferencedEntity call() throws Exception
+                            {
+                                return dereferenceEntity(ea, entityCache, store, stanbolServer, maxAge);
+                            }
+                        });
+                        pending.put(future, next);
+                    }
+                    next++;
+                }
+                if (pending.isEmpty())
+                {
+                    continue;
+                }
+
+                Future<DereferencedEntity> done = completionService.take();
+                int index = pending.remove(done);
+                EntityAnnotation ea = entityAnnotations.get(index);
+                try
+                {
+                    DereferencedEntity entity = done.get();
+                    if (entity != null)
+                    {
+                        entityResults[index] = buildEntityResult(documentURI, ea, entity, sp);
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    Logging.agents.error("Error dereferencing entity : " + ea.getEntityReference(), e.getCause());
+                    entityResults[index] = DEREFERENCE_FAILED;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            for (Future<DereferencedEntity> future : pending.keySet())
+            {
+                future.cancel(true);
+            }
+            throw new ManifoldCFException("Interrupted: " + e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+        }
+
+        if (entityCache != null && Logging.agents.isDebugEnabled())
+        {
+            CacheStats stats = entityCache.stats();
+            Logging.agents.debug("Entity cache for " + clientPool.getStanbolServer() + " : " + entityCache.size()
+                    + " entities, hits : " + stats.hitCount() + " misses : " + stats.missCount() + " evictions : "
+                    + stats.evictionCount());
+        }
+        return entityResults;
+    }
+
+    /**
+     * Dereference an entity, going through the entity cache when there is one. Concurrent requests for the same
+     * entity wait for a single dereferencing request.
+     * 
+     * @param ea the entity annotation
+     * @param entityCache the entity cache, or null if entities are not cached
+     * @param store the persistent entity store, or null if entities are not stored
+     * @param stanbolServer the Stanbol server the entity comes from
+     * @param maxAge stored entities older than this many milliseconds are dereferenced again, 0 for no limit
+     * @return the dereferenced entity, or null if the entity could not be dereferenced
+     * @throws ExecutionException if the entity could not be loaded in the cache
+     */
+    private static DereferencedEntity dereferenceEntity(final EntityAnnotation ea,
+            Cache<String, DereferencedEntity> entityCache, final EntityStore store, final String stanbolServer,
+            final long maxAge) throws ExecutionException
+    {
+        if (entityCache == null)
+        {
+            return loadEntity(ea, store, stanbolServer, maxAge);
+        }
+        try
+        {
+            return entityCache.get(ea.getEntityReference(), new Callable<DereferencedEntity>()
+            {
+                @Override
+                public DereferencedEntity call()
+                {
+                    return loadEntity(ea, store, stanbolServer, maxAge);
+                }
+            });
+        }
+        catch (InvalidCacheLoadException e)
+        {
+            // the entity could not be dereferenced, nothing is cached
+            return null;
+        }
+    }
+
+    /**
+     * Read an entity from the persistent store, or dereference it from Stanbol and add it to the store
+     * 
+     * @param ea the entity annotation
+     * @param store the persistent entity store, or null if entities are not stored
+     * @param stanbolServer the Stanbol server the entity comes from
+     * @param maxAge stored entities older than this many milliseconds are dereferenced again, 0 for no limit
+     * @return the dereferenced entity, or null if the entity could not be dereferenced
+     */
+    private static DereferencedEntity loadEntity(EntityAnnotation ea, EntityStore store, String stanbolServer,
+            long maxAge)
+    {
+        if (store == null)
+        {
+            return createDereferencedEntity(ea.getDereferencedEntity());
+        }
+        // the same store can be used with several Stanbol servers
+        String storeKey = stanbolServer + " " + ea.getEntityReference();
+        try
+        {
+            DereferencedEntity storedEntity = store.get(storeKey, maxAge);
+            if (storedEntity != null)
+            {
+                return storedEntity;
+            }
+        }
+        catch (IOException e)
+        {
+            Logging.agents.warn("Error reading entity from Stanbol entity store : " + storeKey, e);
+        }
+
+        DereferencedEntity entity = createDereferencedEntity(ea.getDereferencedEntity());
+        if (entity != null)
+        {
+            try
+            {
+                store.put(storeKey, entity);
+            }
+            catch (IOException e)
+            {
+                Logging.agents.warn("Error writing entity to Stanbol entity store : " + storeKey, e);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Take a snapshot of the entity properties used to build the entity documents
+     * 
+     * @param entity the dereferenced entity
+     * @return the snapshot, or null if the entity is null
+     */
+    private static DereferencedEntity createDereferencedEntity(Entity entity)
+    {
+        if (entity == null)
+        {
+            return null;
+        }
+        Map<String, Collection<String>> propertyValues = new LinkedHashMap<String, Collection<String>>();
+        Map<String, Collection<String>> englishValues = new HashMap<String, Collection<String>>();
+        for (String property : entity.getProperties())
+        {
+            Collection<String> values = entity.getPropertyValues(property);
+            if (values != null)
+            {
+                propertyValues.put(property, new ArrayList<String>(values));
+            }
+            String localPropertyName = getURILocalName(property);
+            if (localPropertyName.equals(NAME_FIELD) || localPropertyName.equals(LABEL_FIELD))
+            {
+                Collection<String> englishLiteralValues = entity.getPropertyValuesByLanguage(property, "en");
+                if (englishLiteralValues != null)
+                {
+                    englishValues.put(property, new ArrayList<String>(englishLiteralValues));
+                }
+            }
+        }
+        return new DereferencedEntity(new ArrayList<String>(entity.getTypes()), propertyValues, englishValues);
+    }
+
+    /**
+     * Build the entity JSON and the entity type JSONs of a dereferenced entity
+     * 
+     * @param documentURI the URI of the primary document
+     * @param ea the entity annotation
+     * @param entity the dereferenced entity
+     * @param sp the specification
+     * @return the JSONs for the entity, or null if they could not be created
+     */
+    private EntityResult buildEntityResult(String documentURI, EntityAnnotation ea, DereferencedEntity entity,
+            SpecPacker sp)
+    {
+        Map<String, String> sourceTargets = sp.getSourceTargets();
+        boolean keepAllMetaData = sp.keepAllMetadata();
 
-        Enhancer enhancerClient = null;
-        EnhancementStructure eRes = null;
-        // Create a copy of Repository Document
-        RepositoryDocument docCopy = document.duplicate();
-        docCopy.setBinary(new ByteArrayInputStream(copy), length);
+        // the fields are gathered first as later fields replace earlier ones with the same name
+        Map<String, Object> nextEntityFields = new LinkedHashMap<String, Object>();
+        List<EntityTypeResult> entityTypes = new ArrayList<EntityTypeResult>();
+
+        // adding only the entity-type label;not the whole URI
+        Set<String> typeLabels = new HashSet<String>();
 
         try
         {
-            enhancerClient = stanbolFactory.createEnhancerClient();
-            EnhancerParameters parameters = EnhancerParameters.builder().setChain(chain).setContent(content).build();
-            eRes = enhancerClient.enhance(parameters);
+            nextEntityFields.put(OCCURRENCES_FIELD, Collections.singletonMap("inc", 1));
 
-        }
-        catch (StanbolServiceException e)
-        {
-            Logging.agents.error("Error occurred while performing Stanbol enhancement for document : " + documentURI, e);
-            resultCode = "STANBOL_ENHANCEMENT_FAIL";
-            description = e.getMessage();
-        }
-        finally
-        {
-            activities.recordActivity(new Long(startTime), ACTIVITY_ENHANCE, length, documentURI, resultCode,
-                    description);
+            // to refer to the primary document in the entity object under doc_ids
+            nextEntityFields.put(PARENT_URI_FIELD, Collections.singletonMap("add", documentURI));
+            // putting the ID of the entity
+            nextEntityFields.put(ENTITY_INDEX_ID_FIELD, ea.getEntityReference());
 
-        }
-        if (eRes == null)
-        {
-            // if no enhancement result is received, cannot enhance document, hence reject it
-            return DOCUMENTSTATUS_REJECTED; // TODO Make This Configurable
-        }
-        else
-        {
-            boolean hasPersonTypeEntities = false;
-            boolean hasOrganizationTypeEntities = false;
-            boolean hasPlaceTypeEntities = false;
+            // manually add some default properties for entities
+            nextEntityFields.put(LABEL_FIELD, ea.getEntityLabel());
 
-            for (TextAnnotation ta : eRes.getTextAnnotations())
+            if (keepAllMetaData)
             {
-                Logging.agents.debug("Processing text annotation for content : " + ta.getUri());
-                // need to disambiguate the entity-annotations returned
-                for (EntityAnnotation ea : eRes.getEntityAnnotations(ta))
+                // all property values are indexed in the entity object
+                Collection<String> entityProperties = entity.getProperties();
+                for (String property : entityProperties)
                 {
-                    double confidence = ea.getConfidence();
-                    Logging.agents.debug("Processing entity annotation for content : " + ea.getUri() + " confidence : "
-                            + confidence);
-                    if (confidence < DEFAULT_DISAMBIGUATION_SCORE)
+                    String localPropertyName = getURILocalName(property);
+                    // filtering english label, name properties if language attribute is available
+                    if (localPropertyName.equals(NAME_FIELD) || localPropertyName.equals(LABEL_FIELD))
                     {
-                        Logging.agents.debug("Confidence for the entity annotation is below the threshold, hence not processing the entity annotation");
+                        Collection<String> englishLiteralValues = entity.getEnglishPropertyValues(property);
+                        if (englishLiteralValues != null)
+                        {
+                            nextEntityFields.put(NAME_FIELD, englishLiteralValues);
+                        }
                     }
                     else
                     {
-                        JSONArray nextEntityJSONArray = new JSONArray();
-                        JSONObject nextEntityJSON = new JSONObject();
-                        nextEntityJSONArray.put(nextEntityJSON);
-                        boolean jsonFail = false;
+                        Collection<String> propValues = entity.getPropertyValues(property);
+                        nextEntityFields.put(localPropertyName, propValues);
+                    }
 
-                        Entity entity = null;
-                        // adding only the entity-type label;not the whole URI
-                        Set<String> typeLabels = new HashSet<String>();
+                }
+            }
 
-                        uris.add(ea.getEntityReference());
-                        try
-                        {
-                            // dereference the entity
-                            entity = ea.getDereferencedEntity();
-                            if (entity != null)
-                            {
-                                JSONObject occur = new JSONObject();
-                                occur.put("inc", 1);
-                                nextEntityJSON.put(OCCURRENCES_FIELD, occur);
-
-                                // to refer to the primary document in the entity object under doc_ids
-                                JSONObject parentURI = new JSONObject();
-                                parentURI.put("add", documentURI);
-                                nextEntityJSON.put(PARENT_URI_FIELD, parentURI);
-                                // putting the ID of the entity
-                                nextEntityJSON.put(ENTITY_INDEX_ID_FIELD, ea.getEntityReference());
-
-                                // manually add some default properties for entities
-                                nextEntityJSON.put(LABEL_FIELD, ea.getEntityLabel());
-                                
-                                if (keepAllMetaData)
-                                {
-                                    // all property values are indexed in the entity object
-                                    Collection<String> entityProperties = entity.getProperties();
-                                    for (String property : entityProperties)
-                                    {
-                                        String localPropertyName = getURILocalName(property);
-                                        // filtering english label, name properties if language attribute is available
-                                        if (localPropertyName.equals(NAME_FIELD)
-                                                || localPropertyName.equals(LABEL_FIELD))
-                                        {
-                                            Collection<String> englishLiteralValues = entity.getPropertyValuesByLanguage(property, "en");
-                                            if (englishLiteralValues != null)
-                                            {
-                                                nextEntityJSON.put(NAME_FIELD, englishLiteralValues);
-                                            }
-                                        }
-                                        else
-                                        {
-                                            Collection<String> propValues = entity.getPropertyValues(property);
-                                            nextEntityJSON.put(localPropertyName, propValues);
-                                        }
-
-                                    }
-                                }
-
-                                for (String typeURI : entity.getTypes())
-                                {
-                                    String typeLiteral = getURILocalName(typeURI);
-                                    typeLabels.add(typeLiteral);
-
-                                    // process entity types for this document, if that entity type
-                                    // is not already processed for this document
-                                    if (!entityTypeURIs.contains(typeURI))
-                                    {
-                                        entityTypeURIs.add(typeURI);
-                                        JSONArray nextEntityTypeJSONArray = new JSONArray();
-                                        JSONObject nextEntityTypeJSON = new JSONObject();
-                                        nextEntityTypeJSONArray.put(nextEntityTypeJSON);
-
-                                        Set<String> propertyNames = new HashSet<String>();
-
-                                        try
-                                        {
-                                            nextEntityTypeJSON.put(ENTITY_INDEX_ID_FIELD, typeURI);
-                                            JSONObject typeOccur = new JSONObject();
-                                            typeOccur.put("inc", 1);
-                                            nextEntityTypeJSON.put(OCCURRENCES_FIELD, typeOccur);
-                                            nextEntityTypeJSON.put(TYPE_FIELD, typeLiteral);
-
-                                            Collection<String> properties = entity.getProperties();
-
-                                            for (String property : properties)
-                                            {
-                                                String localName = getURILocalName(property);
-                                                propertyNames.add(localName);
-                                            }
-
-                                            nextEntityTypeJSON.put(ATTRIBUTES_FIELD, propertyNames);
-                                            entitiesTypesJSONs.add(nextEntityTypeJSONArray.toString());
-
-                                            if (typeLiteral.equalsIgnoreCase(PERSON_ENTITY_ATTRIBUTE_VALUE))
-                                            {
-                                                hasPersonTypeEntities = true;
-
-                                            }
-                                            else if (typeLiteral.equalsIgnoreCase(ORGANIZATION_ENTITY_ATTRIBUTE_VALUE))
-                                            {
-                                                hasOrganizationTypeEntities = true;
-
-                                            }
-                                            else if (typeLiteral.equalsIgnoreCase(PLACE_ENTITY_ATTRIBUTE_VALUE))
-                                            {
-                                                hasPlaceTypeEntities = true;
-
-                                            }
-
-                                            // Hierarchy : no hierarchy implementation in Stanbol
-                                            // Collection<String> hierarchy =
-                                            // helper.getHierarchy().get(typeURI);
-                                            // nextEntityTypeJSON.put( HIERARCHY_FIELD, hierarchy);
-
-                                        }
-                                        catch (JSONException e)
-                                        {
-                                            Logging.agents.error("Error creating Entity Type Document with URI: "
-                                                    + typeURI, e);
-                                            continue; // Continue with next Entity Type
-                                        }
-
-                                    }
-
-                                }
-                                // mark entity with the main types
-                                nextEntityJSON = markEntityBasedOnType(nextEntityJSON, typeLabels);
-                                // adding the type to the entity object
-                                nextEntityJSON.put(TYPE_FIELD, typeLabels);
-                               
-                                // source mappings
-                                if (sourceTargets != null)
-                                {
-                                    // map stanbol fields with solr fields
-                                    for (String stanbolField : sourceTargets.keySet())
-                                    {
-                                        String solrField = sourceTargets.get(stanbolField);
-                                        Collection<String> fieldValues = entity.getPropertyValues(stanbolField);
-                                        if (fieldValues != null)
-                                        {
-                                            nextEntityJSON.put(solrField, fieldValues);
-                                        }
-                                    }
-                                }
+            for (String typeURI : entity.getTypes())
+            {
+                String typeLiteral = getURILocalName(typeURI);
+                typeLabels.add(typeLiteral);
 
-                            }
-                        }
-                        catch (JSONException e)
-                        {
-                            Logging.agents.error("Error creating Entity Document with URI: " + ea, e);
-                            jsonFail = true;
-                        }
+                Set<String> propertyNames = new HashSet<String>();
+                Collection<String> properties = entity.getProperties();
 
-                        Logging.agents.debug("Extracted Stanbol entity label : " + ea.getEntityLabel() + " ref uri : "
-                                + ea.getEntityReference());
+                for (String property : properties)
+                {
+                    String localName = getURILocalName(property);
+                    propertyNames.add(localName);
+                }
 
-                        if (!jsonFail)
-                        {
-                            String entityJsonArray = nextEntityJSONArray.toString();
-                            Logging.agents.debug("New entity object json : " + entityJsonArray);
-                            entitiesJsons.add(entityJsonArray); // we need the array
-                        }
+                Map<String, Object> nextEntityTypeFields = new LinkedHashMap<String, Object>();
+                nextEntityTypeFields.put(ENTITY_INDEX_ID_FIELD, typeURI);
+                nextEntityTypeFields.put(OCCURRENCES_FIELD, Collections.singletonMap("inc", 1));
+                nextEntityTypeFields.put(TYPE_FIELD, typeLiteral);
+                nextEntityTypeFields.put(ATTRIBUTES_FIELD, propertyNames);
+                entityTypes.add(new EntityTypeResult(typeURI, typeLiteral, JsonDocumentWriter
+                        .toJSONArray(nextEntityTypeFields)));
+
+                // Hierarchy : no hierarchy implementation in Stanbol
+                // Collection<String> hierarchy =
+                // helper.getHierarchy().get(typeURI);
+                // nextEntityTypeJSON.put( HIERARCHY_FIELD, hierarchy);
+            }
+            // mark entity with the main types
+            markEntityBasedOnType(nextEntityFields, typeLabels);
+            // adding the type to the entity object
+            nextEntityFields.put(TYPE_FIELD, typeLabels);
+
+            // source mappings
+            if (sourceTargets != null)
+            {
+                // map stanbol fields with solr fields
+                for (String stanbolField : sourceTargets.keySet())
+                {
+                    String solrField = sourceTargets.get(stanbolField);
+                    Collection<String> fieldValues = entity.getPropertyValues(stanbolField);
+                    if (fieldValues != null)
+                    {
+                        nextEntityFields.put(solrField, fieldValues);
                     }
                 }
             }
 
-            // Enrichment complete!
-            // Add Entities JSONs
-            docCopy.addField(ENTITIES_FIELD, entitiesJsons.toArray(new String[entitiesJsons.size()]));
-            // Add Entities's types JSONs
-            docCopy.addField(ENTITIES_TYPES_FIELD, entitiesTypesJSONs.toArray(new String[entitiesTypesJSONs.size()]));
-
-            // // Add Semantic Metadata
-            // these are flat fields/ no hierarchy
-            docCopy.addField(SMLT_ENTITY_URI_FIELD, uris.toArray(new String[uris.size()]));
-            docCopy.addField(SMLT_ENTITY_TYPES_FIELD, entityTypeURIs.toArray(new String[entityTypeURIs.size()]));
+            Logging.agents.debug("Extracted Stanbol entity label : " + ea.getEntityLabel() + " ref uri : "
+                    + ea.getEntityReference());
 
-            // tagging the primary document whether it has person, org, place type entities
-            docCopy.addField(PERSON_TYPE_FIELD, Boolean.toString(hasPersonTypeEntities));
-            docCopy.addField(ORGANIZATION_TYPE_FIELD, Boolean.toString(hasOrganizationTypeEntities));
-            docCopy.addField(PLACE_TYPE_FIELD, Boolean.toString(hasPlaceTypeEntities));
+            String entityJsonArray = JsonDocumentWriter.toJSONArray(nextEntityFields);
+            Logging.agents.debug("New entity object json : " + entityJsonArray);
+            return new EntityResult(String.valueOf(nextEntityFields.get(ENTITY_INDEX_ID_FIELD)), entityJsonArray,
+                    entityTypes);
+        }
+        catch (IOException e)
+        {
+            Logging.agents.error("Error creating Entity Document with URI: " + ea, e);
+            return null;
         }
-
-        // Send new document downstream
-        int rval = activities.sendDocument(documentURI, docCopy);
-        resultCode = (rval == DOCUMENTSTATUS_ACCEPTED) ? "ACCEPTED" : "REJECTED";
-        return rval;
-
     }
 
     /**
      * mark the entity based on it's type as is_person, is_place or is_organization
      * 
-     * @param entityObject
+     * @param entityFields
      * @param typeLabels
-     * @return
-     * @throws JSONException
      */
-    private JSONObject markEntityBasedOnType(JSONObject entityObject, Collection<String> typeLabels)
-            throws JSONException
+    private void markEntityBasedOnType(Map<String, Object> entityFields, Collection<String> typeLabels)
     {
 
         boolean isPersonType = false;
@@ -510,11 +1216,9 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
                 break;
             }
         }
-        entityObject.put(PERSON_TYPE_FIELD, isPersonType);
-        entityObject.put(ORGANIZATION_TYPE_FIELD, isOrgType);
-        entityObject.put(PLACE_TYPE_FIELD, isPlaceType);
-
-        return entityObject;
+        entityFields.put(PERSON_TYPE_FIELD, isPersonType);
+        entityFields.put(ORGANIZATION_TYPE_FIELD, isOrgType);
+        entityFields.put(PLACE_TYPE_FIELD, isPlaceType);
     }
 
     // /**
@@ -530,6 +1234,99 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
     // return typeLabel;
     // }
 
+    /**
+     * Output the configuration header section. This method is called in the head section of the connector's
+     * configuration page. Its purpose is to add the required tabs to the list, and to output any javascript methods
+     * that might be needed by the configuration editing HTML.
+     * 
+     * @param threadContext is the local thread context.
+     * @param out is the output to which any HTML should be sent.
+     * @param locale is the preferred local of the output.
+     * @param parameters are the configuration parameters, as they currently exist, for this connection being
+     *            configured.
+     * @param tabsArray is an array of tab names. Add to this array any tab names that are specific to the connector.
+     */
+    @Override
+    public void outputConfigurationHeader(IThreadContext threadContext, IHTTPOutput out, Locale locale,
+            ConfigParams parameters, List<String> tabsArray) throws ManifoldCFException, IOException
+    {
+        tabsArray.add(Messages.getString(locale, "StanbolEnhancer.EntityStoreTabName"));
+        Map<String, Object> paramMap = new HashMap<String, Object>();
+        fillInEntityStoreConfigurationMap(paramMap, parameters);
+        Messages.outputResourceWithVelocity(out, locale, EDIT_CONFIGURATION_JS, paramMap);
+    }
+
+    /**
+     * Output the configuration body section. This method is called in the body section of the connector's
+     * configuration page. Its purpose is to present the required form elements for editing. The name of the form is
+     * "editconnection".
+     * 
+     * @param threadContext is the local thread context.
+     * @param out is the output to which any HTML should be sent.
+     * @param locale is the preferred local of the output.
+     * @param parameters are the configuration parameters, as they currently exist, for this connection being
+     *            configured.
+     * @param tabName is the current tab name.
+     */
+    @Override
+    public void outputConfigurationBody(IThreadContext threadContext, IHTTPOutput out, Locale locale,
+            ConfigParams parameters, String tabName) throws ManifoldCFException, IOException
+    {
+        Map<String, Object> paramMap = new HashMap<String, Object>();
+        paramMap.put("TABNAME", tabName);
+        fillInEntityStoreConfigurationMap(paramMap, parameters);
+        Messages.outputResourceWithVelocity(out, locale, EDIT_CONFIGURATION_ENTITYSTORE_HTML, paramMap);
+    }
+
+    /**
+     * Process a configuration post. This method is called at the start of the connector's configuration page, whenever
+     * there is a possibility that form data for a connection has been posted. The name of the posted form is
+     * "editconnection".
+     * 
+     * @param threadContext is the local thread context.
+     * @param variableContext is the set of variables available from the post, including binary file post information.
+     * @param locale is the preferred local of the output.
+     * @param parameters are the configuration parameters, as they currently exist, for this connection being
+     *            configured.
+     * @return null if all is well, or a string error message if there is an error that should prevent saving of the
+     *         connection (and cause a redirection to an error page).
+     */
+    @Override
+    public String processConfigurationPost(IThreadContext threadContext, IPostParameters variableContext,
+            Locale locale, ConfigParams parameters) throws ManifoldCFException
+    {
+        String entityStoreDirectory = variableContext.getParameter("entitystoredirectory");
+        if (entityStoreDirectory != null)
+            parameters.setParameter(StanbolConfig.ENTITY_STORE_DIRECTORY_PARAM, entityStoreDirectory.trim());
+        return null;
+    }
+
+    /**
+     * View configuration. This method is called in the body section of the connector's view configuration page.
+     * 
+     * @param threadContext is the local thread context.
+     * @param out is the output to which any HTML should be sent.
+     * @param locale is the preferred local of the output.
+     * @param parameters are the configuration parameters, as they currently exist, for this connection being
+     *            configured.
+     */
+    @Override
+    public void viewConfiguration(IThreadContext threadContext, IHTTPOutput out, Locale locale, ConfigParams parameters)
+            throws ManifoldCFException, IOException
+    {
+        Map<String, Object> paramMap = new HashMap<String, Object>();
+        fillInEntityStoreConfigurationMap(paramMap, parameters);
+        Messages.outputResourceWithVelocity(out, locale, VIEW_CONFIGURATION_HTML, paramMap);
+    }
+
+    protected static void fillInEntityStoreConfigurationMap(Map<String, Object> paramMap, ConfigParams parameters)
+    {
+        String entityStoreDirectory = parameters.getParameter(StanbolConfig.ENTITY_STORE_DIRECTORY_PARAM);
+        if (entityStoreDirectory == null)
+            entityStoreDirectory = "";
+        paramMap.put("ENTITY_STORE_DIRECTORY", entityStoreDirectory);
+    }
+
     /**
      * Obtain the name of the form check javascript method to call.
      * 
@@ -695,22 +1492,114 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
         String stanbolURLValue = variableContext.getParameter(seqPrefix + "stanbol_url");
         if (stanbolURLValue == null || stanbolURLValue.equalsIgnoreCase(""))
             stanbolURLValue = STANBOL_ENDPOINT;
-
-        SpecificationNode serverNode = new SpecificationNode(StanbolConfig.STANBOL_SERVER_VALUE);
-        serverNode.setAttribute(StanbolConfig.ATTRIBUTE_VALUE, stanbolURLValue);
-        os.addChild(os.getChildCount(), serverNode);
+        setSpecificationValue(os, StanbolConfig.STANBOL_SERVER_VALUE, stanbolURLValue);
 
         String stanbolChainValue = variableContext.getParameter(seqPrefix + "stanbol_chain");
         if (stanbolChainValue == null || stanbolChainValue.equalsIgnoreCase(""))
             stanbolChainValue = STANBOL_ENHANCEMENT_CHAIN;
-
-        SpecificationNode chainNode = new SpecificationNode(StanbolConfig.STANBOL_CHAIN_VALUE);
-        chainNode.setAttribute(StanbolConfig.ATTRIBUTE_VALUE, stanbolChainValue);
-        os.addChild(os.getChildCount(), chainNode);
+        setSpecificationValue(os, StanbolConfig.STANBOL_CHAIN_VALUE, stanbolChainValue);
+
+        String perDocumentValue = variableContext.getParameter(seqPrefix + "dereference_per_document");
+        if (perDocumentValue == null || perDocumentValue.equalsIgnoreCase(""))
+            perDocumentValue = Integer.toString(DEFAULT_DEREFERENCE_PER_DOCUMENT);
+        setSpecificationValue(os, StanbolConfig.DEREFERENCE_PER_DOCUMENT_VALUE, perDocumentValue);
+
+        String perServerValue = variableContext.getParameter(seqPrefix + "dereference_per_server");
+        if (perServerValue == null || perServerValue.equalsIgnoreCase(""))
+            perServerValue = Integer.toString(DEFAULT_DEREFERENCE_PER_SERVER);
+        setSpecificationValue(os, StanbolConfig.DEREFERENCE_PER_SERVER_VALUE, perServerValue);
+
+        String cacheSizeValue = variableContext.getParameter(seqPrefix + "entity_cache_size");
+        if (cacheSizeValue == null || cacheSizeValue.equalsIgnoreCase(""))
+            cacheSizeValue = Integer.toString(DEFAULT_ENTITY_CACHE_SIZE);
+        setSpecificationValue(os, StanbolConfig.ENTITY_CACHE_SIZE_VALUE, cacheSizeValue);
+
+        String cacheTTLValue = variableContext.getParameter(seqPrefix + "entity_cache_ttl");
+        if (cacheTTLValue == null || cacheTTLValue.equalsIgnoreCase(""))
+            cacheTTLValue = Integer.toString(DEFAULT_ENTITY_CACHE_TTL);
+        setSpecificationValue(os, StanbolConfig.ENTITY_CACHE_TTL_VALUE, cacheTTLValue);
+
+        String resultCacheSizeValue = variableContext.getParameter(seqPrefix + "result_cache_size");
+        if (resultCacheSizeValue == null || resultCacheSizeValue.equalsIgnoreCase(""))
+            resultCacheSizeValue = Integer.toString(DEFAULT_RESULT_CACHE_SIZE);
+        setSpecificationValue(os, StanbolConfig.RESULT_CACHE_SIZE_VALUE, resultCacheSizeValue);
+
+        String resultCacheTTLValue = variableContext.getParameter(seqPrefix + "result_cache_ttl");
+        if (resultCacheTTLValue == null || resultCacheTTLValue.equalsIgnoreCase(""))
+            resultCacheTTLValue = Integer.toString(DEFAULT_RESULT_CACHE_TTL);
+        setSpecificationValue(os, StanbolConfig.RESULT_CACHE_TTL_VALUE, resultCacheTTLValue);
+
+        String useBatchingValue = variableContext.getParameter(seqPrefix + "use_batching");
+        if (useBatchingValue == null || useBatchingValue.equalsIgnoreCase(""))
+            useBatchingValue = "false";
+        setSpecificationValue(os, StanbolConfig.USE_BATCHING_VALUE, useBatchingValue);
+
+        String batchMaxDocumentsValue = variableContext.getParameter(seqPrefix + "batch_max_documents");
+        if (batchMaxDocumentsValue == null || batchMaxDocumentsValue.equalsIgnoreCase(""))
+            batchMaxDocumentsValue = Integer.toString(DEFAULT_BATCH_MAX_DOCUMENTS);
+        setSpecificationValue(os, StanbolConfig.BATCH_MAX_DOCUMENTS_VALUE, batchMaxDocumentsValue);
+
+        String batchMaxSizeValue = variableContext.getParameter(seqPrefix + "batch_max_size");
+        if (batchMaxSizeValue == null || batchMaxSizeValue.equalsIgnoreCase(""))
+            batchMaxSizeValue = Integer.toString(DEFAULT_BATCH_MAX_SIZE);
+        setSpecificationValue(os, StanbolConfig.BATCH_MAX_SIZE_VALUE, batchMaxSizeValue);
+
+        String batchMaxWaitValue = variableContext.getParameter(seqPrefix + "batch_max_wait");
+        if (batchMaxWaitValue == null || batchMaxWaitValue.equalsIgnoreCase(""))
+            batchMaxWaitValue = Integer.toString(DEFAULT_BATCH_MAX_WAIT);
+        setSpecificationValue(os, StanbolConfig.BATCH_MAX_WAIT_VALUE, batchMaxWaitValue);
+
+        String chunkMaxSizeValue = variableContext.getParameter(seqPrefix + "chunk_max_size");
+        if (chunkMaxSizeValue == null || chunkMaxSizeValue.equalsIgnoreCase(""))
+            chunkMaxSizeValue = Integer.toString(DEFAULT_CHUNK_MAX_SIZE);
+        setSpecificationValue(os, StanbolConfig.CHUNK_MAX_SIZE_VALUE, chunkMaxSizeValue);
+
+        String chunkParallelismValue = variableContext.getParameter(seqPrefix + "chunk_parallelism");
+        if (chunkParallelismValue == null || chunkParallelismValue.equalsIgnoreCase(""))
+            chunkParallelismValue = Integer.toString(DEFAULT_CHUNK_PARALLELISM);
+        setSpecificationValue(os, StanbolConfig.CHUNK_PARALLELISM_VALUE, chunkParallelismValue);
+
+        String useEntityStoreValue = variableContext.getParameter(seqPrefix + "use_entity_store");
+        if (useEntityStoreValue == null || useEntityStoreValue.equalsIgnoreCase(""))
+            useEntityStoreValue = "false";
+        setSpecificationValue(os, StanbolConfig.USE_ENTITY_STORE_VALUE, useEntityStoreValue);
+
+        String usePackedEntitiesValue = variableContext.getParameter(seqPrefix + "use_packed_entities");
+        if (usePackedEntitiesValue == null || usePackedEntitiesValue.equalsIgnoreCase(""))
+            usePackedEntitiesValue = "false";
+        setSpecificationValue(os, StanbolConfig.USE_PACKED_ENTITIES_VALUE, usePackedEntitiesValue);
+
+        String useEntityIdsValue = variableContext.getParameter(seqPrefix + "use_entity_ids");
+        if (useEntityIdsValue == null || useEntityIdsValue.equalsIgnoreCase(""))
+            useEntityIdsValue = "false";
+        setSpecificationValue(os, StanbolConfig.USE_ENTITY_IDS_VALUE, useEntityIdsValue);
 
         return null;
     }
 
+    /**
+     * Replace the node holding a single valued parameter of the specification
+     * 
+     * @param os the specification
+     * @param nodeType the type of the node
+     * @param value the new value
+     */
+    private static void setSpecificationValue(Specification os, String nodeType, String value)
+    {
+        int i = 0;
+        while (i < os.getChildCount())
+        {
+            SpecificationNode node = os.getChild(i);
+            if (node.getType().equals(nodeType))
+                os.removeChild(i);
+            else
+                i++;
+        }
+        SpecificationNode node = new SpecificationNode(nodeType);
+        node.setAttribute(StanbolConfig.ATTRIBUTE_VALUE, value);
+        os.addChild(os.getChildCount(), node);
+    }
+
     /**
      * View specification. This method is called in the body section of a job's view page. Its purpose is to present the
      * pipeline specification information to the user. The coder can presume that the HTML that is output from this
@@ -743,6 +1632,21 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
         String server = STANBOL_ENDPOINT;
         String chain = STANBOL_ENHANCEMENT_CHAIN;       
         String keepAllMetadataValue = "true";
+        String dereferencePerDocument = Integer.toString(DEFAULT_DEREFERENCE_PER_DOCUMENT);
+        String dereferencePerServer = Integer.toString(DEFAULT_DEREFERENCE_PER_SERVER);
+        String entityCacheSize = Integer.toString(DEFAULT_ENTITY_CACHE_SIZE);
+        String entityCacheTTL = Integer.toString(DEFAULT_ENTITY_CACHE_TTL);
+        String resultCacheSize = Integer.toString(DEFAULT_RESULT_CACHE_SIZE);
+        String resultCacheTTL = Integer.toString(DEFAULT_RESULT_CACHE_TTL);
+        String useEntityStore = "false";
+        String useBatching = "false";
+        String batchMaxDocuments = Integer.toString(DEFAULT_BATCH_MAX_DOCUMENTS);
+        String batchMaxSize = Integer.toString(DEFAULT_BATCH_MAX_SIZE);
+        String batchMaxWait = Integer.toString(DEFAULT_BATCH_MAX_WAIT);
+        String chunkMaxSize = Integer.toString(DEFAULT_CHUNK_MAX_SIZE);
+        String chunkParallelism = Integer.toString(DEFAULT_CHUNK_PARALLELISM);
+        String usePackedEntities = "false";
+        String useEntityIds = "false";
         
         for (int i = 0; i < os.getChildCount(); i++)
         {
@@ -778,13 +1682,161 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
                 chain = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
                 
             }
+            else if (sn.getType().equals(StanbolConfig.DEREFERENCE_PER_DOCUMENT_VALUE))
+            {
+                dereferencePerDocument = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.DEREFERENCE_PER_SERVER_VALUE))
+            {
+                dereferencePerServer = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.ENTITY_CACHE_SIZE_VALUE))
+            {
+                entityCacheSize = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.ENTITY_CACHE_TTL_VALUE))
+            {
+                entityCacheTTL = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.RESULT_CACHE_SIZE_VALUE))
+            {
+                resultCacheSize = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.RESULT_CACHE_TTL_VALUE))
+            {
+                resultCacheTTL = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.USE_ENTITY_STORE_VALUE))
+            {
+                useEntityStore = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.USE_BATCHING_VALUE))
+            {
+                useBatching = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.BATCH_MAX_DOCUMENTS_VALUE))
+            {
+                batchMaxDocuments = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.BATCH_MAX_SIZE_VALUE))
+            {
+                batchMaxSize = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.BATCH_MAX_WAIT_VALUE))
+            {
+                batchMaxWait = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.CHUNK_MAX_SIZE_VALUE))
+            {
+                chunkMaxSize = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.CHUNK_PARALLELISM_VALUE))
+            {
+                chunkParallelism = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.USE_PACKED_ENTITIES_VALUE))
+            {
+                usePackedEntities = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
+            else if (sn.getType().equals(StanbolConfig.USE_ENTITY_IDS_VALUE))
+            {
+                useEntityIds = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
+            }
         }
         
         paramMap.put("STANBOL_SERVER", server);
         paramMap.put("STANBOL_CHAIN", chain);
         paramMap.put("FIELDMAPPINGS", fieldMappings);
         paramMap.put("KEEPALLMETADATA", keepAllMetadataValue);
+        paramMap.put("DEREFERENCE_PER_DOCUMENT", dereferencePerDocument);
+        paramMap.put("DEREFERENCE_PER_SERVER", dereferencePerServer);
+        paramMap.put("ENTITY_CACHE_SIZE", entityCacheSize);
+        paramMap.put("ENTITY_CACHE_TTL", entityCacheTTL);
+        paramMap.put("RESULT_CACHE_SIZE", resultCacheSize);
+        paramMap.put("RESULT_CACHE_TTL", resultCacheTTL);
+        paramMap.put("USE_ENTITY_STORE", useEntityStore);
+        paramMap.put("USE_BATCHING", useBatching);
+        paramMap.put("BATCH_MAX_DOCUMENTS", batchMaxDocuments);
+        paramMap.put("BATCH_MAX_SIZE", batchMaxSize);
+        paramMap.put("BATCH_MAX_WAIT", batchMaxWait);
+        paramMap.put("CHUNK_MAX_SIZE", chunkMaxSize);
+        paramMap.put("CHUNK_PARALLELISM", chunkParallelism);
+        paramMap.put("USE_PACKED_ENTITIES", usePackedEntities);
+        paramMap.put("USE_ENTITY_IDS", useEntityIds);
+
+    }
+
+    /**
+     * Result of the entities that could not be dereferenced because of an error
+     */
+    private static final EntityResult DEREFERENCE_FAILED = new EntityResult(null, null,
+            Collections.<EntityTypeResult> emptyList());
+
+    /**
+     * A text annotation of a chunk of a content, with its entity annotations by entity reference
+     */
+    private static class ChunkAnnotation
+    {
+        private final int chunkOffset;
+        private final DocumentTextAnnotation textAnnotation;
+        private final Set<Integer> chunkOffsets = new HashSet<Integer>();
+        private final Map<String, EntityAnnotation> entityAnnotations = new LinkedHashMap<String, EntityAnnotation>();
+
+        public ChunkAnnotation(int chunkOffset, DocumentTextAnnotation textAnnotation)
+        {
+            this.chunkOffset = chunkOffset;
+            this.textAnnotation = textAnnotation;
+            chunkOffsets.add(chunkOffset);
+        }
+
+        /**
+         * Add entity annotations, keeping the one with the highest confidence for each entity
+         */
+        public void addEntityAnnotations(Collection<EntityAnnotation> annotations)
+        {
+            for (EntityAnnotation ea : annotations)
+            {
+                EntityAnnotation previous = entityAnnotations.get(ea.getEntityReference());
+                if (previous == null || previous.getConfidence() < ea.getConfidence())
+                {
+                    entityAnnotations.put(ea.getEntityReference(), ea);
+                }
+            }
+        }
+    }
+
+    /**
+     * The JSONs built for a dereferenced entity
+     */
+    private static class EntityResult
+    {
+        private final String entityId;
+        private final String entityJSON;
+        private final List<EntityTypeResult> entityTypes;
+
+        public EntityResult(String entityId, String entityJSON, List<EntityTypeResult> entityTypes)
+        {
+            this.entityId = entityId;
+            this.entityJSON = entityJSON;
+            this.entityTypes = entityTypes;
+        }
+    }
+
+    /**
+     * The JSON built for one of the types of a dereferenced entity
+     */
+    private static class EntityTypeResult
+    {
+        private final String typeURI;
+        private final String typeLiteral;
+        private final String entityTypeJSON;
 
+        public EntityTypeResult(String typeURI, String typeLiteral, String entityTypeJSON)
+        {
+            this.typeURI = typeURI;
+            this.typeLiteral = typeLiteral;
+            this.entityTypeJSON = entityTypeJSON;
+        }
     }
 
     protected static class SpecPacker
@@ -792,6 +1844,21 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
         private final String stanbolServer;
         private final String stanbolChain;
         private final boolean keepAllMetadata;
+        private final int dereferencePerDocument;
+        private final int dereferencePerServer;
+        private final int entityCacheSize;
+        private final int entityCacheTTL;
+        private final int resultCacheSize;
+        private final int resultCacheTTL;
+        private final boolean useEntityStore;
+        private final boolean useBatching;
+        private final int batchMaxDocuments;
+        private final int batchMaxSize;
+        private final int batchMaxWait;
+        private final int chunkMaxSize;
+        private final int chunkParallelism;
+        private final boolean usePackedEntities;
+        private final boolean useEntityIds;
         private final Map<String, String> sourceTargets = new HashMap<String, String>();
 
         public SpecPacker(Specification os)
@@ -800,6 +1867,21 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
             String serverURL = STANBOL_ENDPOINT;
             String stanbolChain = STANBOL_ENHANCEMENT_CHAIN;
             boolean keepAllMetadata = true;
+            int dereferencePerDocument = DEFAULT_DEREFERENCE_PER_DOCUMENT;
+            int dereferencePerServer = DEFAULT_DEREFERENCE_PER_SERVER;
+            int entityCacheSize = DEFAULT_ENTITY_CACHE_SIZE;
+            int entityCacheTTL = DEFAULT_ENTITY_CACHE_TTL;
+            int resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+            int resultCacheTTL = DEFAULT_RESULT_CACHE_TTL;
+            boolean useEntityStore = false;
+            boolean useBatching = false;
+            int batchMaxDocuments = DEFAULT_BATCH_MAX_DOCUMENTS;
+            int batchMaxSize = DEFAULT_BATCH_MAX_SIZE;
+            int batchMaxWait = DEFAULT_BATCH_MAX_WAIT;
+            int chunkMaxSize = DEFAULT_CHUNK_MAX_SIZE;
+            int chunkParallelism = DEFAULT_CHUNK_PARALLELISM;
+            boolean usePackedEntities = false;
+            boolean useEntityIds = false;
 
             for (int i = 0; i < os.getChildCount(); i++)
             {
@@ -821,6 +1903,77 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
                     String value = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE);
                     keepAllMetadata = Boolean.parseBoolean(value);
                 }
+                else if (sn.getType().equals(StanbolConfig.DEREFERENCE_PER_DOCUMENT_VALUE))
+                {
+                    dereferencePerDocument = parsePositiveInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_DEREFERENCE_PER_DOCUMENT);
+                }
+                else if (sn.getType().equals(StanbolConfig.DEREFERENCE_PER_SERVER_VALUE))
+                {
+                    dereferencePerServer = parsePositiveInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_DEREFERENCE_PER_SERVER);
+                }
+                else if (sn.getType().equals(StanbolConfig.ENTITY_CACHE_SIZE_VALUE))
+                {
+                    entityCacheSize = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_ENTITY_CACHE_SIZE);
+                }
+                else if (sn.getType().equals(StanbolConfig.ENTITY_CACHE_TTL_VALUE))
+                {
+                    entityCacheTTL = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_ENTITY_CACHE_TTL);
+                }
+                else if (sn.getType().equals(StanbolConfig.RESULT_CACHE_SIZE_VALUE))
+                {
+                    resultCacheSize = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_RESULT_CACHE_SIZE);
+                }
+                else if (sn.getType().equals(StanbolConfig.RESULT_CACHE_TTL_VALUE))
+                {
+                    resultCacheTTL = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_RESULT_CACHE_TTL);
+                }
+                else if (sn.getType().equals(StanbolConfig.USE_ENTITY_STORE_VALUE))
+                {
+                    useEntityStore = Boolean.parseBoolean(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE));
+                }
+                else if (sn.getType().equals(StanbolConfig.USE_BATCHING_VALUE))
+                {
+                    useBatching = Boolean.parseBoolean(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE));
+                }
+                else if (sn.getType().equals(StanbolConfig.BATCH_MAX_DOCUMENTS_VALUE))
+                {
+                    batchMaxDocuments = parsePositiveInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_BATCH_MAX_DOCUMENTS);
+                }
+                else if (sn.getType().equals(StanbolConfig.BATCH_MAX_SIZE_VALUE))
+                {
+                    batchMaxSize = parsePositiveInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_BATCH_MAX_SIZE);
+                }
+                else if (sn.getType().equals(StanbolConfig.BATCH_MAX_WAIT_VALUE))
+                {
+                    batchMaxWait = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_BATCH_MAX_WAIT);
+                }
+                else if (sn.getType().equals(StanbolConfig.CHUNK_MAX_SIZE_VALUE))
+                {
+                    chunkMaxSize = parseNonNegativeInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_CHUNK_MAX_SIZE);
+                }
+                else if (sn.getType().equals(StanbolConfig.CHUNK_PARALLELISM_VALUE))
+                {
+                    chunkParallelism = parsePositiveInt(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE),
+                            DEFAULT_CHUNK_PARALLELISM);
+                }
+                else if (sn.getType().equals(StanbolConfig.USE_PACKED_ENTITIES_VALUE))
+                {
+                    usePackedEntities = Boolean.parseBoolean(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE));
+                }
+                else if (sn.getType().equals(StanbolConfig.USE_ENTITY_IDS_VALUE))
+                {
+                    useEntityIds = Boolean.parseBoolean(sn.getAttributeValue(StanbolConfig.ATTRIBUTE_VALUE));
+                }
                 else if (sn.getType().equals(StanbolConfig.NODE_FIELDMAP))
                 {
                     String source = sn.getAttributeValue(StanbolConfig.ATTRIBUTE_SOURCE);
@@ -837,7 +1990,48 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
             this.stanbolServer = serverURL;
             this.stanbolChain = stanbolChain;
             this.keepAllMetadata = keepAllMetadata;
+            this.dereferencePerDocument = dereferencePerDocument;
+            this.dereferencePerServer = dereferencePerServer;
+            this.entityCacheSize = entityCacheSize;
+            this.entityCacheTTL = entityCacheTTL;
+            this.resultCacheSize = resultCacheSize;
+            this.resultCacheTTL = resultCacheTTL;
+            this.useEntityStore = useEntityStore;
+            this.useBatching = useBatching;
+            this.batchMaxDocuments = batchMaxDocuments;
+            this.batchMaxSize = batchMaxSize;
+            this.batchMaxWait = batchMaxWait;
+            this.chunkMaxSize = chunkMaxSize;
+            this.chunkParallelism = chunkParallelism;
+            this.usePackedEntities = usePackedEntities;
+            this.useEntityIds = useEntityIds;
+
+        }
+
+        private static int parsePositiveInt(String value, int defaultValue)
+        {
+            try
+            {
+                int result = Integer.parseInt(value);
+                return result > 0 ? result : defaultValue;
+            }
+            catch (NumberFormatException e)
+            {
+                return defaultValue;
+            }
+        }
 
+        private static int parseNonNegativeInt(String value, int defaultValue)
+        {
+            try
+            {
+                int result = Integer.parseInt(value);
+                return result >= 0 ? result : defaultValue;
+            }
+            catch (NumberFormatException e)
+            {
+                return defaultValue;
+            }
         }
 
         public String toPackedString()
@@ -909,10 +2103,123 @@ public class StanbolEnhancer extends org.apache.manifoldcf.agents.transformation
             return keepAllMetadata;
         }
 
+        public int getDereferencePerDocument()
+        {
+            return dereferencePerDocument;
+        }
+
+        public int getDereferencePerServer()
+        {
+            return dereferencePerServer;
+        }
+
+        /**
+         * @return the maximum size of the entity cache in MB, 0 if entities are not cached
+         */
+        public int getEntityCacheSize()
+        {
+            return entityCacheSize;
+        }
+
+        /**
+         * @return the time to live of the cached entities in minutes, 0 if entities are not cached
+         */
+        public int getEntityCacheTTL()
+        {
+            return entityCacheTTL;
+        }
+
+        /**
+         * @return the maximum size of the enhancement result cache in MB, 0 if results are not cached
+         */
+        public int getResultCacheSize()
+        {
+            return resultCacheSize;
+        }
+
+        /**
+         * @return the time to live of the cached enhancement results in minutes, 0 if results are not cached
+         */
+        public int getResultCacheTTL()
+        {
+            return resultCacheTTL;
+        }
+
+        /**
+         * @return true if the entities are kept in the persistent entity store of the connection
+         */
+        public boolean useEntityStore()
+        {
+            return useEntityStore;
+        }
+
+        /**
+         * @return true if small documents are enhanced in batches
+         */
+        public boolean useBatching()
+        {
+            return useBatching;
+        }
+
+        public int getBatchMaxDocuments()
+        {
+            return batchMaxDocuments;
+        }
+
+        /**
+         * @return the maximum length of the contents of a batch, in characters. Bigger documents are not batched.
+         */
+        public int getBatchMaxSize()
+        {
+            return batchMaxSize;
+        }
+
+        /**
+         * @return the maximum time in milliseconds a batch waits for more documents
+         */
+        public int getBatchMaxWait()
+        {
+            return batchMaxWait;
+        }
+
+        /**
+         * @return the maximum length of a chunk in characters, longer documents are enhanced in chunks. 0 if documents
+         *         are never split.
+         */
+        public int getChunkMaxSize()
+        {
+            return chunkMaxSize;
+        }
+
+        /**
+         * @return the maximum number of chunks enhanced at the same time
+         */
+        public int getChunkParallelism()
+        {
+            return chunkParallelism;
+        }
+
+        /**
+         * @return true if the entity and entity type documents are packed into a single value each
+         */
+        public boolean usePackedEntities()
+        {
+            return usePackedEntities;
+        }
+
+        /**
+         * @return true if the ids of the entity and entity type JSONs are added in their own fields, for the Solr
+         *         wrapper output connector to read instead of parsing the JSONs
+         */
+        public boolean useEntityIds()
+        {
+            return useEntityIds;
+        }
+
     }
 
     // util methods
-    private String getURILocalName(String uri)
+    private static String getURILocalName(String uri)
     {
         UrlValidator urlValidator = new UrlValidator();
         if (urlValidator.isValid(uri))
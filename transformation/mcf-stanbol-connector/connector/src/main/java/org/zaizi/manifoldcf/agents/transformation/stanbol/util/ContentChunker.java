@@ -0,0 +1,137 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a text into chunks small enough to be enhanced on their own. Chunks end on a paragraph boundary when there is
+ * one in their second half, else on a sentence boundary, else on a white space. Consecutive chunks overlap, so the
+ * entities mentioned around a chunk boundary are still found in one of the chunks.
+ */
+public class ContentChunker
+{
+    private ContentChunker()
+    {
+    }
+
+    /**
+     * Split a text into chunks
+     *
+     * @param content the text
+     * @param maxChunkSize the maximum length of a chunk, in characters
+     * @param overlap the number of characters of a chunk repeated at the start of the next one
+     * @return the chunks, in text order
+     */
+    public static List<Chunk> split(String content, int maxChunkSize, int overlap)
+    {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        int length = content.length();
+        overlap = Math.min(overlap, maxChunkSize / 4);
+        int start = 0;
+        while (start < length)
+        {
+            int end = Math.min(start + maxChunkSize, length);
+            if (end < length)
+            {
+                end = findBoundary(content, start + maxChunkSize / 2, end);
+            }
+            chunks.add(new Chunk(start, content.substring(start, end)));
+            if (end >= length)
+            {
+                break;
+            }
+
+            // start the next chunk on a word, a little before the end of this one
+            int next = end - overlap;
+            while (next < end && !Character.isWhitespace(content.charAt(next)))
+            {
+                next++;
+            }
+            while (next < end && Character.isWhitespace(content.charAt(next)))
+            {
+                next++;
+            }
+            start = next > start ? next : end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Find where to end a chunk
+     *
+     * @return the end of the last paragraph, sentence or word ending between from and to, or to if there is none
+     */
+    private static int findBoundary(String content, int from, int to)
+    {
+        int paragraph = content.lastIndexOf("\n\n", to - 2);
+        if (paragraph >= from)
+        {
+            return paragraph + 2;
+        }
+        int sentence = -1;
+        for (int i = to - 2; i >= from; i--)
+        {
+            char c = content.charAt(i);
+            if ((c == '.' || c == '!' || c == '?' || c == '\n') && Character.isWhitespace(content.charAt(i + 1)))
+            {
+                sentence = i + 1;
+                break;
+            }
+        }
+        if (sentence >= from)
+        {
+            return sentence;
+        }
+        for (int i = to - 1; i >= from; i--)
+        {
+            if (Character.isWhitespace(content.charAt(i)))
+            {
+                return i + 1;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * A chunk of text, with its position in the whole text
+     */
+    public static class Chunk
+    {
+        private final int offset;
+        private final String text;
+
+        public Chunk(int offset, String text)
+        {
+            this.offset = offset;
+            this.text = text;
+        }
+
+        /**
+         * @return the position of the first character of the chunk in the whole text
+         */
+        public int getOffset()
+        {
+            return offset;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Holds a single copy of a document's content so it can be read several times: once for the enhancement request and
+ * once more when the document is sent down the pipeline. Small contents are kept in memory, larger ones are spooled to
+ * a temporary file which is deleted when the spool is closed.
+ */
+public class ContentSpool implements Closeable
+{
+    /**
+     * Contents up to this size are kept in memory
+     */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final byte[] buffer;
+    private final int bufferLength;
+    private final File file;
+    private final long length;
+
+    private ContentSpool(byte[] buffer, int bufferLength, File file, long length)
+    {
+        this.buffer = buffer;
+        this.bufferLength = bufferLength;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * Read the whole stream into a spool.
+     *
+     * @param stream the content stream, not closed by this method
+     * @param expectedLength the announced content length, or a negative value if unknown
+     * @param memoryThreshold contents bigger than this are spooled to a temporary file
+     * @return the spool, which must be closed once the content is no longer needed
+     * @throws IOException
+     */
+    public static ContentSpool spool(InputStream stream, long expectedLength, int memoryThreshold) throws IOException
+    {
+        if (expectedLength >= 0 && expectedLength <= memoryThreshold)
+        {
+            ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream((int) expectedLength);
+            IOUtils.copyLarge(stream, bytes);
+            if (bytes.size() <= memoryThreshold)
+            {
+                return new ContentSpool(bytes.getBuffer(), bytes.size(), null, bytes.size());
+            }
+            // the announced length was wrong, carry on with a file
+            return spoolToFile(new ByteArrayInputStream(bytes.getBuffer(), 0, bytes.size()), stream);
+        }
+        return spoolToFile(stream, null);
+    }
+
+    private static ContentSpool spoolToFile(InputStream head, InputStream tail) throws IOException
+    {
+        File file = File.createTempFile("mcfstanbol", ".tmp");
+        boolean done = false;
+        try
+        {
+            long length = 0L;
+            OutputStream out = new FileOutputStream(file);
+            try
+            {
+                length += IOUtils.copyLarge(head, out);
+                if (tail != null)
+                {
+                    length += IOUtils.copyLarge(tail, out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            done = true;
+            return new ContentSpool(null, 0, file, length);
+        }
+        finally
+        {
+            if (!done)
+            {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the content length in bytes
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Open a new stream over the spooled content. No copy of the content is made.
+     *
+     * @return a stream positioned at the start of the content
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException
+    {
+        if (file == null)
+        {
+            return new ByteArrayInputStream(buffer, 0, bufferLength);
+        }
+        return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Decode the spooled content as text. A spooled file is read whole and decoded at once, straight into the string,
+     * rather than appended to a growing buffer copied again into the string.
+     *
+     * The whole content is still held in memory twice for a while, as bytes then as a string: the Stanbol client only
+     * takes the content to enhance as a string, so it cannot be streamed from the spool. The spool only keeps the
+     * content out of memory while the document is hashed and looked up in the result cache.
+     *
+     * @param charset the charset of the content
+     * @return the decoded content
+     * @throws IOException if the content cannot be read, or is too large to be held in a string
+     */
+    public String getContent(Charset charset) throws IOException
+    {
+        if (file == null)
+        {
+            return new String(buffer, 0, bufferLength, charset);
+        }
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Content of " + length + " bytes is too large to be decoded");
+        }
+        byte[] bytes = new byte[(int) length];
+        InputStream stream = new FileInputStream(file);
+        try
+        {
+            IOUtils.readFully(stream, bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Release the spooled content, deleting the temporary file if there is one
+     */
+    @Override
+    public void close()
+    {
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Gives access to the internal buffer so it does not need to be copied once filled
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+    {
+        public ExposedByteArrayOutputStream(int size)
+        {
+            super(Math.max(size, 32));
+        }
+
+        public byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+
+}
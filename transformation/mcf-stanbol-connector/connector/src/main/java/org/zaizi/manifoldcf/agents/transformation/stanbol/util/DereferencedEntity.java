@@ -0,0 +1,114 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the parts of a dereferenced Stanbol entity used to build the entity documents: its types, the
+ * values of each of its properties and the english values of its name and label properties. Unlike the client's
+ * entity model it can be shared between threads and cached.
+ */
+public class DereferencedEntity
+{
+    /**
+     * Rough per-object overhead used when estimating the memory held by an entity
+     */
+    private static final int OBJECT_OVERHEAD = 32;
+
+    private final Collection<String> types;
+    private final Map<String, Collection<String>> propertyValues;
+    private final Map<String, Collection<String>> englishValues;
+    private final int estimatedSize;
+
+    /**
+     * @param types the type URIs of the entity
+     * @param propertyValues the values of each property, in the order the properties are returned by Stanbol
+     * @param englishValues the english values of the language dependent properties
+     */
+    public DereferencedEntity(Collection<String> types, Map<String, Collection<String>> propertyValues,
+            Map<String, Collection<String>> englishValues)
+    {
+        this.types = Collections.unmodifiableCollection(types);
+        this.propertyValues = Collections.unmodifiableMap(propertyValues);
+        this.englishValues = Collections.unmodifiableMap(englishValues);
+        this.estimatedSize = OBJECT_OVERHEAD + estimateSize(types) + estimateSize(propertyValues)
+                + estimateSize(englishValues);
+    }
+
+    public Collection<String> getTypes()
+    {
+        return types;
+    }
+
+    public Collection<String> getProperties()
+    {
+        return propertyValues.keySet();
+    }
+
+    /**
+     * @param property the property URI
+     * @return the values of the property, or null if the entity has no such property
+     */
+    public Collection<String> getPropertyValues(String property)
+    {
+        return propertyValues.get(property);
+    }
+
+    /**
+     * @param property the property URI
+     * @return the english values of the property, or null if there are none
+     */
+    public Collection<String> getEnglishPropertyValues(String property)
+    {
+        return englishValues.get(property);
+    }
+
+    /**
+     * @return an estimate of the memory held by this entity, in bytes
+     */
+    public int getEstimatedSize()
+    {
+        return estimatedSize;
+    }
+
+    private static int estimateSize(Map<String, Collection<String>> values)
+    {
+        int size = OBJECT_OVERHEAD;
+        for (Map.Entry<String, Collection<String>> entry : values.entrySet())
+        {
+            size += OBJECT_OVERHEAD + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+        }
+        return size;
+    }
+
+    private static int estimateSize(Collection<String> values)
+    {
+        int size = OBJECT_OVERHEAD;
+        for (String value : values)
+        {
+            size += estimateSize(value);
+        }
+        return size;
+    }
+
+    private static int estimateSize(String value)
+    {
+        return OBJECT_OVERHEAD + 2 * value.length();
+    }
+
+}
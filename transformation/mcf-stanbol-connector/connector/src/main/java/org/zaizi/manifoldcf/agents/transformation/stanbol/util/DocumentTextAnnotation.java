@@ -0,0 +1,67 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import org.apache.stanbol.client.enhancer.model.TextAnnotation;
+
+/**
+ * A Stanbol text annotation with its offsets in the document content. They differ from the offsets of the annotation
+ * when the document was enhanced in chunks or together with other documents, as Stanbol then only knows the position
+ * in the text it was sent.
+ */
+public class DocumentTextAnnotation
+{
+    private final TextAnnotation textAnnotation;
+    private final int start;
+    private final int end;
+
+    /**
+     * @param textAnnotation the annotation returned by Stanbol
+     * @param offset the offset in the document content of the text sent to Stanbol
+     */
+    public DocumentTextAnnotation(TextAnnotation textAnnotation, int offset)
+    {
+        this.textAnnotation = textAnnotation;
+        this.start = offset + textAnnotation.getStart();
+        this.end = offset + textAnnotation.getEnd();
+    }
+
+    public TextAnnotation getTextAnnotation()
+    {
+        return textAnnotation;
+    }
+
+    public String getUri()
+    {
+        return textAnnotation.getUri();
+    }
+
+    /**
+     * @return the offset of the first annotated character in the document content
+     */
+    public int getStart()
+    {
+        return start;
+    }
+
+    /**
+     * @return the offset after the last annotated character in the document content
+     */
+    public int getEnd()
+    {
+        return end;
+    }
+
+}
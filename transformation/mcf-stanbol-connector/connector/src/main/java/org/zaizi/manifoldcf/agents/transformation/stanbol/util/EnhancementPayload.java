@@ -0,0 +1,129 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+/**
+ * The fields added to a document once enhanced: the entity and entity type JSONs with their ids, the entity and entity
+ * type URIs and the main entity type flags. Payloads are immutable so they can be cached and replayed for unchanged
+ * documents.
+ */
+public class EnhancementPayload
+{
+    private final String[] entities;
+    private final String[] entityTypes;
+    private final String[] entityIds;
+    private final String[] entityTypeIds;
+    private final String[] entityURIs;
+    private final String[] entityTypeURIs;
+    private final boolean hasPerson;
+    private final boolean hasOrganization;
+    private final boolean hasPlace;
+    private final boolean complete;
+
+    public EnhancementPayload(String[] entities, String[] entityTypes, String[] entityIds, String[] entityTypeIds,
+            String[] entityURIs, String[] entityTypeURIs, boolean hasPerson, boolean hasOrganization, boolean hasPlace,
+            boolean complete)
+    {
+        this.entities = entities;
+        this.entityTypes = entityTypes;
+        this.entityIds = entityIds;
+        this.entityTypeIds = entityTypeIds;
+        this.entityURIs = entityURIs;
+        this.entityTypeURIs = entityTypeURIs;
+        this.hasPerson = hasPerson;
+        this.hasOrganization = hasOrganization;
+        this.hasPlace = hasPlace;
+        this.complete = complete;
+    }
+
+    public String[] getEntities()
+    {
+        return entities.clone();
+    }
+
+    public String[] getEntityTypes()
+    {
+        return entityTypes.clone();
+    }
+
+    /**
+     * @return the ids of the entity JSONs, in the same order
+     */
+    public String[] getEntityIds()
+    {
+        return entityIds.clone();
+    }
+
+    /**
+     * @return the ids of the entity type JSONs, in the same order
+     */
+    public String[] getEntityTypeIds()
+    {
+        return entityTypeIds.clone();
+    }
+
+    public String[] getEntityURIs()
+    {
+        return entityURIs.clone();
+    }
+
+    public String[] getEntityTypeURIs()
+    {
+        return entityTypeURIs.clone();
+    }
+
+    public boolean hasPerson()
+    {
+        return hasPerson;
+    }
+
+    public boolean hasOrganization()
+    {
+        return hasOrganization;
+    }
+
+    public boolean hasPlace()
+    {
+        return hasPlace;
+    }
+
+    /**
+     * @return false if some of the entities could not be dereferenced because of an error
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return an estimate of the memory held by this payload, in bytes
+     */
+    public int getEstimatedSize()
+    {
+        return 64 + estimateSize(entities) + estimateSize(entityTypes) + estimateSize(entityIds)
+                + estimateSize(entityTypeIds) + estimateSize(entityURIs) + estimateSize(entityTypeURIs);
+    }
+
+    private static int estimateSize(String[] values)
+    {
+        int size = 16;
+        for (String value : values)
+        {
+            size += 40 + 2 * value.length();
+        }
+        return size;
+    }
+
+}
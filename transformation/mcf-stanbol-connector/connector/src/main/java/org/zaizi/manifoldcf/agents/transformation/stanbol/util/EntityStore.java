@@ -0,0 +1,478 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.manifoldcf.agents.system.Logging;
+
+/**
+ * Local persistent store of dereferenced entities, so the entities already fetched from Stanbol survive agent restarts.
+ *
+ * Entities are appended to a single log file. An in-memory index of the record positions is built when the store is
+ * opened. Replacing an entity leaves its previous record in the file as dead space, which is reclaimed by
+ * {@link #compact()}. The compaction also drops the entities older than the maximum age any reader asked for, once
+ * every reader asked for one.
+ *
+ * Stores are shared by all the connector instances using the same directory.
+ */
+public class EntityStore
+{
+    private static final String STORE_FILE_NAME = "entities.store";
+    private static final String COMPACT_FILE_NAME = "entities.store.compact";
+
+    private static final int MAGIC = 0x53544e45;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * The file is only compacted once it holds at least this much dead space
+     */
+    private static final long MIN_COMPACT_DEAD_BYTES = 1024L * 1024L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, EntityStore> stores = new ConcurrentHashMap<String, EntityStore>();
+
+    private final File directory;
+    private final Map<String, RecordPosition> index = new HashMap<String, RecordPosition>();
+    private RandomAccessFile file;
+    private long liveBytes = 0L;
+    private long deadBytes = 0L;
+
+    /**
+     * The largest maximum age the entities were read with, 0 if some reader accepts any age, -1 before the first read
+     */
+    private long retention = -1L;
+
+    private EntityStore(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Return the store kept in a directory, opening it and loading its index on first use
+     *
+     * @param directory the store directory, created if it does not exist
+     * @return the store
+     * @throws IOException if the store cannot be opened
+     */
+    public static EntityStore getStore(File directory) throws IOException
+    {
+        String key = directory.getCanonicalPath();
+        EntityStore store = stores.get(key);
+        if (store == null)
+        {
+            EntityStore newStore = new EntityStore(directory);
+            store = stores.putIfAbsent(key, newStore);
+            if (store == null)
+            {
+                store = newStore;
+            }
+        }
+        store.open();
+        return store;
+    }
+
+    private synchronized void open() throws IOException
+    {
+        if (file != null)
+        {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create entity store directory " + directory);
+        }
+        File storeFile = new File(directory, STORE_FILE_NAME);
+        File compactFile = new File(directory, COMPACT_FILE_NAME);
+        if (!storeFile.exists() && compactFile.exists())
+        {
+            // a compaction deleted the store file but could not rename the compacted one
+            compactFile.renameTo(storeFile);
+        }
+        RandomAccessFile raf = new RandomAccessFile(storeFile, "rw");
+        boolean loaded = false;
+        try
+        {
+            loadIndex(raf);
+            loaded = true;
+        }
+        finally
+        {
+            if (!loaded)
+            {
+                raf.close();
+                index.clear();
+            }
+        }
+        file = raf;
+    }
+
+    /**
+     * Build the index from the records of the file. A record left incomplete by a crash is cut off. A corrupt record is
+     * skipped, its room being reclaimed by the next compaction.
+     */
+    private void loadIndex(RandomAccessFile raf) throws IOException
+    {
+        index.clear();
+        liveBytes = 0L;
+        deadBytes = 0L;
+        if (raf.length() < HEADER_LENGTH)
+        {
+            raf.setLength(0L);
+            raf.writeInt(MAGIC);
+            raf.writeInt(FORMAT_VERSION);
+            return;
+        }
+        raf.seek(0L);
+        if (raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION)
+        {
+            throw new IOException("Not an entity store file, or unsupported version");
+        }
+
+        long length = raf.length();
+        long offset = HEADER_LENGTH;
+        while (offset + 4 <= length)
+        {
+            raf.seek(offset);
+            int recordLength = raf.readInt();
+            if (recordLength <= 0 || offset + 4 + recordLength > length)
+            {
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            raf.readFully(record);
+            long timestamp;
+            String key;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            try
+            {
+                timestamp = in.readLong();
+                key = readString(in);
+            }
+            catch (IOException e)
+            {
+                Logging.agents.warn("Skipping the corrupt entity store record at offset " + offset + " of "
+                        + directory, e);
+                deadBytes += 4 + recordLength;
+                offset += 4 + recordLength;
+                continue;
+            }
+            finally
+            {
+                in.close();
+            }
+            RecordPosition previous = index.put(key, new RecordPosition(offset, recordLength, timestamp));
+            if (previous != null)
+            {
+                liveBytes -= previous.getSize();
+                deadBytes += previous.getSize();
+            }
+            liveBytes += 4 + recordLength;
+            offset += 4 + recordLength;
+        }
+        if (offset < length)
+        {
+            raf.setLength(offset);
+        }
+    }
+
+    /**
+     * Read an entity from the store
+     *
+     * @param key the entity key
+     * @param maxAge entities stored longer than this many milliseconds ago are ignored, 0 for no limit
+     * @return the entity, or null if the store has no such entity
+     * @throws IOException
+     */
+    public synchronized DereferencedEntity get(String key, long maxAge) throws IOException
+    {
+        if (maxAge <= 0)
+        {
+            retention = 0L;
+        }
+        else if (retention != 0L)
+        {
+            retention = Math.max(retention, maxAge);
+        }
+        RecordPosition position = index.get(key);
+        if (position == null || file == null)
+        {
+            return null;
+        }
+        if (maxAge > 0 && System.currentTimeMillis() - position.timestamp > maxAge)
+        {
+            return null;
+        }
+        byte[] record = new byte[position.length];
+        file.seek(position.offset + 4);
+        file.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readLong();
+        readString(in);
+        return readEntity(in);
+    }
+
+    /**
+     * Add or replace an entity in the store
+     *
+     * @param key the entity key
+     * @param entity the entity
+     * @throws IOException
+     */
+    public synchronized void put(String key, DereferencedEntity entity) throws IOException
+    {
+        if (file == null)
+        {
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(timestamp);
+        writeString(out, key);
+        writeEntity(out, entity);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        int recordLength = record.length - 4;
+        record[0] = (byte) (recordLength >>> 24);
+        record[1] = (byte) (recordLength >>> 16);
+        record[2] = (byte) (recordLength >>> 8);
+        record[3] = (byte) recordLength;
+
+        long offset = file.length();
+        file.seek(offset);
+        file.write(record);
+        RecordPosition previous = index.put(key, new RecordPosition(offset, recordLength, timestamp));
+        if (previous != null)
+        {
+            liveBytes -= previous.getSize();
+            deadBytes += previous.getSize();
+        }
+        liveBytes += record.length;
+    }
+
+    /**
+     * @return the number of entities in the store
+     */
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Rewrite the store file without its dead and expired records, if they take more room than the live ones. The new
+     * file is written next to the current one and renamed over it once complete. If it cannot be renamed, the index is
+     * rebuilt from the file left in place.
+     *
+     * @return true if the file was compacted
+     * @throws IOException
+     */
+    public synchronized boolean compact() throws IOException
+    {
+        if (file == null)
+        {
+            return false;
+        }
+        long expiryTime = retention > 0L ? System.currentTimeMillis() - retention : Long.MIN_VALUE;
+        long expiredBytes = 0L;
+        for (RecordPosition position : index.values())
+        {
+            if (position.timestamp < expiryTime)
+            {
+                expiredBytes += position.getSize();
+            }
+        }
+        long reclaimableBytes = deadBytes + expiredBytes;
+        if (reclaimableBytes < MIN_COMPACT_DEAD_BYTES || reclaimableBytes < liveBytes - expiredBytes)
+        {
+            return false;
+        }
+        File storeFile = new File(directory, STORE_FILE_NAME);
+        File compactFile = new File(directory, COMPACT_FILE_NAME);
+        Map<String, RecordPosition> newIndex = new HashMap<String, RecordPosition>();
+        long newLiveBytes = 0L;
+
+        RandomAccessFile compacted = new RandomAccessFile(compactFile, "rw");
+        try
+        {
+            compacted.setLength(0L);
+            compacted.writeInt(MAGIC);
+            compacted.writeInt(FORMAT_VERSION);
+            long offset = HEADER_LENGTH;
+            for (Map.Entry<String, RecordPosition> entry : index.entrySet())
+            {
+                RecordPosition position = entry.getValue();
+                if (position.timestamp < expiryTime)
+                {
+                    continue;
+                }
+                byte[] record = new byte[4 + position.length];
+                file.seek(position.offset);
+                file.readFully(record);
+                compacted.write(record);
+                newIndex.put(entry.getKey(), new RecordPosition(offset, position.length, position.timestamp));
+                offset += record.length;
+                newLiveBytes += record.length;
+            }
+            compacted.getFD().sync();
+        }
+        finally
+        {
+            compacted.close();
+        }
+
+        file.close();
+        file = null;
+        // some platforms cannot rename over an existing file
+        if (!compactFile.renameTo(storeFile) && (!storeFile.delete() || !compactFile.renameTo(storeFile)))
+        {
+            if (storeFile.exists())
+            {
+                compactFile.delete();
+            }
+            // reopen the original file, or the compacted one if the original was deleted, and index it again
+            index.clear();
+            liveBytes = 0L;
+            deadBytes = 0L;
+            open();
+            throw new IOException("Cannot replace entity store file " + storeFile);
+        }
+        file = new RandomAccessFile(storeFile, "rw");
+        index.clear();
+        index.putAll(newIndex);
+        liveBytes = newLiveBytes;
+        deadBytes = 0L;
+        return true;
+    }
+
+    private static void writeEntity(DataOutputStream out, DereferencedEntity entity) throws IOException
+    {
+        writeStrings(out, entity.getTypes());
+        Collection<String> properties = entity.getProperties();
+        out.writeInt(properties.size());
+        for (String property : properties)
+        {
+            writeString(out, property);
+            writeStrings(out, entity.getPropertyValues(property));
+            Collection<String> englishValues = entity.getEnglishPropertyValues(property);
+            out.writeBoolean(englishValues != null);
+            if (englishValues != null)
+            {
+                writeStrings(out, englishValues);
+            }
+        }
+    }
+
+    private static DereferencedEntity readEntity(DataInputStream in) throws IOException
+    {
+        List<String> types = readStrings(in);
+        int propertyCount = in.readInt();
+        Map<String, Collection<String>> propertyValues = new LinkedHashMap<String, Collection<String>>();
+        Map<String, Collection<String>> englishValues = new HashMap<String, Collection<String>>();
+        for (int i = 0; i < propertyCount; i++)
+        {
+            String property = readString(in);
+            propertyValues.put(property, readStrings(in));
+            if (in.readBoolean())
+            {
+                englishValues.put(property, readStrings(in));
+            }
+        }
+        return new DereferencedEntity(types, propertyValues, englishValues);
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException
+    {
+        out.writeInt(values.size());
+        for (String value : values)
+        {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        List<String> values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+        {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+        {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Position of the latest record of an entity in the store file
+     */
+    private static class RecordPosition
+    {
+        private final long offset;
+        private final int length;
+        private final long timestamp;
+
+        public RecordPosition(long offset, int length, long timestamp)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return the size of the record in the file, including its length prefix
+         */
+        public long getSize()
+        {
+            return 4 + length;
+        }
+    }
+
+}
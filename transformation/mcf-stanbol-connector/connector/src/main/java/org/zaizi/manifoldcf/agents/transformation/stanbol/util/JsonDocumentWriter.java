@@ -0,0 +1,142 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the entity and entity type documents as the JSON arrays of a single object expected by the Solr wrapper
+ * output connector, without building a JSON tree.
+ *
+ * The documents are streamed by a Jackson generator, which recycles its internal buffers, into a string buffer kept
+ * by each thread.
+ */
+public class JsonDocumentWriter
+{
+    /**
+     * Buffers grown larger than this by an unusually big document are not kept
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final ThreadLocal<StringWriter> buffers = new ThreadLocal<StringWriter>()
+    {
+        @Override
+        protected StringWriter initialValue()
+        {
+            return new StringWriter(1024);
+        }
+    };
+
+    private JsonDocumentWriter()
+    {
+    }
+
+    /**
+     * Write a document as a JSON array holding a single object
+     *
+     * @param fields the document fields, in order. Values can be strings, numbers, booleans, collections of strings or
+     *            maps of atomic update operations to their value. The null values are skipped
+     * @return the JSON string
+     * @throws IOException if a field value cannot be written
+     */
+    public static String toJSONArray(Map<String, Object> fields) throws IOException
+    {
+        StringWriter buffer = buffers.get();
+        buffer.getBuffer().setLength(0);
+        JsonGenerator generator = jsonFactory.createGenerator(buffer);
+        try
+        {
+            generator.writeStartArray();
+            writeObject(generator, fields);
+            generator.writeEndArray();
+        }
+        finally
+        {
+            generator.close();
+        }
+        String json = buffer.toString();
+        if (buffer.getBuffer().capacity() > MAX_POOLED_BUFFER_SIZE)
+        {
+            buffers.remove();
+        }
+        return json;
+    }
+
+    /**
+     * Write the fields of an object. The fields with a null value are left out, as a JSONObject does, so that an
+     * update does not clear a field whose value is unknown.
+     */
+    private static void writeObject(JsonGenerator generator, Map<String, ?> fields) throws IOException
+    {
+        generator.writeStartObject();
+        for (Map.Entry<String, ?> field : fields.entrySet())
+        {
+            if (field.getValue() == null)
+            {
+                continue;
+            }
+            generator.writeFieldName(field.getKey());
+            writeValue(generator, field.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            generator.writeNull();
+        }
+        else if (value instanceof String)
+        {
+            generator.writeString((String) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            generator.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer)
+        {
+            generator.writeNumber((Integer) value);
+        }
+        else if (value instanceof Collection)
+        {
+            generator.writeStartArray();
+            for (Object item : (Collection<?>) value)
+            {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        }
+        else if (value instanceof Map)
+        {
+            writeObject(generator, (Map<String, ?>) value);
+        }
+        else
+        {
+            throw new IOException("Unsupported JSON value type : " + value.getClass().getName());
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+/**
+ * Packs the entity or entity type documents of a primary document into a single field value, for output connectors
+ * that understand it, instead of one JSON string per document.
+ *
+ * The value starts with {@link #PACKED_PREFIX}, followed for each document by the length of its id, a colon, the id,
+ * the length of its JSON, a colon and the JSON. Lengths are decimal character counts, so the documents are read back
+ * with a few substrings and no JSON parsing. JSON values always start with a bracket, which tells them apart from
+ * packed values.
+ */
+public class PackedEntityEncoder
+{
+    public static final String PACKED_PREFIX = "#packed/1\n";
+
+    private PackedEntityEncoder()
+    {
+    }
+
+    /**
+     * Pack documents into a single value
+     *
+     * @param ids the document ids
+     * @param jsons the document JSONs, in the same order
+     * @return the packed value
+     */
+    public static String encode(String[] ids, String[] jsons)
+    {
+        if (ids.length != jsons.length)
+        {
+            throw new IllegalArgumentException("Expected one id per document, got " + ids.length + " ids for "
+                    + jsons.length + " documents");
+        }
+        int length = PACKED_PREFIX.length();
+        for (int i = 0; i < jsons.length; i++)
+        {
+            length += ids[i].length() + jsons[i].length() + 24;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(PACKED_PREFIX);
+        for (int i = 0; i < jsons.length; i++)
+        {
+            sb.append(ids[i].length()).append(':').append(ids[i]);
+            sb.append(jsons[i].length()).append(':').append(jsons[i]);
+        }
+        return sb.toString();
+    }
+
+}
@@ -16,9 +16,91 @@
 <!--
 function s${SEQNUM}_checkSpecification()
 {
+  if (!s${SEQNUM}_isPositiveInteger(editjob.s${SEQNUM}_dereference_per_document.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.DereferencePerDocumentMustBeAPositiveInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_dereference_per_document.focus();
+    return false;
+  }
+  if (!s${SEQNUM}_isPositiveInteger(editjob.s${SEQNUM}_dereference_per_server.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.DereferencePerServerMustBeAPositiveInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_dereference_per_server.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_entity_cache_size.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.EntityCacheSizeMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_entity_cache_size.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_entity_cache_ttl.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.EntityCacheTTLMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_entity_cache_ttl.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_result_cache_size.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.ResultCacheSizeMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_result_cache_size.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_result_cache_ttl.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.ResultCacheTTLMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_result_cache_ttl.focus();
+    return false;
+  }
+  if (!s${SEQNUM}_isPositiveInteger(editjob.s${SEQNUM}_batch_max_documents.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.BatchMaxDocumentsMustBeAPositiveInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_batch_max_documents.focus();
+    return false;
+  }
+  if (!s${SEQNUM}_isPositiveInteger(editjob.s${SEQNUM}_batch_max_size.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.BatchMaxSizeMustBeAPositiveInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_batch_max_size.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_batch_max_wait.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.BatchMaxWaitMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_batch_max_wait.focus();
+    return false;
+  }
+  if (!/^[0-9]+$/.test(editjob.s${SEQNUM}_chunk_max_size.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.ChunkMaxSizeMustBeAnInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_chunk_max_size.focus();
+    return false;
+  }
+  if (!s${SEQNUM}_isPositiveInteger(editjob.s${SEQNUM}_chunk_parallelism.value))
+  {
+    alert("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.ChunkParallelismMustBeAPositiveInteger'))");
+    SelectSequencedTab("$Encoder.bodyJavascriptEscape($ResourceBundle.getString('StanbolEnhancer.FieldMappingTabName'))",${SEQNUM});
+    editjob.s${SEQNUM}_chunk_parallelism.focus();
+    return false;
+  }
   return true;
 }
 
+function s${SEQNUM}_isPositiveInteger(value)
+{
+  return /^[0-9]+$/.test(value) && parseInt(value, 10) > 0;
+}
+
 
 function s${SEQNUM}_addFieldMapping()
 {
@@ -0,0 +1,89 @@
+package org.zaizi.manifoldcf.agents.transformation.stanbol;
+
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class EnhancementBatcherTest extends TestCase
+{
+    private static final List<String> CONTENTS = Arrays.asList("Paris is in France.", "Bob met Alice.",
+            "London");
+
+    private final int[] starts = new int[CONTENTS.size()];
+    private final int[] ends = new int[CONTENTS.size()];
+    private String text;
+
+    @Override
+    protected void setUp()
+    {
+        text = EnhancementBatcher.join(CONTENTS, starts, ends);
+    }
+
+    public void testDocumentsAreSeparated()
+    {
+        for (int i = 0; i < CONTENTS.size(); i++)
+        {
+            assertEquals(CONTENTS.get(i), text.substring(starts[i], ends[i]));
+            assertEquals(EnhancementBatcher.DOCUMENT_SEPARATOR,
+                    text.substring(ends[i], ends[i] + EnhancementBatcher.DOCUMENT_SEPARATOR.length()));
+        }
+    }
+
+    public void testAnnotationsAreRebasedOnTheirDocument()
+    {
+        assertLocated("Paris", 0);
+        assertLocated("France", 0);
+        assertLocated("Bob", 1);
+        assertLocated("Alice", 1);
+        assertLocated("London", 2);
+    }
+
+    public void testAnnotationsOfWholeDocuments()
+    {
+        for (int i = 0; i < CONTENTS.size(); i++)
+        {
+            assertEquals(i, EnhancementBatcher.locate(starts, ends, starts[i], ends[i]));
+        }
+    }
+
+    public void testAnnotationsAcrossDocumentsAreIgnored()
+    {
+        int start = text.indexOf("France");
+        int end = text.indexOf("Bob") + "Bob".length();
+        assertEquals(-1, EnhancementBatcher.locate(starts, ends, start, end));
+    }
+
+    public void testAnnotationsOfTheSeparatorAreIgnored()
+    {
+        int start = ends[0] + EnhancementBatcher.DOCUMENT_SEPARATOR.indexOf('.');
+        assertEquals(-1, EnhancementBatcher.locate(starts, ends, start, start + 1));
+        assertEquals(-1, EnhancementBatcher.locate(starts, ends, text.length() - 1, text.length()));
+    }
+
+    /**
+     * Check that a word of the batch text is found in its document, at the same offset as in the document content
+     */
+    private void assertLocated(String word, int document)
+    {
+        int start = text.indexOf(word);
+        assertEquals(document, EnhancementBatcher.locate(starts, ends, start, start + word.length()));
+        assertEquals(CONTENTS.get(document).indexOf(word), start - starts[document]);
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * (C) Copyright 2015 Zaizi Limited (http://www.zaizi.com).
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 3.0 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-3.0.en.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ **/
+package org.zaizi.manifoldcf.agents.transformation.stanbol.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.apache.manifoldcf.agents.system.Logging;
+
+public class EntityStoreTest extends TestCase
+{
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        Logging.agents = Logger.getLogger("agents");
+        directory = File.createTempFile("entitystore", "");
+        directory.delete();
+    }
+
+    public void testCorruptRecordIsSkipped() throws IOException
+    {
+        // a store with a single entity, then a corrupt record appended after it
+        File source = new File(directory, "source");
+        EntityStore.getStore(source).put("dbpedia:Paris", entity("Place"));
+        byte[] stored = readFile(new File(source, "entities.store"));
+
+        File target = new File(directory, "target");
+        target.mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(target, "entities.store")));
+        try
+        {
+            out.write(stored, 0, 8);
+            // timestamp followed by a key length running past the record
+            out.writeInt(12);
+            out.writeLong(0L);
+            out.writeInt(1000);
+            out.write(stored, 8, stored.length - 8);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        EntityStore store = EntityStore.getStore(target);
+        assertEquals(1, store.size());
+        DereferencedEntity entity = store.get("dbpedia:Paris", 0L);
+        assertNotNull(entity);
+        assertTrue(entity.getTypes().contains("Place"));
+    }
+
+    private static DereferencedEntity entity(String type)
+    {
+        Map<String, Collection<String>> noValues = Collections.emptyMap();
+        return new DereferencedEntity(Arrays.asList(type), noValues, noValues);
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}